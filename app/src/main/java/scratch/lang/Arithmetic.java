@@ -0,0 +1,379 @@
+package scratch.lang;
+
+import java.math.BigInteger;
+
+// The number tower. A literal without a fraction or exponent is an integer:
+// a long, unboxed on the stack (DataStack.INTEGER) and in variables. + - *
+// and % keep integers integers; a result too big for a long is a
+// BigInteger instead of wrapping around, and goes back to being a long as
+// soon as it fits again. Anything done with a double on either side is
+// done in double, and / and SQRT always give a double. Comparisons of an
+// integer with a double compare them as doubles.
+//
+// The dispatch loops (see Block) handle two longs and two doubles inline,
+// with the overflow checks below, and come here for everything else.
+final class Arithmetic {
+    private Arithmetic() {
+    }
+
+    // Whether X + Y, or X - Y, overflowed to R.
+    static boolean addOverflows(long x, long y, long r) {
+        return ((x ^ r) & (y ^ r)) < 0;
+    }
+
+    static boolean subOverflows(long x, long y, long r) {
+        return ((x ^ y) & (x ^ r)) < 0;
+    }
+
+    // Whether X * Y overflowed to R.
+    static boolean mulOverflows(long x, long y, long r) {
+        if (((Math.abs(x) | Math.abs(y)) >>> 31) == 0) {
+            return false; // Both fit in 31 bits, so the product fits.
+        }
+        return (y != 0 && r / y != x) || (x == Long.MIN_VALUE && y == -1);
+    }
+
+    // X % Y for Y not 0, in int arithmetic when it fits, which divides
+    // faster on most CPUs.
+    static long mod(long x, long y) {
+        if (x == (int)x && y == (int)y) {
+            return (int)x % (int)y;
+        }
+        return x % y;
+    }
+
+    // X % Y as a floating remainder. Doubles with whole values are divided
+    // as ints, which is much faster than the library remainder and gives
+    // the same answer (a zero keeps the sign of X).
+    static double mod(double x, double y) {
+        int i = (int)x;
+        int j = (int)y;
+        if (i == x && j == y && j != 0) {
+            return Math.copySign(i % j, x);
+        }
+        return x % y;
+    }
+
+    // A BigInteger as a Long if it fits in one.
+    static Object normalize(BigInteger value) {
+        return value.bitLength() < 64 ? (Object)value.longValue() : value;
+    }
+
+    // + - * and %, with two longs that give a long, or two doubles, done
+    // in place.
+    static void add(DataStack stack) {
+        int tos = stack.size - 1;
+        if (tos >= 1 && stack.tags[tos] == stack.tags[tos - 1]) {
+            if (stack.tags[tos] == DataStack.INTEGER) {
+                long x = stack.longs[tos - 1];
+                long y = stack.longs[tos];
+                long r = x + y;
+                if (!addOverflows(x, y, r)) {
+                    stack.longs[tos - 1] = r;
+                    stack.size = tos;
+                    return;
+                }
+            } else if (stack.tags[tos] == DataStack.NUMBER) {
+                stack.numbers[tos - 1] += stack.numbers[tos];
+                stack.size = tos;
+                return;
+            }
+        }
+        arith(stack, Block.OP_ADD);
+    }
+
+    static void sub(DataStack stack) {
+        int tos = stack.size - 1;
+        if (tos >= 1 && stack.tags[tos] == stack.tags[tos - 1]) {
+            if (stack.tags[tos] == DataStack.INTEGER) {
+                long x = stack.longs[tos - 1];
+                long y = stack.longs[tos];
+                long r = x - y;
+                if (!subOverflows(x, y, r)) {
+                    stack.longs[tos - 1] = r;
+                    stack.size = tos;
+                    return;
+                }
+            } else if (stack.tags[tos] == DataStack.NUMBER) {
+                stack.numbers[tos - 1] -= stack.numbers[tos];
+                stack.size = tos;
+                return;
+            }
+        }
+        arith(stack, Block.OP_SUB);
+    }
+
+    static void mul(DataStack stack) {
+        int tos = stack.size - 1;
+        if (tos >= 1 && stack.tags[tos] == stack.tags[tos - 1]) {
+            if (stack.tags[tos] == DataStack.INTEGER) {
+                long x = stack.longs[tos - 1];
+                long y = stack.longs[tos];
+                long r = x * y;
+                if (!mulOverflows(x, y, r)) {
+                    stack.longs[tos - 1] = r;
+                    stack.size = tos;
+                    return;
+                }
+            } else if (stack.tags[tos] == DataStack.NUMBER) {
+                stack.numbers[tos - 1] *= stack.numbers[tos];
+                stack.size = tos;
+                return;
+            }
+        }
+        arith(stack, Block.OP_MUL);
+    }
+
+    static void mod(DataStack stack) {
+        int tos = stack.size - 1;
+        if (tos >= 1 && stack.tags[tos] == DataStack.INTEGER && stack.tags[tos - 1] == DataStack.INTEGER
+                && stack.longs[tos] != 0) {
+            stack.longs[tos - 1] = mod(stack.longs[tos - 1], stack.longs[tos]);
+            stack.size = tos;
+            return;
+        }
+        arith(stack, Block.OP_MOD);
+    }
+
+    // DUP *, in place.
+    static void square(DataStack stack) {
+        if (stack.size < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        int tos = stack.size - 1;
+        switch (tag(stack, tos)) {
+            case DataStack.NUMBER:
+                stack.numbers[tos] *= stack.numbers[tos];
+                break;
+            case DataStack.INTEGER: {
+                long x = stack.longs[tos];
+                long r = x * x;
+                if (!mulOverflows(x, x, r)) {
+                    stack.longs[tos] = r;
+                    break;
+                }
+                stack.size = tos;
+                stack.push(BigInteger.valueOf(x).multiply(BigInteger.valueOf(x)));
+                break;
+            }
+            default: {
+                BigInteger x = (BigInteger)stack.objects[tos];
+                stack.drop();
+                stack.push(x.multiply(x));
+                break;
+            }
+        }
+    }
+
+    // ( x y -- x+y ) and the like, for OPCODE one of Block.OP_ADD, OP_SUB,
+    // OP_MUL, OP_DIV and OP_MOD, and any two numbers.
+    static void arith(DataStack stack, int opcode) {
+        if (stack.size < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        int tos = stack.size - 1;
+        byte x_tag = tag(stack, tos - 1);
+        byte y_tag = tag(stack, tos);
+        if (x_tag == DataStack.INTEGER && y_tag == DataStack.INTEGER && opcode != Block.OP_DIV) {
+            long y = stack.longs[tos];
+            long x = stack.longs[tos - 1];
+            stack.size -= 2;
+            arith(stack, opcode, x, y);
+        } else if (x_tag == DataStack.NUMBER || y_tag == DataStack.NUMBER || opcode == Block.OP_DIV) {
+            double y = stack.popDouble();
+            double x = stack.popDouble();
+            stack.pushDouble(arith(opcode, x, y));
+        } else {
+            BigInteger y = big(stack, tos);
+            BigInteger x = big(stack, tos - 1);
+            stack.drop();
+            stack.drop();
+            stack.push(arith(opcode, x, y));
+        }
+    }
+
+    // Pushes X op Y, for two longs.
+    static void arith(DataStack stack, int opcode, long x, long y) {
+        long r;
+        switch (opcode) {
+            case Block.OP_ADD:
+                r = x + y;
+                if (addOverflows(x, y, r)) {
+                    stack.push(BigInteger.valueOf(x).add(BigInteger.valueOf(y)));
+                    return;
+                }
+                break;
+            case Block.OP_SUB:
+                r = x - y;
+                if (subOverflows(x, y, r)) {
+                    stack.push(BigInteger.valueOf(x).subtract(BigInteger.valueOf(y)));
+                    return;
+                }
+                break;
+            case Block.OP_MUL:
+                r = x * y;
+                if (mulOverflows(x, y, r)) {
+                    stack.push(BigInteger.valueOf(x).multiply(BigInteger.valueOf(y)));
+                    return;
+                }
+                break;
+            case Block.OP_MOD:
+                if (y == 0) {
+                    throw new RuntimeException("Division by zero");
+                }
+                r = mod(x, y);
+                break;
+            default:
+                stack.pushDouble((double)x / y);
+                return;
+        }
+        stack.pushLong(r);
+    }
+
+    static double arith(int opcode, double x, double y) {
+        switch (opcode) {
+            case Block.OP_ADD:
+                return x + y;
+            case Block.OP_SUB:
+                return x - y;
+            case Block.OP_MUL:
+                return x * y;
+            case Block.OP_DIV:
+                return x / y;
+            default:
+                return mod(x, y);
+        }
+    }
+
+    private static BigInteger arith(int opcode, BigInteger x, BigInteger y) {
+        switch (opcode) {
+            case Block.OP_ADD:
+                return x.add(y);
+            case Block.OP_SUB:
+                return x.subtract(y);
+            case Block.OP_MUL:
+                return x.multiply(y);
+            default:
+                if (y.signum() == 0) {
+                    throw new RuntimeException("Division by zero");
+                }
+                return x.remainder(y);
+        }
+    }
+
+    // ( x y -- flag ) for OPCODE one of Block.OP_LESS to OP_GREATER.
+    static void compare(DataStack stack, int opcode) {
+        if (stack.size < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        int tos = stack.size - 1;
+        byte x_tag = tag(stack, tos - 1);
+        byte y_tag = tag(stack, tos);
+        int sign;
+        if (x_tag == DataStack.INTEGER && y_tag == DataStack.INTEGER) {
+            sign = Long.compare(stack.longs[tos - 1], stack.longs[tos]);
+            stack.size -= 2;
+        } else if (x_tag == DataStack.NUMBER || y_tag == DataStack.NUMBER) {
+            double y = stack.popDouble();
+            double x = stack.popDouble();
+            stack.pushBoolean(compare(opcode, x, y));
+            return;
+        } else {
+            sign = big(stack, tos - 1).compareTo(big(stack, tos));
+            stack.drop();
+            stack.drop();
+        }
+        stack.pushBoolean(compare(opcode, sign));
+    }
+
+    static boolean compare(int opcode, double x, double y) {
+        switch (opcode) {
+            case Block.OP_LESS:
+                return x < y;
+            case Block.OP_LE:
+                return x <= y;
+            case Block.OP_EQUAL:
+                return x == y;
+            case Block.OP_GE:
+                return x >= y;
+            default:
+                return x > y;
+        }
+    }
+
+    // Whether a comparison that came out as SIGN (negative, zero or
+    // positive) is true.
+    static boolean compare(int opcode, int sign) {
+        switch (opcode) {
+            case Block.OP_LESS:
+                return sign < 0;
+            case Block.OP_LE:
+                return sign <= 0;
+            case Block.OP_EQUAL:
+                return sign == 0;
+            case Block.OP_GE:
+                return sign >= 0;
+            default:
+                return sign > 0;
+        }
+    }
+
+    // REF's value plus AMOUNT, kept in REF. For +!VAR when the variable
+    // does not hold a long or the sum overflows.
+    static void addTo(CodeVarRef ref, long amount) {
+        switch (ref.tag) {
+            case DataStack.INTEGER: {
+                long r = ref.bits + amount;
+                if (addOverflows(ref.bits, amount, r)) {
+                    ref.setValue(BigInteger.valueOf(ref.bits).add(BigInteger.valueOf(amount)));
+                } else {
+                    ref.bits = r;
+                }
+                break;
+            }
+            case DataStack.NUMBER:
+                ref.number += amount;
+                break;
+            default:
+                if (!(ref.value instanceof BigInteger)) {
+                    throw new RuntimeException("Number expected");
+                }
+                ref.setValue(((BigInteger)ref.value).add(BigInteger.valueOf(amount)));
+                break;
+        }
+    }
+
+    static void addTo(CodeVarRef ref, double amount) {
+        switch (ref.tag) {
+            case DataStack.NUMBER:
+                ref.number += amount;
+                break;
+            case DataStack.INTEGER:
+                ref.setValue(ref.bits + amount);
+                break;
+            default:
+                if (!(ref.value instanceof BigInteger)) {
+                    throw new RuntimeException("Number expected");
+                }
+                ref.setValue(((BigInteger)ref.value).doubleValue() + amount);
+                break;
+        }
+    }
+
+    // The kind of number at INDEX: INTEGER, NUMBER, or OBJECT for a
+    // BigInteger.
+    private static byte tag(DataStack stack, int index) {
+        byte tag = stack.tags[index];
+        if (tag == DataStack.BOOLEAN || (tag == DataStack.OBJECT && !(stack.objects[index] instanceof BigInteger))) {
+            throw new RuntimeException("Number expected");
+        }
+        return tag;
+    }
+
+    private static BigInteger big(DataStack stack, int index) {
+        if (stack.tags[index] == DataStack.INTEGER) {
+            return BigInteger.valueOf(stack.longs[index]);
+        }
+        return (BigInteger)stack.objects[index];
+    }
+}
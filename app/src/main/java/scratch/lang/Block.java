@@ -0,0 +1,1221 @@
+package scratch.lang;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+// Compiled form of a definition or list: a flat opcode stream plus constant
+// pools, one each for doubles, integers (see Arithmetic) and objects.
+// Built-in words are compiled to their own opcodes and executed inline by
+// the dispatch loop; anything else is called through OP_CALL. Words
+// defined with DEF, VAR or CONST are compiled by name (see CodeCall), and
+// a block naming any is run as bound to what they mean at the time (see
+// bind).
+//
+// A block is run in the form produced by Peephole; PLAIN keeps the code as
+// compiled, for the second tier, the profiler and images.
+//
+// Blocks whose stack effect is known (see StackEffect) check the depth
+// once on entry and then run without a depth check per instruction.
+//
+// Other blocks run in a loop that enters the words and lists they call
+// itself, keeping the caller on the interpreter's return stack instead of
+// the Java stack. A call that is the last instruction of a block replaces
+// it (a tail call), so a word that recurses in tail position, e.g. from
+// the end of an IFTRUE list, runs in constant space. Loops are run the
+// same way, with a LoopFrame on the control stack.
+final class Block {
+    static final int OP_NUMBER = 0; // operand: index into numbers
+    static final int OP_OBJECT = 1; // operand: index into constants
+    static final int OP_CALL = 2; // operand: index into constants
+    static final int OP_TRUE = 3;
+    static final int OP_FALSE = 4;
+    static final int OP_ADD = 5;
+    static final int OP_SUB = 6;
+    static final int OP_MUL = 7;
+    static final int OP_DIV = 8;
+    static final int OP_MOD = 9;
+    static final int OP_SQRT = 10;
+    static final int OP_DUP = 11;
+    static final int OP_DROP = 12;
+    static final int OP_SWAP = 13;
+    static final int OP_OVER = 14;
+    static final int OP_ROT = 15;
+    static final int OP_STORE = 16;
+    static final int OP_FETCH = 17;
+    static final int OP_AND = 18;
+    static final int OP_OR = 19;
+    static final int OP_NOT = 20;
+    static final int OP_LESS = 21;
+    static final int OP_LE = 22;
+    static final int OP_EQUAL = 23;
+    static final int OP_GE = 24;
+    static final int OP_GREATER = 25;
+    static final int OP_CONTINUE = 26;
+    static final int OP_BREAK = 27;
+    // Run a list, unconditionally or depending on 2OS. Kept apart from
+    // OP_CALL so that the list is entered on the return stack.
+    static final int OP_RUN = 28;
+    static final int OP_IFTRUE = 29;
+    static final int OP_IFFALSE = 30;
+    // Loops, run on the control stack (see LoopFrame).
+    static final int OP_TIMES = 31;
+    static final int OP_WHILE = 32;
+    static final int OP_LOOP = 33;
+    // Superinstructions, only produced by Peephole.
+    static final int OP_FETCH_VAR = 34; // operand: variable in constants
+    static final int OP_STORE_VAR = 35; // operand: variable in constants
+    static final int OP_ADD_VAR = 36; // operands: variable, number to add
+    static final int OP_ADD_NUM = 37; // operand: index into numbers
+    static final int OP_LESS_NUM = 38; // operand: index into numbers
+    static final int OP_LE_NUM = 39;
+    static final int OP_EQUAL_NUM = 40;
+    static final int OP_GE_NUM = 41;
+    static final int OP_GREATER_NUM = 42;
+    static final int OP_SQUARE = 43;
+    static final int OP_NIP = 44;
+    static final int OP_EXIT = 45;
+    static final int OP_RESTART = 46;
+    // Integer literals, and superinstructions with one as the operand.
+    static final int OP_INTEGER = 47; // operand: index into integers
+    static final int OP_ADD_INT = 48; // operand: index into integers
+    static final int OP_LESS_INT = 49; // operand: index into integers
+    static final int OP_LE_INT = 50;
+    static final int OP_EQUAL_INT = 51;
+    static final int OP_GE_INT = 52;
+    static final int OP_GREATER_INT = 53;
+    static final int OP_ADD_VAR_INT = 54; // operands: variable, integer to add
+
+    private static final HashMap<Class<?>, Integer> opcodes = new HashMap<>();
+    private static final String[] names = new String[OP_LOOP + 1];
+
+    static {
+        Object[] table = {
+                "TRUE", CodeTrue.class, OP_TRUE,
+                "FALSE", CodeFalse.class, OP_FALSE,
+                "+", CodeAdd.class, OP_ADD,
+                "-", CodeSub.class, OP_SUB,
+                "*", CodeMul.class, OP_MUL,
+                "/", CodeDiv.class, OP_DIV,
+                "%", CodeMod.class, OP_MOD,
+                "SQRT", CodeSqrt.class, OP_SQRT,
+                "DUP", CodeDup.class, OP_DUP,
+                "DROP", CodeDrop.class, OP_DROP,
+                "SWAP", CodeSwap.class, OP_SWAP,
+                "OVER", CodeOver.class, OP_OVER,
+                "ROT", CodeRot.class, OP_ROT,
+                "!", CodeStore.class, OP_STORE,
+                "@", CodeFetch.class, OP_FETCH,
+                "AND", CodeAnd.class, OP_AND,
+                "OR", CodeOr.class, OP_OR,
+                "NOT", CodeNot.class, OP_NOT,
+                "<", CodeLess.class, OP_LESS,
+                "<=", CodeLE.class, OP_LE,
+                "=", CodeEqual.class, OP_EQUAL,
+                ">=", CodeGE.class, OP_GE,
+                ">", CodeGreater.class, OP_GREATER,
+                "?CONTINUE", CodeContinue.class, OP_CONTINUE,
+                "?BREAK", CodeBreak.class, OP_BREAK,
+                "RUN", CodeRun.class, OP_RUN,
+                "IFTRUE", CodeIfTrue.class, OP_IFTRUE,
+                "IFFALSE", CodeIfFalse.class, OP_IFFALSE,
+                "TIMES", CodeTimes.class, OP_TIMES,
+                "WHILE", CodeWhile.class, OP_WHILE,
+                "LOOP", CodeLoop.class, OP_LOOP,
+        };
+        for (int i = 0; i < table.length; i += 3) {
+            opcodes.put((Class<?>)table[i + 1], (Integer)table[i + 2]);
+            names[(Integer)table[i + 2]] = (String)table[i];
+        }
+    }
+
+    final int[] code;
+    final int[] plain;
+    final double[] numbers;
+    final long[] integers;
+    final Object[] constants;
+    private final int needs; // -1 if not verified.
+    private final int grows;
+    private final String error;
+    private final boolean late; // Names words, see bind.
+    private Bound bound;
+    Purity.Cached effects; // Cached by Purity.of.
+    // The second tier's, for the block of a word (see CodeWordRef).
+    Code compiled;
+    int calls;
+
+    Block(int[] plain, double[] numbers, long[] integers, Object[] constants) {
+        Peephole peephole = Peephole.optimize(plain, numbers, integers, constants);
+        this.plain = plain;
+        this.code = peephole.code();
+        this.numbers = peephole.numbers();
+        this.integers = peephole.integers();
+        this.constants = constants;
+        StackEffect effect = StackEffect.of(this);
+        needs = effect.verified ? effect.needs : -1;
+        grows = effect.grows;
+        error = effect.error;
+        boolean names = false;
+        for (Object constant : constants) {
+            names |= constant instanceof CodeCall;
+        }
+        late = names;
+    }
+
+    private static final class Bound {
+        final Scratch.Bindings bindings;
+        final Block block;
+
+        Bound(Scratch.Bindings bindings, Block block) {
+            this.bindings = bindings;
+            this.block = block;
+        }
+    }
+
+    // The block to run for TERP: this one compiled again with the words it
+    // names looked up, so that definitions are called directly and the
+    // variables and constants compiled in, as for code that holds them.
+    // Words are only defined between runs, by the immediate words, so a
+    // block bound as it is entered stays right until it returns. The
+    // result is kept for as long as TERP's bindings stay the same, and
+    // replaced whole, as CodeCall's cache is.
+    Block bind(Scratch terp) {
+        if (!late) {
+            return this;
+        }
+        Scratch.Bindings bindings = terp.bindings();
+        Bound bound = this.bound;
+        if (bound == null || bound.bindings != bindings) {
+            bound = this.bound = new Bound(bindings, resolve(terp));
+        }
+        return bound.block;
+    }
+
+    private Block resolve(Scratch terp) {
+        Assembler asm = new Assembler();
+        for (int pc = 0; pc < plain.length; pc += length(plain[pc])) {
+            int opcode = plain[pc];
+            switch (opcode) {
+                case OP_NUMBER:
+                    asm.emitNumber(numbers[plain[pc + 1]]);
+                    break;
+                case OP_INTEGER:
+                    asm.emitInteger(integers[plain[pc + 1]]);
+                    break;
+                case OP_OBJECT:
+                    asm.emit(OP_OBJECT, asm.constant(constants[plain[pc + 1]]));
+                    break;
+                case OP_CALL: {
+                    Object word = constants[plain[pc + 1]];
+                    asm.emitItem(word instanceof CodeCall ? ((CodeCall)word).code(terp) : word);
+                    break;
+                }
+                default:
+                    asm.emit(opcode);
+                    break;
+            }
+        }
+        return asm.finish();
+    }
+
+    // The built-in word compiled to OPCODE.
+    static String name(int opcode) {
+        return names[opcode];
+    }
+
+    // Number of ints taken by an instruction, operands included.
+    static int length(int opcode) {
+        switch (opcode) {
+            case OP_NUMBER:
+            case OP_OBJECT:
+            case OP_CALL:
+            case OP_FETCH_VAR:
+            case OP_STORE_VAR:
+            case OP_ADD_NUM:
+            case OP_LESS_NUM:
+            case OP_LE_NUM:
+            case OP_EQUAL_NUM:
+            case OP_GE_NUM:
+            case OP_GREATER_NUM:
+            case OP_INTEGER:
+            case OP_ADD_INT:
+            case OP_LESS_INT:
+            case OP_LE_INT:
+            case OP_EQUAL_INT:
+            case OP_GE_INT:
+            case OP_GREATER_INT:
+                return 2;
+            case OP_ADD_VAR:
+            case OP_ADD_VAR_INT:
+                return 3;
+            default:
+                return 1;
+        }
+    }
+
+    // The optimized code as words, for SEE. A superinstruction is shown in
+    // braces as words that do the same, which are not always the words it
+    // replaced: 1 - is kept as an add, and shown as {-1 +}.
+    String disassemble(Scratch terp) {
+        StringBuilder builder = new StringBuilder();
+        int pc = 0;
+        while (pc < code.length) {
+            int opcode = code[pc++];
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            switch (opcode) {
+                case OP_NUMBER:
+                    builder.append(numbers[code[pc++]]);
+                    break;
+                case OP_INTEGER:
+                    builder.append(integers[code[pc++]]);
+                    break;
+                case OP_OBJECT:
+                    builder.append(constant(terp, constants[code[pc++]]));
+                    break;
+                case OP_CALL:
+                    builder.append(terp.nameOf((Code)constants[code[pc++]]));
+                    break;
+                case OP_FETCH_VAR:
+                    builder.append('{').append(constant(terp, constants[code[pc++]])).append(" @}");
+                    break;
+                case OP_STORE_VAR:
+                    builder.append('{').append(constant(terp, constants[code[pc++]])).append(" !}");
+                    break;
+                case OP_ADD_VAR: {
+                    String variable = constant(terp, constants[code[pc++]]);
+                    builder.append('{').append(variable).append(" @ ").append(numbers[code[pc++]])
+                            .append(" + ").append(variable).append(" !}");
+                    break;
+                }
+                case OP_ADD_VAR_INT: {
+                    String variable = constant(terp, constants[code[pc++]]);
+                    builder.append('{').append(variable).append(" @ ").append(integers[code[pc++]])
+                            .append(" + ").append(variable).append(" !}");
+                    break;
+                }
+                case OP_ADD_NUM:
+                    builder.append('{').append(numbers[code[pc++]]).append(" +}");
+                    break;
+                case OP_ADD_INT:
+                    builder.append('{').append(integers[code[pc++]]).append(" +}");
+                    break;
+                case OP_LESS_NUM:
+                case OP_LE_NUM:
+                case OP_EQUAL_NUM:
+                case OP_GE_NUM:
+                case OP_GREATER_NUM:
+                    builder.append('{').append(numbers[code[pc++]]).append(' ')
+                            .append(names[OP_LESS + (opcode - OP_LESS_NUM)]).append('}');
+                    break;
+                case OP_LESS_INT:
+                case OP_LE_INT:
+                case OP_EQUAL_INT:
+                case OP_GE_INT:
+                case OP_GREATER_INT:
+                    builder.append('{').append(integers[code[pc++]]).append(' ')
+                            .append(names[OP_LESS + (opcode - OP_LESS_INT)]).append('}');
+                    break;
+                case OP_SQUARE:
+                    builder.append("{DUP *}");
+                    break;
+                case OP_NIP:
+                    builder.append("{SWAP DROP}");
+                    break;
+                case OP_EXIT:
+                    builder.append("{TRUE ?BREAK}");
+                    break;
+                case OP_RESTART:
+                    builder.append("{TRUE ?CONTINUE}");
+                    break;
+                default:
+                    builder.append(names[opcode]);
+                    break;
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String constant(Scratch terp, Object value) {
+        if (value instanceof Code) {
+            return terp.nameOf((Code)value);
+        }
+        if (value instanceof CharSequence) {
+            return "\" " + value + "\"";
+        }
+        if (value instanceof ScratchList) {
+            // Shown as the code it is compiled to when it is run.
+            return "[ " + ((ScratchList)value).block(terp).disassemble(terp) + " ]";
+        }
+        return String.valueOf(value);
+    }
+
+    // Straight-line run of plain instructions sharing this block's pools.
+    Block slice(int from, int to) {
+        int[] new_code = new int[to - from];
+        System.arraycopy(plain, from, new_code, 0, to - from);
+        return new Block(new_code, numbers, integers, constants);
+    }
+
+    // Compile the contents of a compile buffer or list literal.
+    static Block compile(Object[] items) {
+        Assembler asm = new Assembler();
+        for (Object item : items) {
+            asm.emitItem(item);
+        }
+        Block block = asm.finish();
+        if (block.error != null) {
+            throw new RuntimeException(block.error);
+        }
+        return block;
+    }
+
+    void execute(Scratch terp) {
+        DataStack stack = terp.stack;
+        terp.tick(code.length + 1);
+        if (terp.profiler != null) {
+            try {
+                terp.profiler.execute(this, terp);
+            } catch (StackOverflowError e) {
+                throw new RuntimeException("Return stack overflow");
+            }
+            return;
+        }
+        if (needs >= 0 && stack.size >= needs) {
+            stack.reserve(grows);
+            if (executeVerified(terp, stack) && terp.loop_depth > 0) {
+                throw new LoopFrame.Transfer(terp.loop_depth - 1, true);
+            }
+            return;
+        }
+        // Blocks and loops entered from here are popped down to BASE and
+        // LOOP_BASE when it returns; calls made by built-ins and compiled
+        // words come back in through here, on top of the same stacks.
+        int base = terp.return_depth;
+        int loop_base = terp.loop_depth;
+        try {
+            int pc = 0;
+            while (true) {
+                try {
+                    executeChecked(terp, base, loop_base, pc);
+                    return;
+                } catch (LoopFrame.Transfer transfer) {
+                    // From a call the return stack cannot see, e.g. through
+                    // compiled code.
+                    if (transfer.loop < loop_base) {
+                        throw transfer;
+                    }
+                    toLoop(terp, transfer.loop, transfer.is_break);
+                    pc = code.length;
+                }
+            }
+        } catch (StackOverflowError e) {
+            // Left for calls the return stack cannot see, e.g. recursion
+            // through a compiled word.
+            throw new RuntimeException("Return stack overflow");
+        } finally {
+            terp.return_depth = base;
+            terp.loop_depth = loop_base;
+        }
+    }
+
+    // What enter did with a block.
+    private static final int RAN = 0;
+    private static final int ENTERED = 1; // To be run by the caller.
+    private static final int BROKE = 2; // Ran, and was left with ?BREAK.
+
+    private static int enter(Block block, Scratch terp) {
+        DataStack stack = terp.stack;
+        terp.tick(block.code.length + 1);
+        if (block.needs >= 0 && stack.size >= block.needs) {
+            stack.reserve(block.grows);
+            return block.executeVerified(terp, stack) ? BROKE : RAN;
+        }
+        return ENTERED;
+    }
+
+    // ?BREAK (IS_BREAK) or ?CONTINUE from a dispatch loop owning the loop
+    // frames from LOOP_BASE up: true if it has unwound to the innermost
+    // one, after which the current block is done with; false if there is
+    // no loop, so the ?BREAK or ?CONTINUE is for the current block.
+    private static boolean toInnermostLoop(Scratch terp, int loop_base, boolean is_break) {
+        int loop = terp.loop_depth - 1;
+        if (loop < loop_base) {
+            if (loop >= 0) {
+                throw new LoopFrame.Transfer(loop, is_break);
+            }
+            return false;
+        }
+        toLoop(terp, loop, is_break);
+        return true;
+    }
+
+    // Unwind to the frame at index LOOP and leave it or, for ?CONTINUE,
+    // have it go on with its next round when the current block ends.
+    private static void toLoop(Scratch terp, int loop, boolean is_break) {
+        LoopFrame frame = terp.loops[loop];
+        terp.return_depth = frame.return_depth;
+        if (is_break) {
+            terp.loop_depth = loop;
+        } else {
+            terp.loop_depth = loop + 1;
+            frame.in_cond = false;
+        }
+    }
+
+    private void executeChecked(Scratch terp, int base, int loop_base, int pc) {
+        Block block = this;
+        int[] code = this.code;
+        double[] numbers = this.numbers;
+        long[] integers = this.integers;
+        Object[] constants = this.constants;
+        DataStack stack = terp.stack;
+        while (true) {
+            if (pc >= code.length) {
+                if (terp.loop_depth > loop_base) {
+                    LoopFrame loop = terp.loops[terp.loop_depth - 1];
+                    if (loop.return_depth == terp.return_depth) {
+                        // The end of a round: run the next block of the loop.
+                        Block next = loop.next(stack);
+                        if (next != null) {
+                            int entered = enter(next, terp);
+                            if (entered == ENTERED) {
+                                block = next;
+                                code = next.code;
+                                numbers = next.numbers;
+                                integers = next.integers;
+                                constants = next.constants;
+                                pc = 0;
+                            } else if (entered == BROKE) {
+                                toInnermostLoop(terp, loop_base, true);
+                            }
+                            continue;
+                        }
+                        terp.loop_depth--;
+                    }
+                }
+                if (terp.return_depth == base) {
+                    return;
+                }
+                int depth = --terp.return_depth;
+                block = terp.return_blocks[depth];
+                pc = terp.return_pcs[depth];
+                code = block.code;
+                numbers = block.numbers;
+                integers = block.integers;
+                constants = block.constants;
+                continue;
+            }
+            Block callee = null;
+            switch (code[pc++]) {
+                case OP_NUMBER:
+                    stack.pushDouble(numbers[code[pc++]]);
+                    break;
+                case OP_INTEGER:
+                    stack.pushLong(integers[code[pc++]]);
+                    break;
+                case OP_OBJECT:
+                    stack.pushObject(constants[code[pc++]]);
+                    break;
+                case OP_CALL: {
+                    Code word = (Code)constants[code[pc++]];
+                    if (!(word instanceof CodeWordRef)) {
+                        word.call(terp);
+                        stack = terp.stack;
+                        break;
+                    }
+                    callee = ((CodeWordRef)word).target(terp);
+                    stack = terp.stack;
+                    break; // Null if it has run as compiled code.
+                }
+                case OP_RUN:
+                    callee = stack.popList().block(terp);
+                    break;
+                case OP_IFTRUE:
+                case OP_IFFALSE: {
+                    need(stack, 2);
+                    ScratchList list = stack.popList();
+                    if (stack.popBoolean() != (code[pc - 1] == OP_IFTRUE)) {
+                        break;
+                    }
+                    callee = list.block(terp);
+                    break;
+                }
+                case OP_TIMES: {
+                    need(stack, 2);
+                    long count = stack.popCount();
+                    Block body = stack.popList().block(terp);
+                    terp.pushReturn(block, pc);
+                    LoopFrame loop = terp.pushLoop(LoopFrame.TIMES, terp.return_depth);
+                    loop.body = body;
+                    loop.count = count;
+                    pc = code.length; // The first round starts at the end of the block.
+                    break;
+                }
+                case OP_WHILE: {
+                    need(stack, 2);
+                    Block body = stack.popList().block(terp);
+                    Block cond = stack.popList().block(terp);
+                    terp.pushReturn(block, pc);
+                    LoopFrame loop = terp.pushLoop(LoopFrame.WHILE, terp.return_depth);
+                    loop.body = body;
+                    loop.cond = cond;
+                    pc = code.length;
+                    break;
+                }
+                case OP_LOOP: {
+                    Block body = stack.popList().block(terp);
+                    terp.pushReturn(block, pc);
+                    terp.pushLoop(LoopFrame.LOOP, terp.return_depth).body = body;
+                    pc = code.length;
+                    break;
+                }
+                case OP_TRUE:
+                    stack.pushBoolean(true);
+                    break;
+                case OP_FALSE:
+                    stack.pushBoolean(false);
+                    break;
+                case OP_ADD:
+                    Arithmetic.add(stack);
+                    break;
+                case OP_SUB:
+                    Arithmetic.sub(stack);
+                    break;
+                case OP_MUL:
+                    Arithmetic.mul(stack);
+                    break;
+                case OP_DIV:
+                    Arithmetic.arith(stack, OP_DIV);
+                    break;
+                case OP_MOD:
+                    Arithmetic.mod(stack);
+                    break;
+                case OP_SQRT:
+                    stack.pushDouble(Math.sqrt(stack.popDouble()));
+                    break;
+                case OP_DUP:
+                    stack.dup();
+                    break;
+                case OP_DROP:
+                    stack.drop();
+                    break;
+                case OP_SWAP:
+                    stack.swap();
+                    break;
+                case OP_OVER:
+                    stack.over();
+                    break;
+                case OP_ROT:
+                    stack.rot();
+                    break;
+                case OP_STORE: {
+                    need(stack, 2);
+                    CodeVarRef reference = stack.popVar();
+                    stack.popInto(reference);
+                    break;
+                }
+                case OP_FETCH: {
+                    CodeVarRef reference = stack.popVar();
+                    stack.pushFrom(reference);
+                    break;
+                }
+                case OP_AND: {
+                    need(stack, 2);
+                    boolean term2 = stack.popBoolean();
+                    boolean term1 = stack.popBoolean();
+                    stack.pushBoolean(term1 && term2);
+                    break;
+                }
+                case OP_OR: {
+                    need(stack, 2);
+                    boolean term2 = stack.popBoolean();
+                    boolean term1 = stack.popBoolean();
+                    stack.pushBoolean(term1 || term2);
+                    break;
+                }
+                case OP_NOT:
+                    stack.pushBoolean(!stack.popBoolean());
+                    break;
+                case OP_LESS:
+                case OP_LE:
+                case OP_EQUAL:
+                case OP_GE:
+                case OP_GREATER:
+                    Arithmetic.compare(stack, code[pc - 1]);
+                    break;
+                case OP_CONTINUE:
+                    if (stack.popBoolean()) {
+                        if (toInnermostLoop(terp, loop_base, false)) {
+                            pc = code.length;
+                        } else {
+                            pc = 0; // Restart the block.
+                            terp.tick(code.length + 1);
+                        }
+                    }
+                    break;
+                case OP_BREAK:
+                    if (stack.popBoolean()) {
+                        toInnermostLoop(terp, loop_base, true);
+                        pc = code.length; // Leave the loop, or else the block.
+                    }
+                    break;
+                case OP_FETCH_VAR:
+                    stack.pushFrom((CodeVarRef)constants[code[pc++]]);
+                    break;
+                case OP_STORE_VAR:
+                    stack.popInto((CodeVarRef)constants[code[pc++]]);
+                    break;
+                case OP_ADD_VAR: {
+                    CodeVarRef reference = (CodeVarRef)constants[code[pc++]];
+                    if (reference.tag != DataStack.NUMBER) {
+                        Arithmetic.addTo(reference, numbers[code[pc++]]);
+                        break;
+                    }
+                    reference.number += numbers[code[pc++]];
+                    break;
+                }
+                case OP_ADD_VAR_INT: {
+                    CodeVarRef reference = (CodeVarRef)constants[code[pc++]];
+                    long amount = integers[code[pc++]];
+                    long sum = reference.bits + amount;
+                    if (reference.tag != DataStack.INTEGER || Arithmetic.addOverflows(reference.bits, amount, sum)) {
+                        Arithmetic.addTo(reference, amount);
+                        break;
+                    }
+                    reference.bits = sum;
+                    break;
+                }
+                case OP_ADD_NUM:
+                    stack.pushDouble(stack.popDouble() + numbers[code[pc++]]);
+                    break;
+                case OP_ADD_INT:
+                    stack.pushLong(integers[code[pc++]]);
+                    Arithmetic.add(stack);
+                    break;
+                case OP_LESS_INT:
+                case OP_LE_INT:
+                case OP_EQUAL_INT:
+                case OP_GE_INT:
+                case OP_GREATER_INT:
+                    stack.pushLong(integers[code[pc]]);
+                    Arithmetic.compare(stack, OP_LESS + (code[pc - 1] - OP_LESS_INT));
+                    pc++;
+                    break;
+                case OP_LESS_NUM:
+                    stack.pushBoolean(stack.popDouble() < numbers[code[pc++]]);
+                    break;
+                case OP_LE_NUM:
+                    stack.pushBoolean(stack.popDouble() <= numbers[code[pc++]]);
+                    break;
+                case OP_EQUAL_NUM:
+                    stack.pushBoolean(stack.popDouble() == numbers[code[pc++]]);
+                    break;
+                case OP_GE_NUM:
+                    stack.pushBoolean(stack.popDouble() >= numbers[code[pc++]]);
+                    break;
+                case OP_GREATER_NUM:
+                    stack.pushBoolean(stack.popDouble() > numbers[code[pc++]]);
+                    break;
+                case OP_SQUARE:
+                    Arithmetic.square(stack);
+                    break;
+                case OP_NIP:
+                    need(stack, 2);
+                    stack.swap();
+                    stack.drop();
+                    break;
+                case OP_EXIT:
+                    toInnermostLoop(terp, loop_base, true);
+                    pc = code.length;
+                    break;
+                case OP_RESTART:
+                    if (toInnermostLoop(terp, loop_base, false)) {
+                        pc = code.length;
+                    } else {
+                        pc = 0;
+                        terp.tick(code.length + 1);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Bad opcode " + code[pc - 1]);
+            }
+            if (callee != null) {
+                int entered = enter(callee, terp);
+                if (entered == ENTERED) {
+                    if (pc < code.length) {
+                        terp.pushReturn(block, pc);
+                    } // Else a tail call: the block is done with.
+                    block = callee;
+                    code = callee.code;
+                    numbers = callee.numbers;
+                    integers = callee.integers;
+                    constants = callee.constants;
+                    pc = 0;
+                } else if (entered == BROKE && toInnermostLoop(terp, loop_base, true)) {
+                    pc = code.length;
+                }
+            }
+        }
+    }
+
+    // The dispatch loop for verified blocks: the stack is known to hold
+    // enough items and to have room for all pushes, so only operand types
+    // are checked. The stack pointer and arrays are kept in locals; there
+    // are no calls, so the stack only needs its size written back. Returns
+    // true if the block was left with ?BREAK.
+    private boolean executeVerified(Scratch terp, DataStack stack) {
+        final int[] code = this.code;
+        final long[] integers = this.integers;
+        byte[] tags = stack.tags;
+        double[] values = stack.numbers;
+        long[] bits = stack.longs;
+        Object[] objects = stack.objects;
+        int sp = stack.size;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case OP_NUMBER:
+                    tags[sp] = DataStack.NUMBER;
+                    values[sp++] = numbers[code[pc++]];
+                    break;
+                case OP_INTEGER:
+                    tags[sp] = DataStack.INTEGER;
+                    bits[sp++] = integers[code[pc++]];
+                    break;
+                case OP_OBJECT:
+                    tags[sp] = DataStack.OBJECT;
+                    objects[sp++] = constants[code[pc++]];
+                    break;
+                case OP_TRUE:
+                    tags[sp] = DataStack.BOOLEAN;
+                    bits[sp++] = 1;
+                    break;
+                case OP_FALSE:
+                    tags[sp] = DataStack.BOOLEAN;
+                    bits[sp++] = 0;
+                    break;
+                case OP_ADD:
+                    if (tags[sp - 1] == DataStack.INTEGER && tags[sp - 2] == DataStack.INTEGER) {
+                        long x = bits[sp - 2];
+                        long y = bits[sp - 1];
+                        long r = x + y;
+                        if (!Arithmetic.addOverflows(x, y, r)) {
+                            bits[--sp - 1] = r;
+                            break;
+                        }
+                    } else if (tags[sp - 1] == DataStack.NUMBER && tags[sp - 2] == DataStack.NUMBER) {
+                        values[sp - 2] = values[sp - 2] + values[sp - 1];
+                        sp--;
+                        break;
+                    }
+                    sp = arith(stack, sp, OP_ADD);
+                    break;
+                case OP_SUB:
+                    if (tags[sp - 1] == DataStack.INTEGER && tags[sp - 2] == DataStack.INTEGER) {
+                        long x = bits[sp - 2];
+                        long y = bits[sp - 1];
+                        long r = x - y;
+                        if (!Arithmetic.subOverflows(x, y, r)) {
+                            bits[--sp - 1] = r;
+                            break;
+                        }
+                    } else if (tags[sp - 1] == DataStack.NUMBER && tags[sp - 2] == DataStack.NUMBER) {
+                        values[sp - 2] = values[sp - 2] - values[sp - 1];
+                        sp--;
+                        break;
+                    }
+                    sp = arith(stack, sp, OP_SUB);
+                    break;
+                case OP_MUL:
+                    if (tags[sp - 1] == DataStack.INTEGER && tags[sp - 2] == DataStack.INTEGER) {
+                        long x = bits[sp - 2];
+                        long y = bits[sp - 1];
+                        long r = x * y;
+                        if (!Arithmetic.mulOverflows(x, y, r)) {
+                            bits[--sp - 1] = r;
+                            break;
+                        }
+                    } else if (tags[sp - 1] == DataStack.NUMBER && tags[sp - 2] == DataStack.NUMBER) {
+                        values[sp - 2] = values[sp - 2] * values[sp - 1];
+                        sp--;
+                        break;
+                    }
+                    sp = arith(stack, sp, OP_MUL);
+                    break;
+                case OP_DIV:
+                    if (tags[sp - 1] == DataStack.NUMBER && tags[sp - 2] == DataStack.NUMBER) {
+                        values[sp - 2] = values[sp - 2] / values[sp - 1];
+                        sp--;
+                        break;
+                    }
+                    sp = arith(stack, sp, OP_DIV);
+                    break;
+                case OP_MOD:
+                    if (tags[sp - 1] == DataStack.INTEGER && tags[sp - 2] == DataStack.INTEGER && bits[sp - 1] != 0) {
+                        bits[sp - 2] = Arithmetic.mod(bits[sp - 2], bits[sp - 1]);
+                        sp--;
+                        break;
+                    }
+                    sp = arith(stack, sp, OP_MOD); // Fails on division by zero.
+                    break;
+                case OP_SQRT:
+                    number(stack, sp);
+                    values[sp - 1] = Math.sqrt(values[sp - 1]);
+                    break;
+                case OP_DUP:
+                    stack.size = sp;
+                    stack.copy(sp - 1);
+                    sp++;
+                    break;
+                case OP_DROP:
+                    objects[--sp] = null;
+                    break;
+                case OP_SWAP:
+                    stack.exchange(sp - 1, sp - 2);
+                    break;
+                case OP_OVER:
+                    stack.size = sp;
+                    stack.copy(sp - 2);
+                    sp++;
+                    break;
+                case OP_ROT:
+                    stack.exchange(sp - 3, sp - 2);
+                    stack.exchange(sp - 2, sp - 1);
+                    break;
+                case OP_STORE: {
+                    CodeVarRef reference = variable(stack, sp);
+                    sp -= 2;
+                    reference.tag = tags[sp];
+                    reference.number = values[sp];
+                    reference.bits = bits[sp];
+                    reference.value = objects[sp];
+                    objects[sp] = null;
+                    objects[sp + 1] = null;
+                    break;
+                }
+                case OP_FETCH: {
+                    CodeVarRef reference = variable(stack, sp);
+                    tags[sp - 1] = reference.tag;
+                    values[sp - 1] = reference.number;
+                    bits[sp - 1] = reference.bits;
+                    objects[sp - 1] = reference.value;
+                    break;
+                }
+                case OP_AND:
+                    booleans(stack, sp);
+                    bits[sp - 2] = bits[sp - 2] & bits[sp - 1];
+                    sp--;
+                    break;
+                case OP_OR:
+                    booleans(stack, sp);
+                    bits[sp - 2] = bits[sp - 2] | bits[sp - 1];
+                    sp--;
+                    break;
+                case OP_NOT:
+                    if (tags[sp - 1] != DataStack.BOOLEAN) {
+                        throw fail(stack, sp, "Boolean expected");
+                    }
+                    bits[sp - 1] ^= 1;
+                    break;
+                case OP_LESS:
+                case OP_LE:
+                case OP_EQUAL:
+                case OP_GE:
+                case OP_GREATER: {
+                    int opcode = code[pc - 1];
+                    if (tags[sp - 1] == DataStack.INTEGER && tags[sp - 2] == DataStack.INTEGER) {
+                        long y = bits[--sp];
+                        tags[sp - 1] = DataStack.BOOLEAN;
+                        bits[sp - 1] = Arithmetic.compare(opcode, Long.compare(bits[sp - 1], y)) ? 1 : 0;
+                    } else if (tags[sp - 1] == DataStack.NUMBER && tags[sp - 2] == DataStack.NUMBER) {
+                        sp--;
+                        tags[sp - 1] = DataStack.BOOLEAN;
+                        bits[sp - 1] = Arithmetic.compare(opcode, values[sp - 1], values[sp]) ? 1 : 0;
+                    } else {
+                        stack.size = sp;
+                        Arithmetic.compare(stack, opcode);
+                        sp = stack.size;
+                    }
+                    break;
+                }
+                case OP_BREAK:
+                    if (tags[sp - 1] != DataStack.BOOLEAN) {
+                        throw fail(stack, sp, "Boolean expected");
+                    }
+                    if (bits[--sp] != 0) {
+                        stack.size = sp;
+                        return true;
+                    }
+                    break;
+                case OP_FETCH_VAR: {
+                    CodeVarRef reference = (CodeVarRef)constants[code[pc++]];
+                    tags[sp] = reference.tag;
+                    values[sp] = reference.number;
+                    bits[sp] = reference.bits;
+                    objects[sp++] = reference.value;
+                    break;
+                }
+                case OP_STORE_VAR: {
+                    CodeVarRef reference = (CodeVarRef)constants[code[pc++]];
+                    sp--;
+                    reference.tag = tags[sp];
+                    reference.number = values[sp];
+                    reference.bits = bits[sp];
+                    reference.value = objects[sp];
+                    objects[sp] = null;
+                    break;
+                }
+                case OP_ADD_VAR: {
+                    CodeVarRef reference = (CodeVarRef)constants[code[pc++]];
+                    if (reference.tag != DataStack.NUMBER) {
+                        stack.size = sp;
+                        Arithmetic.addTo(reference, numbers[code[pc++]]);
+                        break;
+                    }
+                    reference.number += numbers[code[pc++]];
+                    break;
+                }
+                case OP_ADD_VAR_INT: {
+                    CodeVarRef reference = (CodeVarRef)constants[code[pc++]];
+                    long amount = integers[code[pc++]];
+                    long sum = reference.bits + amount;
+                    if (reference.tag != DataStack.INTEGER || Arithmetic.addOverflows(reference.bits, amount, sum)) {
+                        stack.size = sp;
+                        Arithmetic.addTo(reference, amount);
+                        break;
+                    }
+                    reference.bits = sum;
+                    break;
+                }
+                case OP_ADD_NUM:
+                    number(stack, sp);
+                    values[sp - 1] += numbers[code[pc++]];
+                    break;
+                case OP_ADD_INT: {
+                    long y = integers[code[pc++]];
+                    if (tags[sp - 1] == DataStack.INTEGER) {
+                        long x = bits[sp - 1];
+                        long r = x + y;
+                        if (!Arithmetic.addOverflows(x, y, r)) {
+                            bits[sp - 1] = r;
+                            break;
+                        }
+                    }
+                    // The item pushed is the one + pops: the stack has room.
+                    tags[sp] = DataStack.INTEGER;
+                    bits[sp] = y;
+                    sp = arith(stack, sp + 1, OP_ADD);
+                    break;
+                }
+                case OP_LESS_INT:
+                case OP_LE_INT:
+                case OP_EQUAL_INT:
+                case OP_GE_INT:
+                case OP_GREATER_INT: {
+                    int opcode = OP_LESS + (code[pc - 1] - OP_LESS_INT);
+                    long y = integers[code[pc++]];
+                    if (tags[sp - 1] == DataStack.INTEGER) {
+                        tags[sp - 1] = DataStack.BOOLEAN;
+                        bits[sp - 1] = Arithmetic.compare(opcode, Long.compare(bits[sp - 1], y)) ? 1 : 0;
+                        break;
+                    }
+                    tags[sp] = DataStack.INTEGER;
+                    bits[sp] = y;
+                    stack.size = sp + 1;
+                    Arithmetic.compare(stack, opcode);
+                    sp = stack.size;
+                    break;
+                }
+                case OP_LESS_NUM:
+                    number(stack, sp);
+                    tags[sp - 1] = DataStack.BOOLEAN;
+                    bits[sp - 1] = values[sp - 1] < numbers[code[pc++]] ? 1 : 0;
+                    break;
+                case OP_LE_NUM:
+                    number(stack, sp);
+                    tags[sp - 1] = DataStack.BOOLEAN;
+                    bits[sp - 1] = values[sp - 1] <= numbers[code[pc++]] ? 1 : 0;
+                    break;
+                case OP_EQUAL_NUM:
+                    number(stack, sp);
+                    tags[sp - 1] = DataStack.BOOLEAN;
+                    bits[sp - 1] = values[sp - 1] == numbers[code[pc++]] ? 1 : 0;
+                    break;
+                case OP_GE_NUM:
+                    number(stack, sp);
+                    tags[sp - 1] = DataStack.BOOLEAN;
+                    bits[sp - 1] = values[sp - 1] >= numbers[code[pc++]] ? 1 : 0;
+                    break;
+                case OP_GREATER_NUM:
+                    number(stack, sp);
+                    tags[sp - 1] = DataStack.BOOLEAN;
+                    bits[sp - 1] = values[sp - 1] > numbers[code[pc++]] ? 1 : 0;
+                    break;
+                case OP_SQUARE:
+                    if (tags[sp - 1] == DataStack.NUMBER) {
+                        values[sp - 1] = values[sp - 1] * values[sp - 1];
+                        break;
+                    }
+                    stack.size = sp;
+                    Arithmetic.square(stack);
+                    break;
+                case OP_NIP:
+                    stack.exchange(sp - 1, sp - 2);
+                    objects[--sp] = null;
+                    break;
+                case OP_EXIT:
+                    stack.size = sp;
+                    return true;
+                default:
+                    throw new IllegalStateException("Bad opcode " + code[pc - 1]);
+            }
+        }
+        stack.size = sp;
+        return false;
+    }
+
+    // Makes the item on top a double, for words that give one.
+    private static void number(DataStack stack, int sp) {
+        if (stack.tags[sp - 1] != DataStack.NUMBER) {
+            stack.size = sp;
+            stack.pushDouble(stack.popDouble());
+        }
+    }
+
+    // The slow path of an arithmetic opcode: returns the new stack pointer.
+    private static int arith(DataStack stack, int sp, int opcode) {
+        stack.size = sp;
+        Arithmetic.arith(stack, opcode);
+        return stack.size;
+    }
+
+    private static void booleans(DataStack stack, int sp) {
+        if (stack.tags[sp - 1] != DataStack.BOOLEAN || stack.tags[sp - 2] != DataStack.BOOLEAN) {
+            throw fail(stack, sp, "Boolean expected");
+        }
+    }
+
+    private static CodeVarRef variable(DataStack stack, int sp) {
+        Object obj = stack.objects[sp - 1];
+        if (!(obj instanceof CodeVarRef)) {
+            throw fail(stack, sp, "Variable expected");
+        }
+        return (CodeVarRef)obj;
+    }
+
+    private static RuntimeException fail(DataStack stack, int sp, String message) {
+        stack.size = sp;
+        return new RuntimeException(message);
+    }
+
+    private static void need(DataStack stack, int count) {
+        if (stack.size() < count) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+    }
+
+    private static class Assembler {
+        private int[] code = new int[16];
+        private int length;
+        private double[] numbers = new double[4];
+        private int number_count;
+        private long[] integers = new long[4];
+        private int integer_count;
+        private final List<Object> constants = new ArrayList<>();
+        private final HashMap<Long, Integer> number_index = new HashMap<>();
+        private final HashMap<Long, Integer> integer_index = new HashMap<>();
+        private final IdentityHashMap<Object, Integer> constant_index = new IdentityHashMap<>();
+
+        void emitItem(Object item) {
+            if (item instanceof Double) {
+                emitNumber((Double)item);
+            } else if (item instanceof Long) {
+                emitInteger((Long)item);
+            } else if (item instanceof Boolean) {
+                emit((Boolean)item ? OP_TRUE : OP_FALSE);
+            } else if (item instanceof CodeConstRef) {
+                // Its value is compiled in; see bind.
+                emitItem(((CodeConstRef)item).getValue());
+            } else if (item instanceof CodeVarRef) {
+                emit(OP_OBJECT, constant(item));
+            } else if (item instanceof Code) {
+                Integer opcode = opcodes.get(item.getClass());
+                if (opcode != null) {
+                    emit(opcode);
+                } else {
+                    emit(OP_CALL, constant(item));
+                }
+            } else {
+                emit(OP_OBJECT, constant(item));
+            }
+        }
+
+        private void emitNumber(double value) {
+            Long bits = Double.doubleToRawLongBits(value);
+            Integer index = number_index.get(bits);
+            if (index == null) {
+                if (number_count == numbers.length) {
+                    double[] new_numbers = new double[number_count * 2];
+                    System.arraycopy(numbers, 0, new_numbers, 0, number_count);
+                    numbers = new_numbers;
+                }
+                index = number_count++;
+                numbers[index] = value;
+                number_index.put(bits, index);
+            }
+            emit(OP_NUMBER, index);
+        }
+
+        private void emitInteger(long value) {
+            Integer index = integer_index.get(value);
+            if (index == null) {
+                if (integer_count == integers.length) {
+                    long[] new_integers = new long[integer_count * 2];
+                    System.arraycopy(integers, 0, new_integers, 0, integer_count);
+                    integers = new_integers;
+                }
+                index = integer_count++;
+                integers[index] = value;
+                integer_index.put(value, index);
+            }
+            emit(OP_INTEGER, index);
+        }
+
+        private int constant(Object value) {
+            Integer index = constant_index.get(value);
+            if (index == null) {
+                index = constants.size();
+                constants.add(value);
+                constant_index.put(value, index);
+            }
+            return index;
+        }
+
+        private void emit(int opcode) {
+            if (length == code.length) {
+                int[] new_code = new int[length * 2];
+                System.arraycopy(code, 0, new_code, 0, length);
+                code = new_code;
+            }
+            code[length++] = opcode;
+        }
+
+        private void emit(int opcode, int operand) {
+            emit(opcode);
+            emit(operand);
+        }
+
+        Block finish() {
+            int[] final_code = new int[length];
+            System.arraycopy(code, 0, final_code, 0, length);
+            double[] final_numbers = new double[number_count];
+            System.arraycopy(numbers, 0, final_numbers, 0, number_count);
+            long[] final_integers = new long[integer_count];
+            System.arraycopy(integers, 0, final_integers, 0, integer_count);
+            return new Block(final_code, final_numbers, final_integers, constants.toArray());
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package scratch.lang;
+
+abstract class Code {
+    public boolean immediate;
+
+    public abstract void call(Scratch terp);
+}
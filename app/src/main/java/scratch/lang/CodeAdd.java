@@ -0,0 +1,11 @@
+package scratch.lang;
+
+class CodeAdd extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        Arithmetic.add(terp.stack);
+    }
+}
@@ -0,0 +1,13 @@
+package scratch.lang;
+
+class CodeAnd extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        boolean term2 = terp.stack.popBoolean();
+        boolean term1 = terp.stack.popBoolean();
+        terp.stack.pushBoolean(term1 && term2);
+    }
+}
@@ -0,0 +1,20 @@
+package scratch.lang;
+
+// ( list list -- list ) or ( string string -- string )
+class CodeAppend extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        if (terp.stack.peek() instanceof CharSequence) {
+            ScratchString tail = terp.stack.popString();
+            ScratchString head = terp.stack.popString();
+            terp.stack.pushObject(head.append(tail));
+            return;
+        }
+        ScratchList tail = terp.stack.popList();
+        ScratchList head = terp.stack.popList();
+        terp.stack.pushObject(head.append(tail));
+    }
+}
@@ -0,0 +1,8 @@
+package scratch.lang;
+
+class CodeCCComment extends CodeImmediate {
+    @Override
+    public void call(Scratch terp) {
+        terp.lexer.skipUpTo('\n');
+    }
+}
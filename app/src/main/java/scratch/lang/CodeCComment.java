@@ -0,0 +1,12 @@
+package scratch.lang;
+
+class CodeCComment extends CodeImmediate {
+    @Override
+    public void call(Scratch terp) {
+        do {
+            if (!terp.lexer.next()) {
+                throw new RuntimeException("Unexpected end of input");
+            }
+        } while (!terp.lexer.tokenEndsWith("*/"));
+    }
+}
@@ -0,0 +1,51 @@
+package scratch.lang;
+
+// A word defined with DEF, VAR or CONST, named in compiled code (see
+// Scratch.reference). Blocks look their names up as they are entered (see
+// Block.bind), so they run the latest definitions, and the lookup is
+// cached here for as long as the interpreter's bindings stay the same: a
+// define or publish anywhere makes every name be looked up again, once.
+// The cache is replaced whole, so interpreters running the same code on
+// other threads can share it safely, if not always with a hit.
+class CodeCall extends Code {
+    final char[] name; // Folded, as in SymbolTable.
+    private Cache cache;
+
+    CodeCall(char[] name) {
+        this.name = name;
+    }
+
+    private static final class Cache {
+        final Scratch.Bindings bindings;
+        final Code code;
+
+        Cache(Scratch.Bindings bindings, Code code) {
+            this.bindings = bindings;
+            this.code = code;
+        }
+    }
+
+    // The definition the word has for TERP.
+    Code code(Scratch terp) {
+        Scratch.Bindings bindings = terp.bindings();
+        Cache cache = this.cache;
+        if (cache == null || cache.bindings != bindings) {
+            SymbolTable.Entry entry = terp.find(name, 0, name.length);
+            if (entry == null) {
+                throw new RuntimeException("Unknown word: [" + this + "]");
+            }
+            cache = this.cache = new Cache(bindings, entry.code());
+        }
+        return cache.code;
+    }
+
+    @Override
+    public void call(Scratch terp) {
+        code(terp).call(terp);
+    }
+
+    @Override
+    public String toString() {
+        return new String(name);
+    }
+}
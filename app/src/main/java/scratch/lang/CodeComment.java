@@ -0,0 +1,8 @@
+package scratch.lang;
+
+class CodeComment extends CodeImmediate {
+    @Override
+    public void call(Scratch terp) {
+        terp.lexer.skipUpTo(')');
+    }
+}
@@ -0,0 +1,15 @@
+package scratch.lang;
+
+// ( string string -- n ) Negative, zero or positive as the first string
+// sorts before, with or after the second, by char values.
+class CodeCompare extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        ScratchString second = terp.stack.popString();
+        ScratchString first = terp.stack.popString();
+        terp.stack.pushLong(Integer.signum(first.compareTo(second)));
+    }
+}
@@ -0,0 +1,17 @@
+package scratch.lang;
+
+// Read next word from input and make it a constant with TOS as value.
+class CodeConst extends CodeImmediate {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        String const_name = terp.lexer.nextWord();
+        if (const_name == null) {
+            throw new RuntimeException("Unexpected end of input");
+        }
+        Object const_value = terp.stack.pop();
+        terp.define(const_name, new CodeConstRef(const_value));
+    }
+}
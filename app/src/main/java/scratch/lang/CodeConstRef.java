@@ -0,0 +1,18 @@
+package scratch.lang;
+
+class CodeConstRef extends Code {
+    private final Object value;
+
+    public CodeConstRef(Object value) {
+        this.value = value;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    @Override
+    public void call(Scratch terp) {
+        terp.stack.push(value);
+    }
+}
@@ -0,0 +1,15 @@
+package scratch.lang;
+
+// Go on with the next round of the innermost loop if TOS is true.
+class CodeContinue extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        boolean cond = terp.stack.popBoolean();
+        if (cond) {
+            throw new LoopFrame.Transfer(terp.loop_depth - 1, false);
+        }
+    }
+}
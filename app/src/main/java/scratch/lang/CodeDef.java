@@ -0,0 +1,14 @@
+package scratch.lang;
+
+class CodeDef extends CodeImmediate {
+    @Override
+    public void call(Scratch terp) {
+        String new_word = terp.lexer.nextWord();
+        if (new_word == null) {
+            throw new RuntimeException("Unexpected end of input");
+        }
+        terp.latest = new_word;
+        terp.defining = new CodeWordRef(null);
+        terp.startCompiling();
+    }
+}
@@ -0,0 +1,12 @@
+package scratch.lang;
+
+// Throw away the TOS -- the opposite of DUP.
+class CodeDrop extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        terp.stack.drop();
+    }
+}
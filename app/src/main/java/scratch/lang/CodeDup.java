@@ -0,0 +1,12 @@
+package scratch.lang;
+
+// Duplicate the top of stack (TOS).
+class CodeDup extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        terp.stack.dup();
+    }
+}
@@ -0,0 +1,14 @@
+package scratch.lang;
+
+class CodeEnd extends CodeImmediate {
+    @Override
+    public void call(Scratch terp) {
+        Object[] items = terp.stack.asList().toArray();
+        terp.stack.clear(); // Clear compile_buffer.
+        terp.stopCompiling();
+        CodeWordRef word = terp.defining;
+        terp.defining = null;
+        word.block = Block.compile(items);
+        terp.define(terp.latest, word);
+    }
+}
@@ -0,0 +1,8 @@
+package scratch.lang;
+
+class CodeFalse extends Code {
+    @Override
+    public void call(Scratch terp) {
+        terp.stack.pushBoolean(false);
+    }
+}
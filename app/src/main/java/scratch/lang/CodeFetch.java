@@ -0,0 +1,13 @@
+package scratch.lang;
+
+// Replace reference to variable on TOS with its value.
+class CodeFetch extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        CodeVarRef reference = terp.stack.popVar();
+        terp.stack.pushFrom(reference);
+    }
+}
@@ -0,0 +1,14 @@
+package scratch.lang;
+
+// ( list [code] -- list ) The items for which CODE leaves true.
+class CodeFilter extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        ScratchList code = terp.stack.popList();
+        ScratchList list = terp.stack.popList();
+        terp.stack.pushObject(list.filter(terp, code.block(terp)));
+    }
+}
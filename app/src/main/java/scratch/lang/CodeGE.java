@@ -0,0 +1,11 @@
+package scratch.lang;
+
+class CodeGE extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        Arithmetic.compare(terp.stack, Block.OP_GE);
+    }
+}
@@ -0,0 +1,18 @@
+package scratch.lang;
+
+class CodeIfFalse extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        Object code = terp.stack.pop();
+        boolean cond = terp.stack.popBoolean();
+        if (!(code instanceof ScratchList)) {
+            throw new RuntimeException("List expected");
+        }
+        if (!cond) {
+            ((ScratchList)code).block(terp).execute(terp);
+        }
+    }
+}
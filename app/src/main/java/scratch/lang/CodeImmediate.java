@@ -0,0 +1,7 @@
+package scratch.lang;
+
+abstract class CodeImmediate extends Code {
+    public CodeImmediate() {
+        immediate = true;
+    }
+}
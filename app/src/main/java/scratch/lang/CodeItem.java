@@ -0,0 +1,19 @@
+package scratch.lang;
+
+class CodeItem extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        double index = terp.stack.popDouble();
+        Object obj = terp.stack.pop();
+        if (obj instanceof ScratchList) {
+            ((ScratchList)obj).push(terp.stack, (int)index);
+        } else if (obj instanceof ScratchArray) {
+            terp.stack.pushDouble(((ScratchArray)obj).get((int)index));
+        } else {
+            throw new RuntimeException("Object expected");
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package scratch.lang;
+
+class CodeLength extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        Object temp = terp.stack.pop();
+        if (temp instanceof ScratchArray) {
+            terp.stack.pushLong(((ScratchArray)temp).size());
+            return;
+        }
+        if (temp instanceof CharSequence) {
+            terp.stack.pushLong(((CharSequence)temp).length());
+            return;
+        }
+        if (!(temp instanceof ScratchList)) {
+            throw new RuntimeException("List expected");
+        }
+        terp.stack.pushLong(((ScratchList)temp).size());
+    }
+}
@@ -0,0 +1,26 @@
+package scratch.lang;
+
+class CodeList extends CodeImmediate {
+    @Override
+    public void call(Scratch terp) {
+        DataStack list = new DataStack();
+        DataStack old_stack = terp.stack;
+        terp.stack = list;
+        do {
+            if (!terp.lexer.next()) {
+                throw new RuntimeException("Unexpected end of input");
+            }
+            if (terp.lexer.tokenIs("]")) {
+                break;
+            }
+            Object obj = terp.compile(terp.lexer);
+            if ((obj instanceof Code) && ((Code)obj).immediate) {
+                terp.interpret(obj);
+            } else {
+                terp.stack.push(terp.reference(obj, terp.lexer));
+            }
+        } while (true);
+        terp.stack = old_stack;
+        terp.stack.pushObject(ScratchList.of(list, 0));
+    }
+}
@@ -0,0 +1,28 @@
+package scratch.lang;
+
+class CodeLoop extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        Object code = terp.stack.pop();
+        if (!(code instanceof ScratchList)) {
+            throw new RuntimeException("List expected");
+        }
+        Block code_block = ((ScratchList)code).block(terp);
+        int loop = terp.loop_depth;
+        terp.pushLoop(LoopFrame.JAVA, -1);
+        long iterations = 0;
+        try {
+            do {
+                iterations++;
+            } while (terp.runLoopBlock(code_block, loop));
+        } finally {
+            terp.loop_depth = loop;
+        }
+        if (terp.profiler != null) {
+            terp.profiler.iterations(this, iterations);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package scratch.lang;
+
+// ( list [code] -- list ) The list of what CODE leaves for each item.
+class CodeMap extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        ScratchList code = terp.stack.popList();
+        ScratchList list = terp.stack.popList();
+        terp.stack.pushObject(list.map(terp, code.block(terp)));
+    }
+}
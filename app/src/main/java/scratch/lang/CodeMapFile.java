@@ -0,0 +1,23 @@
+package scratch.lang;
+
+import java.io.File;
+import java.io.IOException;
+
+// ( path -- array ) Maps a file of doubles into memory (see ScratchArray).
+class CodeMapFile extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        Object path = terp.stack.pop();
+        if (!(path instanceof CharSequence)) {
+            throw new RuntimeException("String expected");
+        }
+        try {
+            terp.stack.pushObject(ScratchArray.map(new File(path.toString())));
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot map " + path + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package scratch.lang;
+
+// ( list -- max )
+class CodeMax extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        Object obj = terp.stack.pop();
+        if (obj instanceof ScratchArray) {
+            terp.stack.pushDouble(((ScratchArray)obj).max());
+        } else if (obj instanceof ScratchList) {
+            ((ScratchList)obj).max(terp.stack);
+        } else {
+            throw new RuntimeException("List expected");
+        }
+    }
+}
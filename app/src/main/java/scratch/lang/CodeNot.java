@@ -0,0 +1,12 @@
+package scratch.lang;
+
+class CodeNot extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        boolean term = terp.stack.popBoolean();
+        terp.stack.pushBoolean(!term);
+    }
+}
@@ -0,0 +1,12 @@
+package scratch.lang;
+
+// Copy 2OS on top of stack.
+class CodeOver extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        terp.stack.over();
+    }
+}
@@ -0,0 +1,14 @@
+package scratch.lang;
+
+// ( list [code] -- list ) MAP, on many threads if CODE is pure.
+class CodePMap extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        ScratchList code = terp.stack.popList();
+        ScratchList list = terp.stack.popList();
+        terp.stack.pushObject(Parallel.map(terp, list, code.block(terp)));
+    }
+}
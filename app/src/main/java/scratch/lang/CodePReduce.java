@@ -0,0 +1,16 @@
+package scratch.lang;
+
+// ( list initial [code] -- result ) REDUCE, on many threads if CODE is
+// pure. It should be associative, as + and * are.
+class CodePReduce extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 3) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        ScratchList code = terp.stack.popList();
+        Object initial = terp.stack.pop();
+        ScratchList list = terp.stack.popList();
+        Parallel.reduce(terp, list, initial, code.block(terp));
+    }
+}
@@ -0,0 +1,21 @@
+package scratch.lang;
+
+// Print and discard top of stack.
+class CodePrint extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        OutputSink out = terp.getOutput();
+        byte tag = terp.stack.peekTag();
+        if (tag == DataStack.NUMBER) {
+            out.print(terp.stack.popDouble());
+        } else if (tag == DataStack.INTEGER) {
+            out.print(terp.stack.longs[--terp.stack.size]);
+        } else {
+            out.print(terp.stack.pop());
+        }
+        out.newline();
+    }
+}
@@ -0,0 +1,26 @@
+package scratch.lang;
+
+// Print out the contents of the stack.
+class CodePstack extends Code {
+    @Override
+    public void call(Scratch terp) {
+        // As DataStack.toString, without boxing the numbers.
+        OutputSink out = terp.getOutput();
+        DataStack stack = terp.stack;
+        out.write('[');
+        for (int i = 0; i < stack.size; i++) {
+            if (i > 0) {
+                out.write(", ");
+            }
+            if (stack.tags[i] == DataStack.NUMBER) {
+                out.print(stack.numbers[i]);
+            } else if (stack.tags[i] == DataStack.INTEGER) {
+                out.print(stack.longs[i]);
+            } else {
+                out.print(stack.get(i));
+            }
+        }
+        out.write(']');
+        out.newline();
+    }
+}
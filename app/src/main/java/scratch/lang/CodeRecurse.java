@@ -0,0 +1,13 @@
+package scratch.lang;
+
+// Compile a call to the word being defined. (Inside its own definition a
+// word's name still means the previous definition, if any.)
+class CodeRecurse extends CodeImmediate {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.defining == null) {
+            throw new RuntimeException("RECURSE outside a definition");
+        }
+        terp.stack.push(terp.defining);
+    }
+}
@@ -0,0 +1,15 @@
+package scratch.lang;
+
+// ( list initial [code] -- result ) Folds the items into INITIAL with CODE.
+class CodeReduce extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 3) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        ScratchList code = terp.stack.popList();
+        Object initial = terp.stack.pop();
+        ScratchList list = terp.stack.popList();
+        list.reduce(terp, initial, code.block(terp));
+    }
+}
@@ -0,0 +1,12 @@
+package scratch.lang;
+
+// Bring the 3rd item on stack to the top.
+class CodeRot extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 3) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        terp.stack.rot();
+    }
+}
@@ -0,0 +1,15 @@
+package scratch.lang;
+
+class CodeRun extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        Object temp = terp.stack.pop();
+        if (!(temp instanceof ScratchList)) {
+            throw new RuntimeException("List expected");
+        }
+        ((ScratchList)temp).block(terp).execute(terp);
+    }
+}
@@ -0,0 +1,25 @@
+package scratch.lang;
+
+// Read next word from input and print its definition as it will run,
+// after peephole optimization.
+class CodeSee extends CodeImmediate {
+    @Override
+    public void call(Scratch terp) {
+        String name = terp.lexer.nextWord();
+        if (name == null) {
+            throw new RuntimeException("Unexpected end of input");
+        }
+        char[] chars = name.toCharArray();
+        SymbolTable.Entry entry = terp.find(chars, 0, chars.length);
+        if (entry == null) {
+            throw new RuntimeException("Unknown word: [" + name.toUpperCase() + "]");
+        }
+        if (!(entry.code() instanceof CodeWordRef)) {
+            throw new RuntimeException("Not a compiled word: [" + name.toUpperCase() + "]");
+        }
+        Block block = ((CodeWordRef)entry.code()).block.bind(terp);
+        OutputSink out = terp.getOutput();
+        out.write(": " + entry + " " + block.disassemble(terp) + " ;");
+        out.newline();
+    }
+}
@@ -0,0 +1,24 @@
+package scratch.lang;
+
+// ( list from to -- list ) Items FROM up to, but not including, TO. For
+// an array, a view of the same items.
+class CodeSlice extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 3) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        double to = terp.stack.popDouble();
+        double from = terp.stack.popDouble();
+        Object obj = terp.stack.pop();
+        if (obj instanceof ScratchArray) {
+            terp.stack.pushObject(((ScratchArray)obj).slice((int)from, (int)to));
+        } else if (obj instanceof CharSequence) {
+            terp.stack.pushObject(ScratchString.of(obj).slice((int)from, (int)to));
+        } else if (obj instanceof ScratchList) {
+            terp.stack.pushObject(((ScratchList)obj).slice((int)from, (int)to));
+        } else {
+            throw new RuntimeException("List expected");
+        }
+    }
+}
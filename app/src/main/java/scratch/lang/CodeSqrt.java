@@ -0,0 +1,12 @@
+package scratch.lang;
+
+class CodeSqrt extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        double tos = terp.stack.popDouble();
+        terp.stack.pushDouble(Math.sqrt(tos));
+    }
+}
@@ -0,0 +1,13 @@
+package scratch.lang;
+
+// Store value of 2OS into variable given by TOS.
+class CodeStore extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        CodeVarRef reference = terp.stack.popVar();
+        terp.stack.popInto(reference);
+    }
+}
@@ -0,0 +1,18 @@
+package scratch.lang;
+
+// ( value array index -- ) Lists cannot be changed, so only for arrays.
+class CodeStoreItem extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 3) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        double index = terp.stack.popDouble();
+        Object obj = terp.stack.pop();
+        double value = terp.stack.popDouble();
+        if (!(obj instanceof ScratchArray)) {
+            throw new RuntimeException("Array expected");
+        }
+        ((ScratchArray)obj).set((int)index, value);
+    }
+}
@@ -0,0 +1,15 @@
+package scratch.lang;
+
+// ( string string -- flag ) Whether the strings have the same chars; for
+// two literals, a single compare.
+class CodeStrEqual extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        ScratchString second = terp.stack.popString();
+        ScratchString first = terp.stack.popString();
+        terp.stack.pushBoolean(first.equals(second));
+    }
+}
@@ -0,0 +1,11 @@
+package scratch.lang;
+
+class CodeString extends CodeImmediate {
+    @Override
+    public void call(Scratch terp) {
+        if (!terp.lexer.nextSpanUpTo('"')) {
+            throw new RuntimeException("Unexpected end of input");
+        }
+        terp.stack.pushObject(ScratchString.intern(terp.lexer.buf, terp.lexer.start, terp.lexer.length));
+    }
+}
@@ -0,0 +1,19 @@
+package scratch.lang;
+
+// ( list -- sum )
+class CodeSum extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        Object obj = terp.stack.pop();
+        if (obj instanceof ScratchArray) {
+            terp.stack.pushDouble(((ScratchArray)obj).sum());
+        } else if (obj instanceof ScratchList) {
+            ((ScratchList)obj).sum(terp.stack);
+        } else {
+            throw new RuntimeException("List expected");
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package scratch.lang;
+
+// Exchange positions of TOS and second item on stack (2OS).
+class CodeSwap extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        terp.stack.swap();
+    }
+}
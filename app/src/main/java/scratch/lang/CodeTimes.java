@@ -0,0 +1,32 @@
+package scratch.lang;
+
+class CodeTimes extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        long count = terp.stack.popCount();
+        Object code = terp.stack.pop();
+        if (!(code instanceof ScratchList)) {
+            throw new RuntimeException("List expected");
+        }
+        Block block = ((ScratchList)code).block(terp);
+        int loop = terp.loop_depth;
+        terp.pushLoop(LoopFrame.JAVA, -1);
+        long i = 0;
+        try {
+            while (i < count) {
+                i++;
+                if (!terp.runLoopBlock(block, loop)) {
+                    break;
+                }
+            }
+        } finally {
+            terp.loop_depth = loop;
+        }
+        if (terp.profiler != null) {
+            terp.profiler.iterations(this, i);
+        }
+    }
+}
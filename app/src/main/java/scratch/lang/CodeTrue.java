@@ -0,0 +1,8 @@
+package scratch.lang;
+
+class CodeTrue extends Code {
+    @Override
+    public void call(Scratch terp) {
+        terp.stack.pushBoolean(true);
+    }
+}
@@ -0,0 +1,10 @@
+package scratch.lang;
+
+// ( x y -- list ) + item by item; either side may be a number (see
+// Vectors).
+class CodeVAdd extends Code {
+    @Override
+    public void call(Scratch terp) {
+        Vectors.arith(terp.stack, Block.OP_ADD);
+    }
+}
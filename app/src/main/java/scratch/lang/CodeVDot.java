@@ -0,0 +1,9 @@
+package scratch.lang;
+
+// ( x y -- dot ) The sum of the products of the items of two lists.
+class CodeVDot extends Code {
+    @Override
+    public void call(Scratch terp) {
+        Vectors.dot(terp.stack);
+    }
+}
@@ -0,0 +1,9 @@
+package scratch.lang;
+
+// ( x y -- mask ) < item by item, a list of booleans.
+class CodeVLess extends Code {
+    @Override
+    public void call(Scratch terp) {
+        Vectors.compare(terp.stack, Block.OP_LESS);
+    }
+}
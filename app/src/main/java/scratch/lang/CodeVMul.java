@@ -0,0 +1,9 @@
+package scratch.lang;
+
+// ( x y -- list ) * item by item.
+class CodeVMul extends Code {
+    @Override
+    public void call(Scratch terp) {
+        Vectors.arith(terp.stack, Block.OP_MUL);
+    }
+}
@@ -0,0 +1,9 @@
+package scratch.lang;
+
+// ( x -- list ) SQRT of each item.
+class CodeVSqrt extends Code {
+    @Override
+    public void call(Scratch terp) {
+        Vectors.sqrt(terp.stack);
+    }
+}
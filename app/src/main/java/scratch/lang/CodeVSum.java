@@ -0,0 +1,9 @@
+package scratch.lang;
+
+// ( x -- sum ) SUM, in partial sums that can run side by side.
+class CodeVSum extends Code {
+    @Override
+    public void call(Scratch terp) {
+        Vectors.sum(terp.stack);
+    }
+}
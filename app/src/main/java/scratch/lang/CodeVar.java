@@ -0,0 +1,13 @@
+package scratch.lang;
+
+// Read next word from input and make it a variable.
+class CodeVar extends CodeImmediate {
+    @Override
+    public void call(Scratch terp) {
+        String var_name = terp.lexer.nextWord();
+        if (var_name == null) {
+            throw new RuntimeException("Unexpected end of input");
+        }
+        terp.define(var_name, new CodeVarRef());
+    }
+}
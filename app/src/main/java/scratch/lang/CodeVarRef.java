@@ -0,0 +1,51 @@
+package scratch.lang;
+
+import java.math.BigInteger;
+
+// The value is held in the same tagged form as a data stack slot, so
+// storing and fetching numbers does not box them.
+class CodeVarRef extends Code {
+    byte tag = DataStack.OBJECT;
+    double number;
+    long bits;
+    Object value;
+
+    public Object getValue() {
+        switch (tag) {
+            case DataStack.NUMBER:
+                return number;
+            case DataStack.INTEGER:
+                return bits;
+            case DataStack.BOOLEAN:
+                return bits != 0;
+            default:
+                return value;
+        }
+    }
+
+    public void setValue(Object value) {
+        this.value = null;
+        if (value instanceof BigInteger) {
+            value = Arithmetic.normalize((BigInteger)value);
+        }
+        if (value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte) {
+            tag = DataStack.INTEGER;
+            bits = ((Number)value).longValue();
+        } else if (value instanceof Number && !(value instanceof BigInteger)) {
+            tag = DataStack.NUMBER;
+            number = ((Number)value).doubleValue();
+        } else if (value instanceof Boolean) {
+            tag = DataStack.BOOLEAN;
+            bits = (Boolean)value ? 1 : 0;
+        } else {
+            tag = DataStack.OBJECT;
+            this.value = value;
+        }
+    }
+
+    @Override
+    public void call(Scratch terp) {
+        terp.stack.pushObject(this);
+    }
+}
@@ -0,0 +1,43 @@
+package scratch.lang;
+
+class CodeWhile extends Code {
+    @Override
+    public void call(Scratch terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        Object code = terp.stack.pop();
+        Object cond = terp.stack.pop();
+        if (!(code instanceof ScratchList)) {
+            throw new RuntimeException("List expected");
+        }
+        if (!(cond instanceof ScratchList)) {
+            throw new RuntimeException("List expected");
+        }
+        Block code_block = ((ScratchList)code).block(terp);
+        Block cond_block = ((ScratchList)cond).block(terp);
+        int loop = terp.loop_depth;
+        terp.pushLoop(LoopFrame.JAVA, -1);
+        long iterations = 0;
+        try {
+            while (terp.runLoopBlock(cond_block, loop)) {
+                if (terp.stack.size() < 1) {
+                    throw new RuntimeException("Not enough items on stack");
+                }
+                boolean val = terp.stack.popBoolean();
+                if (val) {
+                    break;
+                }
+                iterations++;
+                if (!terp.runLoopBlock(code_block, loop)) {
+                    break;
+                }
+            }
+        } finally {
+            terp.loop_depth = loop;
+        }
+        if (terp.profiler != null) {
+            terp.profiler.iterations(this, iterations);
+        }
+    }
+}
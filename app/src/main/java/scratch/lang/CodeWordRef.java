@@ -0,0 +1,43 @@
+package scratch.lang;
+
+// Words called more than terp.jit_threshold times are handed to the second
+// tier (see Jit); blocks it cannot handle keep running in the interpreter.
+// The count and the compiled code are kept with the block as bound (see
+// Block.bind): for a word that names others, they start again after any
+// definition.
+class CodeWordRef extends Code {
+    public Block block; // Null until loaded or, for RECURSE, compiled.
+
+    public CodeWordRef(Block block) {
+        this.block = block;
+    }
+
+    @Override
+    public void call(Scratch terp) {
+        Block target = target(terp);
+        if (target != null) {
+            target.execute(terp);
+        }
+    }
+
+    // The block to run for a call, or null if the call has already been
+    // made, by the word's compiled code.
+    Block target(Scratch terp) {
+        Block block = this.block.bind(terp);
+        if (terp.jit) {
+            if (block.compiled != null) {
+                block.compiled.call(terp);
+                return null;
+            }
+            if (block.calls >= 0 && ++block.calls > terp.jit_threshold) {
+                block.compiled = Jit.compile(block);
+                block.calls = -1; // Don't try again.
+                if (block.compiled != null) {
+                    block.compiled.call(terp);
+                    return null;
+                }
+            }
+        }
+        return block;
+    }
+}
@@ -0,0 +1,135 @@
+package scratch.lang;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+// A script that has been lexed and resolved once, for running many times.
+// Executing it replays the recorded token spans instead of scanning the
+// text, and takes each word from the dictionary entry found when the
+// script was prepared. Entries are updated in place by define, so a
+// redefined word is picked up on the next run; a new word (which may
+// shadow a shared word or something parsed as a literal) bumps the
+// generation of the interpreter's table, and publishing swaps the shared
+// table, and either makes the script look all its tokens up again.
+//
+// Immediate words still see the original text through terp.lexer, so
+// strings, comments and definitions behave exactly as with Scratch.run.
+public class CompiledScript {
+    final char[] chars;
+    final int[] starts;
+    final int[] lengths;
+    private final Scratch owner;
+    private final Object[] resolved; // Entry, literal or null per token.
+    private SymbolTable words;
+    private SymbolTable shared;
+    private int generation;
+
+    CompiledScript(Scratch terp, String text) {
+        this.owner = terp;
+        chars = text.toCharArray();
+        ScratchLexer lexer = new ScratchLexer(chars, null);
+        int[] token_starts = new int[64];
+        int[] token_lengths = new int[64];
+        int count = 0;
+        while (lexer.next()) {
+            if (count == token_starts.length) {
+                int[] new_starts = new int[count * 2];
+                int[] new_lengths = new int[count * 2];
+                System.arraycopy(token_starts, 0, new_starts, 0, count);
+                System.arraycopy(token_lengths, 0, new_lengths, 0, count);
+                token_starts = new_starts;
+                token_lengths = new_lengths;
+            }
+            token_starts[count] = lexer.start;
+            token_lengths[count] = lexer.length;
+            count++;
+        }
+        starts = new int[count];
+        lengths = new int[count];
+        System.arraycopy(token_starts, 0, starts, 0, count);
+        System.arraycopy(token_lengths, 0, lengths, 0, count);
+        resolved = new Object[count];
+        words = terp.words();
+        shared = terp.getDictionary().snapshot();
+        generation = words.generation;
+        for (int i = 0; i < count; i++) {
+            resolved[i] = resolve(terp, i);
+        }
+    }
+
+    public void execute(Scratch terp) {
+        terp.run(new ScratchLexer(chars, this));
+    }
+
+    public int size() {
+        return chars.length;
+    }
+
+    // The compiled form of token I for TERP, or null to compile it the slow way.
+    Object lookup(Scratch terp, int i) {
+        if (terp != owner) {
+            return null;
+        }
+        SymbolTable current = terp.getDictionary().snapshot();
+        if (words != terp.words() || shared != current || generation != words.generation) {
+            Arrays.fill(resolved, null);
+            words = terp.words();
+            shared = current;
+            generation = words.generation;
+        }
+        Object obj = resolved[i];
+        if (obj == null) {
+            obj = resolved[i] = resolve(terp, i);
+        }
+        if (obj instanceof SymbolTable.Entry) {
+            return ((SymbolTable.Entry)obj).code();
+        }
+        return obj;
+    }
+
+    private Object resolve(Scratch terp, int i) {
+        SymbolTable.Entry entry = terp.find(chars, starts[i], lengths[i]);
+        if (entry != null) {
+            return entry;
+        }
+        // Words that are only defined later in the script stay unresolved
+        // until they are first met.
+        return terp.literals.parse(chars, starts[i], lengths[i]);
+    }
+
+    // LRU cache of prepared scripts, bounded by count and by total size.
+    static class Cache {
+        private final LinkedHashMap<String, CompiledScript> scripts = new LinkedHashMap<>(16, 0.75f, true);
+        private final int max_scripts;
+        private final long max_chars;
+        private long chars;
+
+        Cache(int max_scripts, long max_chars) {
+            this.max_scripts = max_scripts;
+            this.max_chars = max_chars;
+        }
+
+        CompiledScript get(String text) {
+            return scripts.get(text);
+        }
+
+        void put(String text, CompiledScript script) {
+            CompiledScript old = scripts.put(text, script);
+            if (old != null) {
+                chars -= old.size();
+            }
+            chars += script.size();
+            Iterator<CompiledScript> eldest = scripts.values().iterator();
+            while (scripts.size() > 1 && (scripts.size() > max_scripts || chars > max_chars)) {
+                chars -= eldest.next().size();
+                eldest.remove();
+            }
+        }
+
+        void clear() {
+            scripts.clear();
+            chars = 0;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package scratch.lang;
+
+import java.math.BigInteger;
+import java.util.AbstractList;
+import java.util.List;
+
+// Tagged-value data stack. Numbers and booleans live unboxed in parallel
+// primitive arrays; only strings, lists and variable references take up
+// the object slots, so pure numeric code never allocates. Doubles are
+// NUMBER and integers INTEGER (see Arithmetic); an integer too big for a
+// long is a BigInteger object.
+public class DataStack {
+    static final byte NUMBER = 0;
+    static final byte BOOLEAN = 1;
+    static final byte OBJECT = 2;
+    static final byte INTEGER = 3;
+
+    byte[] tags;
+    double[] numbers;
+    long[] longs; // Integers, and booleans stored as 0/1.
+    Object[] objects;
+    int size;
+
+    public DataStack() {
+        this(32);
+    }
+
+    public DataStack(int capacity) {
+        tags = new byte[capacity];
+        numbers = new double[capacity];
+        longs = new long[capacity];
+        objects = new Object[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            objects[i] = null;
+        }
+        size = 0;
+    }
+
+    public void pushDouble(double value) {
+        if (size == tags.length) {
+            grow();
+        }
+        tags[size] = NUMBER;
+        numbers[size] = value;
+        size++;
+    }
+
+    public void pushLong(long value) {
+        if (size == tags.length) {
+            grow();
+        }
+        tags[size] = INTEGER;
+        longs[size] = value;
+        size++;
+    }
+
+    public void pushBoolean(boolean value) {
+        if (size == tags.length) {
+            grow();
+        }
+        tags[size] = BOOLEAN;
+        longs[size] = value ? 1 : 0;
+        size++;
+    }
+
+    // Push a reference value as-is, without looking for boxed primitives.
+    public void pushObject(Object value) {
+        if (size == tags.length) {
+            grow();
+        }
+        tags[size] = OBJECT;
+        objects[size] = value;
+        size++;
+    }
+
+    // Object adapter: boxed numbers and booleans are stored unboxed.
+    public void push(Object value) {
+        if (value instanceof Double) {
+            pushDouble((Double)value);
+        } else if (value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte) {
+            pushLong(((Number)value).longValue());
+        } else if (value instanceof Boolean) {
+            pushBoolean((Boolean)value);
+        } else if (value instanceof BigInteger && ((BigInteger)value).bitLength() < 64) {
+            pushLong(((BigInteger)value).longValue());
+        } else if (value instanceof Number && !(value instanceof BigInteger)) {
+            pushDouble(((Number)value).doubleValue());
+        } else {
+            pushObject(value);
+        }
+    }
+
+    // Any number, as a double.
+    public double popDouble() {
+        if (size == 0) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        switch (tags[size - 1]) {
+            case NUMBER:
+                return numbers[--size];
+            case INTEGER:
+                return longs[--size];
+            default:
+                if (!(objects[size - 1] instanceof BigInteger)) {
+                    throw new RuntimeException("Number expected");
+                }
+                double value = ((BigInteger)objects[--size]).doubleValue();
+                objects[size] = null;
+                return value;
+        }
+    }
+
+    // A number of times to do something, for TIMES: a double is rounded
+    // up, as counting up to it would.
+    long popCount() {
+        if (size == 0) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        if (tags[size - 1] == INTEGER) {
+            return longs[--size];
+        }
+        double count = popDouble();
+        return count > 0 ? (long)Math.ceil(count) : 0;
+    }
+
+    public boolean popBoolean() {
+        if (size == 0) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        if (tags[size - 1] != BOOLEAN) {
+            throw new RuntimeException("Boolean expected");
+        }
+        return longs[--size] != 0;
+    }
+
+    CodeVarRef popVar() {
+        if (size == 0) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        if (!(objects[size - 1] instanceof CodeVarRef)) {
+            throw new RuntimeException("Variable expected");
+        }
+        CodeVarRef ref = (CodeVarRef)objects[--size];
+        objects[size] = null;
+        return ref;
+    }
+
+    ScratchList popList() {
+        if (size == 0) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        if (!(objects[size - 1] instanceof ScratchList)) {
+            throw new RuntimeException("List expected");
+        }
+        ScratchList list = (ScratchList)objects[--size];
+        objects[size] = null;
+        return list;
+    }
+
+    ScratchString popString() {
+        if (size == 0) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        ScratchString string = ScratchString.of(tags[size - 1] == OBJECT ? objects[size - 1] : null);
+        objects[--size] = null;
+        return string;
+    }
+
+    // Object adapter: numbers and booleans come back boxed.
+    public Object pop() {
+        Object value = peek();
+        size--;
+        objects[size] = null;
+        return value;
+    }
+
+    public Object peek() {
+        if (size == 0) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        return get(size - 1);
+    }
+
+    byte peekTag() {
+        if (size == 0) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        return tags[size - 1];
+    }
+
+    // Index 0 is the bottom of the stack, as with java.util.Stack.
+    public Object get(int index) {
+        switch (tags[index]) {
+            case NUMBER:
+                return numbers[index];
+            case INTEGER:
+                return longs[index];
+            case BOOLEAN:
+                return longs[index] != 0;
+            default:
+                return objects[index];
+        }
+    }
+
+    public void drop() {
+        if (size == 0) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        objects[--size] = null;
+    }
+
+    public void dup() {
+        if (size == 0) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        copy(size - 1);
+    }
+
+    public void over() {
+        if (size < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        copy(size - 2);
+    }
+
+    public void swap() {
+        if (size < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        exchange(size - 1, size - 2);
+    }
+
+    // ( a b c -- b c a )
+    public void rot() {
+        if (size < 3) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        exchange(size - 3, size - 2);
+        exchange(size - 2, size - 1);
+    }
+
+    void popInto(CodeVarRef ref) {
+        byte tag = peekTag();
+        size--;
+        ref.tag = tag;
+        ref.number = numbers[size];
+        ref.bits = longs[size];
+        ref.value = objects[size];
+        objects[size] = null;
+    }
+
+    void pushFrom(CodeVarRef ref) {
+        if (size == tags.length) {
+            grow();
+        }
+        tags[size] = ref.tag;
+        numbers[size] = ref.number;
+        longs[size] = ref.bits;
+        objects[size] = ref.value;
+        size++;
+    }
+
+    // Make room for EXTRA more items.
+    void reserve(int extra) {
+        while (size + extra > tags.length) {
+            grow();
+        }
+    }
+
+    // Live Object view of the stack, for code written against java.util.Stack.
+    public List<Object> asList() {
+        return new AbstractList<Object>() {
+            @Override
+            public Object get(int index) {
+                if (index < 0 || index >= size) {
+                    throw new IndexOutOfBoundsException("Index: " + index);
+                }
+                return DataStack.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return asList().toString();
+    }
+
+    void copy(int from) {
+        if (size == tags.length) {
+            grow();
+        }
+        tags[size] = tags[from];
+        numbers[size] = numbers[from];
+        longs[size] = longs[from];
+        objects[size] = objects[from];
+        size++;
+    }
+
+    void exchange(int i, int j) {
+        byte tag = tags[i];
+        tags[i] = tags[j];
+        tags[j] = tag;
+        double number = numbers[i];
+        numbers[i] = numbers[j];
+        numbers[j] = number;
+        long bits = longs[i];
+        longs[i] = longs[j];
+        longs[j] = bits;
+        Object object = objects[i];
+        objects[i] = objects[j];
+        objects[j] = object;
+    }
+
+    private void grow() {
+        int capacity = Math.max(tags.length * 2, 8);
+        byte[] new_tags = new byte[capacity];
+        double[] new_numbers = new double[capacity];
+        long[] new_longs = new long[capacity];
+        Object[] new_objects = new Object[capacity];
+        System.arraycopy(tags, 0, new_tags, 0, size);
+        System.arraycopy(numbers, 0, new_numbers, 0, size);
+        System.arraycopy(longs, 0, new_longs, 0, size);
+        System.arraycopy(objects, 0, new_objects, 0, size);
+        tags = new_tags;
+        numbers = new_numbers;
+        longs = new_longs;
+        objects = new_objects;
+    }
+}
@@ -0,0 +1,132 @@
+package scratch.lang;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+// Definitions shared by any number of interpreters, e.g. a prelude that is
+// run once and then used by one Scratch per thread. The table itself is
+// never changed once other threads can see it: publish builds a new copy
+// and swaps it in, so readers only ever follow one volatile reference and
+// a batch of definitions becomes visible all at once.
+//
+// Variables defined in the prelude are still a single cell shared by every
+// interpreter; storing into them from several threads is not synchronized.
+public class Dictionary {
+    private final HashMap<String, Code> builtins = new HashMap<>();
+    private final IdentityHashMap<Code, String> builtin_names = new IdentityHashMap<>();
+    private volatile SymbolTable table;
+
+    public Dictionary() {
+        SymbolTable initial = new SymbolTable();
+        Object[] words = {
+                "PRINT", new CodePrint(),
+                ".", new CodePrint(),
+                "PSTACK", new CodePstack(),
+                ".S", new CodePstack(),
+                "+", new CodeAdd(),
+                "-", new CodeSub(),
+                "*", new CodeMul(),
+                "/", new CodeDiv(),
+                "%", new CodeMod(),
+                "SQRT", new CodeSqrt(),
+                "DUP", new CodeDup(),
+                "DROP", new CodeDrop(),
+                "SWAP", new CodeSwap(),
+                "OVER", new CodeOver(),
+                "ROT", new CodeRot(),
+                "CLEAR", new CodeClear(),
+                "VAR", new CodeVar(),
+                "STORE", new CodeStore(),
+                "!", new CodeStore(),
+                "FETCH", new CodeFetch(),
+                "@", new CodeFetch(),
+                "CONST", new CodeConst(),
+                "\"", new CodeString(),
+                "/*", new CodeCComment(),
+                "(", new CodeComment(),
+                "//", new CodeCCComment(),
+                "DEF", new CodeDef(),
+                ":", new CodeDef(),
+                "END", new CodeEnd(),
+                ";", new CodeEnd(),
+                "SEE", new CodeSee(),
+                "RECURSE", new CodeRecurse(),
+                "[", new CodeList(),
+                "LENGTH", new CodeLength(),
+                "ITEM", new CodeItem(),
+                "ITEM!", new CodeStoreItem(),
+                "MAPFILE", new CodeMapFile(),
+                "MAP", new CodeMap(),
+                "REDUCE", new CodeReduce(),
+                "FILTER", new CodeFilter(),
+                "PMAP", new CodePMap(),
+                "PREDUCE", new CodePReduce(),
+                "PFILTER", new CodePFilter(),
+                "SUM", new CodeSum(),
+                "MIN", new CodeMin(),
+                "MAX", new CodeMax(),
+                "V+", new CodeVAdd(),
+                "V*", new CodeVMul(),
+                "VSQRT", new CodeVSqrt(),
+                "VDOT", new CodeVDot(),
+                "VSUM", new CodeVSum(),
+                "V<", new CodeVLess(),
+                "V<=", new CodeVLE(),
+                "V=", new CodeVEqual(),
+                "V>=", new CodeVGE(),
+                "V>", new CodeVGreater(),
+                "SLICE", new CodeSlice(),
+                "APPEND", new CodeAppend(),
+                "CONCAT", new CodeAppend(),
+                "SUBSTRING", new CodeSlice(),
+                "COMPARE", new CodeCompare(),
+                "STR=", new CodeStrEqual(),
+                "RUN", new CodeRun(),
+                "TIMES", new CodeTimes(),
+                "IFTRUE", new CodeIfTrue(),
+                "IFFALSE", new CodeIfFalse(),
+                "WHILE", new CodeWhile(),
+                "?CONTINUE", new CodeContinue(),
+                "?BREAK", new CodeBreak(),
+                "LOOP", new CodeLoop(),
+                "TRUE", new CodeTrue(),
+                "FALSE", new CodeFalse(),
+                "AND", new CodeAnd(),
+                "OR", new CodeOr(),
+                "NOT", new CodeNot(),
+                "<", new CodeLess(),
+                "<=", new CodeLE(),
+                "=", new CodeEqual(),
+                ">=", new CodeGE(),
+                ">", new CodeGreater(),
+        };
+        for (int i = 0; i < words.length; i += 2) {
+            initial.define((String)words[i], (Code)words[i + 1]);
+            builtins.put((String)words[i], (Code)words[i + 1]);
+            builtin_names.put((Code)words[i + 1], (String)words[i]);
+        }
+        table = initial;
+    }
+
+    SymbolTable snapshot() {
+        return table;
+    }
+
+    Code builtin(String name) {
+        return builtins.get(name.toUpperCase());
+    }
+
+    String builtinName(Code code) {
+        return builtin_names.get(code);
+    }
+
+    // Add every definition in WORDS, replacing shared ones of the same name.
+    synchronized void publish(List<SymbolTable.Entry> words) {
+        SymbolTable next = table.copy();
+        for (SymbolTable.Entry entry : words) {
+            next.replace(entry);
+        }
+        table = next;
+    }
+}
@@ -0,0 +1,811 @@
+package scratch.lang;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+// Second tier for hot words. The bytecode of a Block is turned into a
+// sequence of steps built from expression trees: wherever the stack depth
+// is statically known, values flow through Java return values instead of
+// the data stack, so e.g. "i @ 1 + i !" becomes a single store of
+// Add(Fetch(i), 1). Runs of instructions the compiler does not understand
+// are left as bytecode slices and run by the interpreter.
+//
+// Whether a number is an integer or a double is only known at run time (a
+// variable can hold either, and integer arithmetic can overflow into a
+// BigInteger), so arithmetic and comparisons speculate: each one first
+// works its whole subtree out in longs, then in doubles, and the first
+// time that misses (a leaf of the other kind, an overflow) it stops
+// trying and goes through the data stack and the number tower (see
+// Arithmetic) from then on. Expressions have no side effects, so working
+// one out again after a miss is safe.
+//
+// The trees are plain objects rather than generated classes: Dalvik/ART
+// cannot load JVM bytecode, but both it and HotSpot inline small
+// monomorphic virtual calls like these well.
+final class Jit {
+    private Jit() {
+    }
+
+    // Returns null when the block has to stay in the interpreter.
+    static Code compile(Block block) {
+        int[] code = block.plain;
+        int last = -1;
+        for (int pc = 0; pc < code.length; pc += Block.length(code[pc])) {
+            // ?BREAK and ?CONTINUE jump around inside the block; keep those
+            // blocks in the interpreter, which implements them exactly.
+            // Likewise for blocks that run lists or loops, or end in a call:
+            // there the calls go on the return stack, or are tail calls,
+            // while compiled code would call on the Java stack (so
+            // recursion through it could only go a few thousand deep).
+            switch (code[pc]) {
+                case Block.OP_BREAK:
+                case Block.OP_CONTINUE:
+                case Block.OP_RUN:
+                case Block.OP_IFTRUE:
+                case Block.OP_IFFALSE:
+                case Block.OP_TIMES:
+                case Block.OP_WHILE:
+                case Block.OP_LOOP:
+                    return null;
+            }
+            last = code[pc];
+        }
+        if (last == Block.OP_CALL) {
+            return null;
+        }
+        Builder builder = new Builder(block);
+        for (int pc = 0; pc < code.length; pc += Block.length(code[pc])) {
+            builder.translate(pc);
+        }
+        builder.flush();
+        if (builder.translated == 0) {
+            return null; // Nothing gained over the interpreter.
+        }
+        return new CodeCompiled(builder.steps.toArray(new Step[builder.steps.size()]), block.plain.length + 1);
+    }
+
+    static class CodeCompiled extends Code {
+        private final Step[] steps;
+        private final int cost; // What the block costs in the interpreter.
+
+        CodeCompiled(Step[] steps, int cost) {
+            this.steps = steps;
+            this.cost = cost;
+        }
+
+        @Override
+        public void call(Scratch terp) {
+            terp.tick(cost);
+            for (Step step : steps) {
+                step.run(terp);
+            }
+        }
+    }
+
+    private static class Builder {
+        private final Block block;
+        private final List<Step> steps = new ArrayList<>();
+        private final List<Expr> pending = new ArrayList<>();
+        private int slice_start = -1;
+        private int slice_end;
+        private int translated;
+
+        Builder(Block block) {
+            this.block = block;
+        }
+
+        void translate(int pc) {
+            int opcode = block.plain[pc];
+            if (!tryTranslate(opcode, pc)) {
+                flushPending();
+                if (slice_start < 0) {
+                    slice_start = pc;
+                }
+                slice_end = pc + Block.length(opcode);
+            } else {
+                translated++;
+            }
+        }
+
+        private boolean tryTranslate(int opcode, int pc) {
+            int depth = pending.size();
+            switch (opcode) {
+                case Block.OP_NUMBER:
+                    return push(new Num(block.numbers[block.plain[pc + 1]]));
+                case Block.OP_INTEGER:
+                    return push(new Int(block.integers[block.plain[pc + 1]]));
+                case Block.OP_TRUE:
+                    return push(new Bool(true));
+                case Block.OP_FALSE:
+                    return push(new Bool(false));
+                case Block.OP_OBJECT: {
+                    Object value = block.constants[block.plain[pc + 1]];
+                    if (value instanceof CodeVarRef) {
+                        return push(new VarRef((CodeVarRef)value));
+                    }
+                    return push(new Obj(value));
+                }
+                case Block.OP_FETCH:
+                    if (depth < 1 || !(top(0) instanceof VarRef)) {
+                        return false;
+                    }
+                    pending.set(depth - 1, new Fetch(((VarRef)top(0)).var));
+                    return true;
+                case Block.OP_STORE: {
+                    if (depth < 2 || !(top(0) instanceof VarRef)) {
+                        return false;
+                    }
+                    CodeVarRef var = ((VarRef)top(0)).var;
+                    Expr value = top(1);
+                    pending.remove(depth - 1);
+                    pending.remove(depth - 2);
+                    // Anything still pending may read the variable, so it
+                    // has to be evaluated before the store.
+                    flushPending();
+                    addStep(new Store(var, value));
+                    return true;
+                }
+                case Block.OP_ADD:
+                case Block.OP_SUB:
+                case Block.OP_MUL:
+                case Block.OP_DIV:
+                case Block.OP_MOD:
+                    if (depth < 2 || !top(0).canBeNumber() || !top(1).canBeNumber()) {
+                        return false;
+                    }
+                    return binary(new Arith(opcode, top(1), top(0)));
+                case Block.OP_LESS:
+                case Block.OP_LE:
+                case Block.OP_EQUAL:
+                case Block.OP_GE:
+                case Block.OP_GREATER:
+                    if (depth < 2 || !top(0).canBeNumber() || !top(1).canBeNumber()) {
+                        return false;
+                    }
+                    return binary(new Compare(opcode, top(1), top(0)));
+                case Block.OP_AND:
+                case Block.OP_OR:
+                    if (depth < 2 || !top(0).canBe(DataStack.BOOLEAN) || !top(1).canBe(DataStack.BOOLEAN)) {
+                        return false;
+                    }
+                    return binary(new Logic(opcode, top(1), top(0)));
+                case Block.OP_NOT:
+                    if (depth < 1 || !top(0).canBe(DataStack.BOOLEAN)) {
+                        return false;
+                    }
+                    pending.set(depth - 1, new Not(top(0)));
+                    return true;
+                case Block.OP_SQRT:
+                    if (depth < 1 || !top(0).canBeNumber()) {
+                        return false;
+                    }
+                    pending.set(depth - 1, new Sqrt(top(0)));
+                    return true;
+                case Block.OP_DUP:
+                    if (depth < 1 || !top(0).isLeaf()) {
+                        return false;
+                    }
+                    return push(top(0));
+                case Block.OP_DROP:
+                    // Dropping a computed value would also drop its type errors.
+                    if (depth < 1 || !top(0).isLeaf()) {
+                        return false;
+                    }
+                    pending.remove(depth - 1);
+                    return true;
+                case Block.OP_SWAP: {
+                    if (depth < 2) {
+                        return false;
+                    }
+                    Expr tos = top(0);
+                    pending.set(depth - 1, top(1));
+                    pending.set(depth - 2, tos);
+                    return true;
+                }
+                case Block.OP_OVER:
+                    if (depth < 2 || !top(1).isLeaf()) {
+                        return false;
+                    }
+                    return push(top(1));
+                case Block.OP_ROT: {
+                    if (depth < 3) {
+                        return false;
+                    }
+                    Expr _3os = pending.remove(depth - 3);
+                    return push(_3os);
+                }
+                default:
+                    return false;
+            }
+        }
+
+        private Expr top(int n) {
+            return pending.get(pending.size() - 1 - n);
+        }
+
+        private boolean push(Expr expr) {
+            flushSlice();
+            pending.add(expr);
+            return true;
+        }
+
+        private boolean binary(Expr expr) {
+            pending.remove(pending.size() - 1);
+            pending.set(pending.size() - 1, expr);
+            return true;
+        }
+
+        private void addStep(Step step) {
+            flushSlice();
+            steps.add(step);
+        }
+
+        private void flushPending() {
+            for (Expr expr : pending) {
+                steps.add(new Push(expr));
+            }
+            pending.clear();
+        }
+
+        private void flushSlice() {
+            if (slice_start >= 0) {
+                steps.add(new Interpret(block.slice(slice_start, slice_end)));
+                slice_start = -1;
+            }
+        }
+
+        void flush() {
+            flushSlice();
+            flushPending();
+        }
+    }
+
+    abstract static class Step {
+        abstract void run(Scratch terp);
+    }
+
+    static class Push extends Step {
+        private final Expr expr;
+
+        Push(Expr expr) {
+            this.expr = expr;
+        }
+
+        @Override
+        void run(Scratch terp) {
+            expr.push(terp);
+        }
+    }
+
+    static class Store extends Step {
+        private final CodeVarRef var;
+        private final Expr expr;
+
+        Store(CodeVarRef var, Expr expr) {
+            this.var = var;
+            this.expr = expr;
+        }
+
+        @Override
+        void run(Scratch terp) {
+            switch (expr.kind) {
+                case DataStack.BOOLEAN:
+                    var.bits = expr.bool(terp) ? 1 : 0;
+                    var.tag = DataStack.BOOLEAN;
+                    var.value = null;
+                    break;
+                default:
+                    expr.store(terp, var);
+            }
+        }
+    }
+
+    static class Interpret extends Step {
+        private final Block block;
+
+        Interpret(Block block) {
+            this.block = block;
+        }
+
+        @Override
+        void run(Scratch terp) {
+            block.execute(terp);
+        }
+    }
+
+    // A speculation that did not hold. Thrown often while a node learns
+    // what it is given, so it is shared and has no stack trace.
+    static final class Miss extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    static final Miss MISS = new Miss();
+
+    // An expression whose value would have been on the data stack. ANY means
+    // the type is only known at run time (e.g. a variable's value), and
+    // NUMERIC that it is a number of either kind.
+    abstract static class Expr {
+        static final byte ANY = -1;
+        static final byte NUMERIC = -2;
+
+        final byte kind;
+
+        Expr(byte kind) {
+            this.kind = kind;
+        }
+
+        boolean canBe(byte tag) {
+            return kind == tag || kind == ANY;
+        }
+
+        boolean canBeNumber() {
+            return kind == DataStack.NUMBER || kind == DataStack.INTEGER || kind == NUMERIC || kind == ANY;
+        }
+
+        boolean isLeaf() {
+            return false;
+        }
+
+        // The value as a double, for any number.
+        double number(Scratch terp) {
+            throw new RuntimeException("Number expected");
+        }
+
+        // The value if it is an integer that fits in a long, worked out in
+        // longs all the way down; otherwise throws MISS.
+        long integer(Scratch terp) {
+            throw MISS;
+        }
+
+        // The value if it is a double, worked out in doubles all the way
+        // down; otherwise throws MISS.
+        double real(Scratch terp) {
+            throw MISS;
+        }
+
+        boolean bool(Scratch terp) {
+            throw new RuntimeException("Boolean expected");
+        }
+
+        abstract void push(Scratch terp);
+
+        void store(Scratch terp, CodeVarRef var) {
+            push(terp);
+            terp.stack.popInto(var);
+        }
+    }
+
+    static class Num extends Expr {
+        private final double value;
+
+        Num(double value) {
+            super(DataStack.NUMBER);
+            this.value = value;
+        }
+
+        @Override
+        boolean isLeaf() {
+            return true;
+        }
+
+        @Override
+        double number(Scratch terp) {
+            return value;
+        }
+
+        @Override
+        double real(Scratch terp) {
+            return value;
+        }
+
+        @Override
+        void push(Scratch terp) {
+            terp.stack.pushDouble(value);
+        }
+    }
+
+    static class Int extends Expr {
+        private final long value;
+
+        Int(long value) {
+            super(DataStack.INTEGER);
+            this.value = value;
+        }
+
+        @Override
+        boolean isLeaf() {
+            return true;
+        }
+
+        @Override
+        double number(Scratch terp) {
+            return value;
+        }
+
+        @Override
+        long integer(Scratch terp) {
+            return value;
+        }
+
+        @Override
+        void push(Scratch terp) {
+            terp.stack.pushLong(value);
+        }
+    }
+
+    static class Bool extends Expr {
+        private final boolean value;
+
+        Bool(boolean value) {
+            super(DataStack.BOOLEAN);
+            this.value = value;
+        }
+
+        @Override
+        boolean isLeaf() {
+            return true;
+        }
+
+        @Override
+        boolean bool(Scratch terp) {
+            return value;
+        }
+
+        @Override
+        void push(Scratch terp) {
+            terp.stack.pushBoolean(value);
+        }
+    }
+
+    static class Obj extends Expr {
+        private final Object value;
+
+        Obj(Object value) {
+            super(DataStack.OBJECT);
+            this.value = value;
+        }
+
+        @Override
+        boolean isLeaf() {
+            return true;
+        }
+
+        @Override
+        void push(Scratch terp) {
+            terp.stack.pushObject(value);
+        }
+    }
+
+    static class VarRef extends Expr {
+        final CodeVarRef var;
+
+        VarRef(CodeVarRef var) {
+            super(DataStack.OBJECT);
+            this.var = var;
+        }
+
+        @Override
+        boolean isLeaf() {
+            return true;
+        }
+
+        @Override
+        void push(Scratch terp) {
+            terp.stack.pushObject(var);
+        }
+    }
+
+    static class Fetch extends Expr {
+        private final CodeVarRef var;
+
+        Fetch(CodeVarRef var) {
+            super(ANY);
+            this.var = var;
+        }
+
+        @Override
+        boolean isLeaf() {
+            return true;
+        }
+
+        @Override
+        double number(Scratch terp) {
+            switch (var.tag) {
+                case DataStack.NUMBER:
+                    return var.number;
+                case DataStack.INTEGER:
+                    return var.bits;
+                default:
+                    if (!(var.value instanceof BigInteger)) {
+                        throw new RuntimeException("Number expected");
+                    }
+                    return ((BigInteger)var.value).doubleValue();
+            }
+        }
+
+        @Override
+        long integer(Scratch terp) {
+            if (var.tag != DataStack.INTEGER) {
+                throw MISS;
+            }
+            return var.bits;
+        }
+
+        @Override
+        double real(Scratch terp) {
+            if (var.tag != DataStack.NUMBER) {
+                throw MISS;
+            }
+            return var.number;
+        }
+
+        @Override
+        boolean bool(Scratch terp) {
+            if (var.tag != DataStack.BOOLEAN) {
+                throw new RuntimeException("Boolean expected");
+            }
+            return var.bits != 0;
+        }
+
+        @Override
+        void push(Scratch terp) {
+            terp.stack.pushFrom(var);
+        }
+    }
+
+    static class Arith extends Expr {
+        private final int opcode;
+        private final Expr left;
+        private final Expr right;
+        private byte guess = DataStack.INTEGER; // INTEGER, NUMBER or ANY.
+
+        Arith(int opcode, Expr left, Expr right) {
+            super(NUMERIC);
+            this.opcode = opcode;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double number(Scratch terp) {
+            push(terp);
+            return terp.stack.popDouble();
+        }
+
+        @Override
+        long integer(Scratch terp) {
+            if (guess != DataStack.INTEGER) {
+                throw MISS;
+            }
+            long x = left.integer(terp);
+            long y = right.integer(terp);
+            long r;
+            switch (opcode) {
+                case Block.OP_ADD:
+                    r = x + y;
+                    if (Arithmetic.addOverflows(x, y, r)) {
+                        throw MISS;
+                    }
+                    return r;
+                case Block.OP_SUB:
+                    r = x - y;
+                    if (Arithmetic.subOverflows(x, y, r)) {
+                        throw MISS;
+                    }
+                    return r;
+                case Block.OP_MUL:
+                    r = x * y;
+                    if (Arithmetic.mulOverflows(x, y, r)) {
+                        throw MISS;
+                    }
+                    return r;
+                case Block.OP_MOD:
+                    if (y == 0) {
+                        throw MISS; // The tower reports it.
+                    }
+                    return Arithmetic.mod(x, y);
+                default:
+                    throw MISS; // / gives a double.
+            }
+        }
+
+        @Override
+        double real(Scratch terp) {
+            if (opcode == Block.OP_DIV) {
+                return left.number(terp) / right.number(terp);
+            }
+            if (guess == ANY) {
+                throw MISS;
+            }
+            return Arithmetic.arith(opcode, left.real(terp), right.real(terp));
+        }
+
+        @Override
+        void push(Scratch terp) {
+            DataStack stack = terp.stack;
+            if (guess == DataStack.INTEGER) {
+                try {
+                    stack.pushLong(integer(terp));
+                    return;
+                } catch (Miss miss) {
+                    guess = DataStack.NUMBER;
+                }
+            }
+            if (guess == DataStack.NUMBER) {
+                try {
+                    stack.pushDouble(real(terp));
+                    return;
+                } catch (Miss miss) {
+                    guess = ANY;
+                }
+            }
+            pushSlow(terp);
+        }
+
+        // Without the stack, as for push.
+        @Override
+        void store(Scratch terp, CodeVarRef var) {
+            if (guess == DataStack.INTEGER) {
+                try {
+                    var.bits = integer(terp);
+                    var.tag = DataStack.INTEGER;
+                    var.value = null;
+                    return;
+                } catch (Miss miss) {
+                    guess = DataStack.NUMBER;
+                }
+            }
+            if (guess == DataStack.NUMBER) {
+                try {
+                    var.number = real(terp);
+                    var.tag = DataStack.NUMBER;
+                    var.value = null;
+                    return;
+                } catch (Miss miss) {
+                    guess = ANY;
+                }
+            }
+            pushSlow(terp);
+            terp.stack.popInto(var);
+        }
+
+        private void pushSlow(Scratch terp) {
+            DataStack stack = terp.stack;
+            left.push(terp);
+            right.push(terp);
+            switch (opcode) {
+                case Block.OP_ADD:
+                    Arithmetic.add(stack);
+                    break;
+                case Block.OP_SUB:
+                    Arithmetic.sub(stack);
+                    break;
+                case Block.OP_MUL:
+                    Arithmetic.mul(stack);
+                    break;
+                case Block.OP_MOD:
+                    Arithmetic.mod(stack);
+                    break;
+                default:
+                    Arithmetic.arith(stack, opcode);
+                    break;
+            }
+        }
+    }
+
+    static class Sqrt extends Expr {
+        private final Expr term;
+
+        Sqrt(Expr term) {
+            super(DataStack.NUMBER);
+            this.term = term;
+        }
+
+        @Override
+        double number(Scratch terp) {
+            return Math.sqrt(term.number(terp));
+        }
+
+        @Override
+        double real(Scratch terp) {
+            return number(terp);
+        }
+
+        @Override
+        void push(Scratch terp) {
+            terp.stack.pushDouble(number(terp));
+        }
+    }
+
+    static class Compare extends Expr {
+        private final int opcode;
+        private final Expr left;
+        private final Expr right;
+        private byte guess = DataStack.INTEGER; // As for Arith.
+
+        Compare(int opcode, Expr left, Expr right) {
+            super(DataStack.BOOLEAN);
+            this.opcode = opcode;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean bool(Scratch terp) {
+            if (guess == DataStack.INTEGER) {
+                try {
+                    return Arithmetic.compare(opcode, Long.compare(left.integer(terp), right.integer(terp)));
+                } catch (Miss miss) {
+                    guess = DataStack.NUMBER;
+                }
+            }
+            if (guess == DataStack.NUMBER) {
+                try {
+                    return Arithmetic.compare(opcode, left.real(terp), right.real(terp));
+                } catch (Miss miss) {
+                    guess = ANY;
+                }
+            }
+            left.push(terp);
+            right.push(terp);
+            Arithmetic.compare(terp.stack, opcode);
+            return terp.stack.popBoolean();
+        }
+
+        @Override
+        void push(Scratch terp) {
+            terp.stack.pushBoolean(bool(terp));
+        }
+    }
+
+    static class Logic extends Expr {
+        private final int opcode;
+        private final Expr left;
+        private final Expr right;
+
+        Logic(int opcode, Expr left, Expr right) {
+            super(DataStack.BOOLEAN);
+            this.opcode = opcode;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        boolean bool(Scratch terp) {
+            // Both sides are always evaluated, as AND and OR pop both.
+            boolean term1 = left.bool(terp);
+            boolean term2 = right.bool(terp);
+            return opcode == Block.OP_AND ? term1 && term2 : term1 || term2;
+        }
+
+        @Override
+        void push(Scratch terp) {
+            terp.stack.pushBoolean(bool(terp));
+        }
+    }
+
+    static class Not extends Expr {
+        private final Expr term;
+
+        Not(Expr term) {
+            super(DataStack.BOOLEAN);
+            this.term = term;
+        }
+
+        @Override
+        boolean bool(Scratch terp) {
+            return !term.bool(terp);
+        }
+
+        @Override
+        void push(Scratch terp) {
+            terp.stack.pushBoolean(bool(terp));
+        }
+    }
+}
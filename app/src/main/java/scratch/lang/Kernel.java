@@ -0,0 +1,233 @@
+package scratch.lang;
+
+// A block MAP or REDUCE can run over a numeric list without the interpreter:
+// straight-line arithmetic on the one number it is given, like [ 2 * ],
+// [ 1 + sqrt ] or [ dup * ]. Anything else, and any list that is not all
+// numbers, runs the block once per item.
+//
+// Over doubles, a kernel does its arithmetic in double, as the block would.
+// Over integers, only an exact kernel (+ - * and DUP * with integer
+// operands) is used, with the results checked for overflow: if one does
+// not fit in a long, the caller runs the block instead, which gives the
+// tower's answer.
+final class Kernel {
+    private static final int SQUARE = -1;
+    private static final int SQRT = -2;
+
+    // Each step is a Block opcode with its right-hand operand, or one of the
+    // unary steps above.
+    private final int[] ops;
+    private final double[] operands;
+    private final long[] integer_operands; // Null unless exact.
+
+    private Kernel(int[] ops, double[] operands, long[] integer_operands) {
+        this.ops = ops;
+        this.operands = operands;
+        this.integer_operands = integer_operands;
+    }
+
+    // The kernel for BLOCK, or null if it is not one.
+    static Kernel of(Block block) {
+        int[] code = block.code;
+        int[] ops = new int[code.length];
+        double[] operands = new double[code.length];
+        long[] integer_operands = new long[code.length];
+        boolean exact = true;
+        int steps = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            switch (code[pc]) {
+                case Block.OP_ADD_NUM:
+                    ops[steps] = Block.OP_ADD;
+                    operands[steps++] = block.numbers[code[++pc]];
+                    exact = false;
+                    break;
+                case Block.OP_ADD_INT:
+                    ops[steps] = Block.OP_ADD;
+                    integer_operands[steps] = block.integers[code[++pc]];
+                    operands[steps] = integer_operands[steps];
+                    steps++;
+                    break;
+                case Block.OP_NUMBER:
+                case Block.OP_INTEGER:
+                    if (pc + 2 >= code.length || !isArithmetic(code[pc + 2])) {
+                        return null;
+                    }
+                    ops[steps] = code[pc + 2];
+                    if (code[pc] == Block.OP_INTEGER) {
+                        integer_operands[steps] = block.integers[code[pc + 1]];
+                        operands[steps] = integer_operands[steps];
+                        exact &= code[pc + 2] != Block.OP_DIV;
+                    } else {
+                        operands[steps] = block.numbers[code[pc + 1]];
+                        exact = false;
+                    }
+                    steps++;
+                    pc += 2;
+                    break;
+                case Block.OP_SQUARE:
+                    ops[steps++] = SQUARE;
+                    break;
+                case Block.OP_SQRT:
+                    ops[steps++] = SQRT;
+                    exact = false;
+                    break;
+                default:
+                    return null;
+            }
+        }
+        int[] kernel_ops = new int[steps];
+        double[] kernel_operands = new double[steps];
+        System.arraycopy(ops, 0, kernel_ops, 0, steps);
+        System.arraycopy(operands, 0, kernel_operands, 0, steps);
+        long[] kernel_integer_operands = null;
+        if (exact) {
+            kernel_integer_operands = new long[steps];
+            System.arraycopy(integer_operands, 0, kernel_integer_operands, 0, steps);
+        }
+        return new Kernel(kernel_ops, kernel_operands, kernel_integer_operands);
+    }
+
+    private static boolean isArithmetic(int op) {
+        return op == Block.OP_ADD || op == Block.OP_SUB || op == Block.OP_MUL || op == Block.OP_DIV;
+    }
+
+    // Whether the kernel can run over integers.
+    boolean isExact() {
+        return integer_operands != null;
+    }
+
+    ScratchList map(double[] numbers) {
+        double[] result = new double[numbers.length];
+        for (int i = 0; i < numbers.length; i++) {
+            result[i] = apply(numbers[i]);
+        }
+        return new ScratchList(result);
+    }
+
+    // Null if a result overflowed.
+    ScratchList map(long[] integers) {
+        long[] result = new long[integers.length];
+        for (int i = 0; i < integers.length; i++) {
+            long value = integers[i];
+            for (int j = 0; j < ops.length; j++) {
+                long operand = ops[j] == SQUARE ? value : integer_operands[j];
+                long r;
+                switch (ops[j]) {
+                    case Block.OP_ADD:
+                        r = value + operand;
+                        if (Arithmetic.addOverflows(value, operand, r)) {
+                            return null;
+                        }
+                        break;
+                    case Block.OP_SUB:
+                        r = value - operand;
+                        if (Arithmetic.subOverflows(value, operand, r)) {
+                            return null;
+                        }
+                        break;
+                    default:
+                        r = value * operand;
+                        if (Arithmetic.mulOverflows(value, operand, r)) {
+                            return null;
+                        }
+                        break;
+                }
+                value = r;
+            }
+            result[i] = value;
+        }
+        return new ScratchList(result);
+    }
+
+    double apply(double value) {
+        for (int i = 0; i < ops.length; i++) {
+            switch (ops[i]) {
+                case Block.OP_ADD:
+                    value += operands[i];
+                    break;
+                case Block.OP_SUB:
+                    value -= operands[i];
+                    break;
+                case Block.OP_MUL:
+                    value *= operands[i];
+                    break;
+                case Block.OP_DIV:
+                    value /= operands[i];
+                    break;
+                case SQUARE:
+                    value *= value;
+                    break;
+                default:
+                    value = Math.sqrt(value);
+                    break;
+            }
+        }
+        return value;
+    }
+
+    // The opcode of a block that is a single + - * or /, for REDUCE, or -1.
+    static int binary(Block block) {
+        if (block.code.length == 1 && isArithmetic(block.code[0])) {
+            return block.code[0];
+        }
+        return -1;
+    }
+
+    static double fold(int op, double value, double[] numbers) {
+        switch (op) {
+            case Block.OP_ADD:
+                for (double number : numbers) {
+                    value += number;
+                }
+                break;
+            case Block.OP_SUB:
+                for (double number : numbers) {
+                    value -= number;
+                }
+                break;
+            case Block.OP_MUL:
+                for (double number : numbers) {
+                    value *= number;
+                }
+                break;
+            default:
+                for (double number : numbers) {
+                    value /= number;
+                }
+                break;
+        }
+        return value;
+    }
+
+    // Pushes VALUE folded with + - or * over INTEGERS. From the first
+    // overflow on, the rest is folded on the stack, as the tower would.
+    static void fold(int op, long value, long[] integers, DataStack stack) {
+        int i = 0;
+        for (; i < integers.length; i++) {
+            long integer = integers[i];
+            long r;
+            if (op == Block.OP_ADD) {
+                r = value + integer;
+                if (Arithmetic.addOverflows(value, integer, r)) {
+                    break;
+                }
+            } else if (op == Block.OP_SUB) {
+                r = value - integer;
+                if (Arithmetic.subOverflows(value, integer, r)) {
+                    break;
+                }
+            } else {
+                r = value * integer;
+                if (Arithmetic.mulOverflows(value, integer, r)) {
+                    break;
+                }
+            }
+            value = r;
+        }
+        stack.pushLong(value);
+        for (; i < integers.length; i++) {
+            stack.pushLong(integers[i]);
+            Arithmetic.arith(stack, op);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package scratch.lang;
+
+import java.math.BigInteger;
+
+// Number literals without the cost of Double.parseDouble. A literal with no
+// fraction and no exponent is an integer (see Arithmetic): a Long, or a
+// BigInteger if it does not fit in one. Plain decimals with at most 18
+// significant digits and a small exponent are converted exactly with a
+// single multiply or divide (both operands are exact doubles, so the result
+// is correctly rounded). Anything harder falls back to Double.parseDouble.
+// Short literals are also kept in a small direct-mapped cache, so a literal
+// repeated all over a script is parsed and boxed once.
+final class LiteralParser {
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+    };
+    private static final long MAX_EXACT = 1L << 53;
+    private static final int CACHE_SIZE = 256;
+
+    // Cache keys pack up to 8 ASCII chars into a long; 0 marks an empty slot.
+    private final long[] cache_keys = new long[CACHE_SIZE];
+    private final Object[] cache_values = new Object[CACHE_SIZE];
+
+    // Result of the last successful parseNumber(): a double in VALUE, or
+    // if IS_INTEGER an integer in INTEGER, or in BIG if that is not null.
+    double value;
+    boolean is_integer;
+    long integer;
+    BigInteger big;
+
+    // Returns the literal as a boxed number, or null if it isn't one.
+    public Object parse(char[] chars, int start, int length) {
+        long key = pack(chars, start, length);
+        int slot = 0;
+        if (key != 0) {
+            slot = (int)(key ^ (key >>> 29)) & (CACHE_SIZE - 1);
+            if (cache_keys[slot] == key) {
+                return cache_values[slot];
+            }
+        }
+        if (!parseNumber(chars, start, length)) {
+            return null;
+        }
+        Object boxed = !is_integer ? (Object)value : big != null ? big : (Object)integer;
+        if (key != 0) {
+            cache_keys[slot] = key;
+            cache_values[slot] = boxed;
+        }
+        return boxed;
+    }
+
+    public boolean parseNumber(char[] chars, int start, int length) {
+        is_integer = false;
+        big = null;
+        int end = start + length;
+        int i = start;
+        boolean negative = false;
+        if (i < end && (chars[i] == '-' || chars[i] == '+')) {
+            negative = chars[i] == '-';
+            i++;
+        }
+        if (i == end || !(isDigit(chars[i]) || chars[i] == '.')) {
+            return false; // Not a number at all; don't bother Double.parseDouble.
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean seen_digit = false;
+        for (; i < end && isDigit(chars[i]); i++) {
+            seen_digit = true;
+            if (digits > 0 || chars[i] != '0') {
+                mantissa = mantissa * 10 + (chars[i] - '0');
+                digits++;
+            }
+            if (digits > 18) {
+                return parseSlow(chars, start, length);
+            }
+        }
+        if (i == end) {
+            is_integer = true;
+            integer = negative ? -mantissa : mantissa;
+            return true;
+        }
+        if (i < end && chars[i] == '.') {
+            for (i++; i < end && isDigit(chars[i]); i++) {
+                seen_digit = true;
+                if (digits > 0 || chars[i] != '0') {
+                    mantissa = mantissa * 10 + (chars[i] - '0');
+                    digits++;
+                }
+                exponent--;
+                if (digits > 18) {
+                    return parseSlow(chars, start, length);
+                }
+            }
+        }
+        if (!seen_digit) {
+            return parseSlow(chars, start, length);
+        }
+        if (i < end && (chars[i] == 'e' || chars[i] == 'E')) {
+            i++;
+            boolean negative_exponent = false;
+            if (i < end && (chars[i] == '-' || chars[i] == '+')) {
+                negative_exponent = chars[i] == '-';
+                i++;
+            }
+            if (i == end) {
+                return parseSlow(chars, start, length);
+            }
+            int explicit = 0;
+            for (; i < end && isDigit(chars[i]); i++) {
+                explicit = explicit * 10 + (chars[i] - '0');
+                if (explicit > 9999) {
+                    return parseSlow(chars, start, length);
+                }
+            }
+            exponent += negative_exponent ? -explicit : explicit;
+        }
+        if (i != end || mantissa >= MAX_EXACT) {
+            return parseSlow(chars, start, length);
+        }
+        double result = mantissa;
+        if (mantissa != 0) {
+            if (exponent < -22 || exponent > 22) {
+                return parseSlow(chars, start, length);
+            }
+            result = exponent < 0 ? result / POWERS_OF_TEN[-exponent] : result * POWERS_OF_TEN[exponent];
+        }
+        value = negative ? -result : result;
+        return true;
+    }
+
+    private boolean parseSlow(char[] chars, int start, int length) {
+        String text = new String(chars, start, length);
+        if (isInteger(chars, start, length)) {
+            Object parsed = Arithmetic.normalize(new BigInteger(text.startsWith("+") ? text.substring(1) : text));
+            is_integer = true;
+            if (parsed instanceof Long) {
+                integer = (Long)parsed;
+            } else {
+                big = (BigInteger)parsed;
+            }
+            return true;
+        }
+        try {
+            value = Double.parseDouble(text.toUpperCase());
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // An optional sign and nothing but digits.
+    private static boolean isInteger(char[] chars, int start, int length) {
+        int i = start;
+        if (i < start + length && (chars[i] == '-' || chars[i] == '+')) {
+            i++;
+        }
+        if (i == start + length) {
+            return false;
+        }
+        for (; i < start + length; i++) {
+            if (!isDigit(chars[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(char ch) {
+        return ch >= '0' && ch <= '9';
+    }
+
+    private static long pack(char[] chars, int start, int length) {
+        if (length > 8) {
+            return 0;
+        }
+        long key = 0;
+        for (int i = start; i < start + length; i++) {
+            if (chars[i] == 0 || chars[i] > 0x7f) {
+                return 0;
+            }
+            key = key << 8 | chars[i];
+        }
+        return key;
+    }
+}
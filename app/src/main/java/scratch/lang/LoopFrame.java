@@ -0,0 +1,72 @@
+package scratch.lang;
+
+// A running LOOP, WHILE or TIMES: an entry on the interpreter's control
+// stack. ?BREAK and ?CONTINUE go to the innermost frame, wherever they are
+// run from (the body itself, a list it runs, or a word it calls); with no
+// loop running they leave or restart the block they are in.
+//
+// Loops in blocks are run by the dispatch loop in Block, without leaving
+// it: RETURN_DEPTH is the depth of the return stack while the body runs,
+// so the end of the body is the end of any block found at that depth.
+// Loops run by the built-ins' own Java loops (at the top level, or while
+// profiling) are JAVA frames, and so is any frame a dispatch loop further
+// up the Java stack owns; a ?BREAK or ?CONTINUE for one of those is thrown
+// to it as a Transfer.
+final class LoopFrame {
+    static final int LOOP = 0;
+    static final int TIMES = 1;
+    static final int WHILE = 2;
+    static final int JAVA = 3;
+
+    int kind;
+    int return_depth;
+    Block body;
+    Block cond; // WHILE
+    long count; // TIMES
+    long done;
+    boolean in_cond; // WHILE: the condition, not the body, is running.
+
+    // The block to run next, or null when the loop is done.
+    Block next(DataStack stack) {
+        switch (kind) {
+            case TIMES:
+                if (done < count) {
+                    done++;
+                    return body;
+                }
+                return null;
+            case WHILE:
+                if (in_cond) {
+                    in_cond = false;
+                    if (stack.size() < 1) {
+                        throw new RuntimeException("Not enough items on stack");
+                    }
+                    return stack.popBoolean() ? null : body;
+                }
+                in_cond = true;
+                return cond;
+            default:
+                return body;
+        }
+    }
+
+    // ?BREAK or ?CONTINUE for the frame at index LOOP, or for no loop at
+    // all (-1), which is an error only at the top level.
+    static final class Transfer extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int loop;
+        final boolean is_break;
+
+        Transfer(int loop, boolean is_break) {
+            super(is_break ? "?BREAK outside a loop" : "?CONTINUE outside a loop");
+            this.loop = loop;
+            this.is_break = is_break;
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this; // Control flow, not an error: no trace needed.
+        }
+    }
+}
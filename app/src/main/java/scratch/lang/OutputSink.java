@@ -0,0 +1,319 @@
+package scratch.lang;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+// Where PRINT, PSTACK and SEE write (see Scratch.setOutput). A sink gets
+// text a piece at a time, with newline at the end of each line and
+// endRun when a script is done, and decides when it passes it on. Sinks
+// are used by one interpreter at a time; only Ring may be read from
+// another thread while it is written.
+//
+// Numbers are written as Double.toString would write them, but without
+// making a String on the way when they are short decimals (up to 9
+// places, between 0.001 and 10^7), as most measurements are. Integers
+// are written as Long.toString would, and never make a String.
+public abstract class OutputSink {
+    private static final double[] POWERS = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9};
+    private static final long MAX_EXACT = 1L << 53;
+
+    private final char[] digits = new char[32];
+
+    public abstract void write(char c);
+
+    public void write(char[] chars, int start, int length) {
+        for (int i = start; i < start + length; i++) {
+            write(chars[i]);
+        }
+    }
+
+    public void write(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            write(text.charAt(i));
+        }
+    }
+
+    public void print(double value) {
+        write(digits, 0, format(value, digits));
+    }
+
+    public void print(long value) {
+        int length = 0;
+        if (value < 0) {
+            digits[length++] = '-';
+            if (value == Long.MIN_VALUE) {
+                // Its negation does not fit: do the last digit apart.
+                length = formatLong(-(value / 10), digits, length);
+                digits[length++] = '8';
+                write(digits, 0, length);
+                return;
+            }
+            value = -value;
+        }
+        write(digits, 0, formatLong(value, digits, length));
+    }
+
+    public void print(Object value) {
+        if (value instanceof Double) {
+            print(((Double)value).doubleValue());
+        } else if (value instanceof Long) {
+            print(((Long)value).longValue());
+        } else if (value instanceof CharSequence) {
+            write((CharSequence)value);
+        } else {
+            write(String.valueOf(value));
+        }
+    }
+
+    public void newline() {
+        write('\n');
+    }
+
+    // A script run with Scratch.run (or a CompiledScript) is done.
+    public void endRun() {
+    }
+
+    public void flush() {
+    }
+
+    // Writes VALUE into CHARS, which must have room for 25 chars, and
+    // returns its length.
+    static int format(double value, char[] chars) {
+        double abs = Math.abs(value);
+        if (abs >= 1e-3 && abs < 1e7) {
+            // The fewest decimal places that give back VALUE exactly: both
+            // operands of the divide are exact, so it is correctly rounded.
+            for (int places = 0; places < POWERS.length; places++) {
+                double scaled = Math.rint(abs * POWERS[places]);
+                if (scaled >= MAX_EXACT) {
+                    break;
+                }
+                if (scaled / POWERS[places] == abs) {
+                    return format(value < 0, (long)scaled, places, chars);
+                }
+            }
+        } else if (value == 0) {
+            return copy(1 / value < 0 ? "-0.0" : "0.0", chars);
+        }
+        return copy(Double.toString(value), chars);
+    }
+
+    // NEGATIVE, DIGITS / 10^PLACES.
+    private static int format(boolean negative, long digits, int places, char[] chars) {
+        int length = 0;
+        if (negative) {
+            chars[length++] = '-';
+        }
+        long unit = (long)POWERS[places];
+        length = formatLong(digits / unit, chars, length);
+        chars[length++] = '.';
+        if (places == 0) {
+            chars[length++] = '0';
+            return length;
+        }
+        long fraction = digits % unit;
+        for (int i = places - 1; i >= 0; i--) {
+            chars[length + i] = (char)('0' + fraction % 10);
+            fraction /= 10;
+        }
+        return length + places;
+    }
+
+    private static int formatLong(long value, char[] chars, int start) {
+        int end = start;
+        do {
+            chars[end++] = (char)('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        for (int i = start, j = end - 1; i < j; i++, j--) {
+            char c = chars[i];
+            chars[i] = chars[j];
+            chars[j] = c;
+        }
+        return end;
+    }
+
+    private static int copy(String text, char[] chars) {
+        text.getChars(0, text.length(), chars, 0);
+        return text.length();
+    }
+
+    // When Buffered passes its text on.
+    public static final int FLUSH_LINE = 0; // At the end of each line.
+    public static final int FLUSH_RUN = 1; // At the end of each script run.
+    public static final int FLUSH_SIZE = 2; // Only when the buffer is full.
+
+    // The default sink, for standard output: text is kept in a buffer of
+    // SIZE chars and written to a Writer when the flush policy says so, or
+    // when the buffer is full.
+    public static class Buffered extends OutputSink {
+        private final Writer out;
+        private final int policy;
+        private final char[] buffer;
+        private int length;
+
+        public Buffered(Writer out, int policy, int size) {
+            this.out = out;
+            this.policy = policy;
+            this.buffer = new char[size];
+        }
+
+        static Buffered standard() {
+            return new Buffered(new OutputStreamWriter(System.out), FLUSH_RUN, 8192);
+        }
+
+        @Override
+        public void write(char c) {
+            if (length == buffer.length) {
+                drain();
+            }
+            buffer[length++] = c;
+        }
+
+        @Override
+        public void write(char[] chars, int start, int length) {
+            if (this.length + length > buffer.length) {
+                drain();
+                if (length > buffer.length) {
+                    pass(chars, start, length);
+                    return;
+                }
+            }
+            System.arraycopy(chars, start, buffer, this.length, length);
+            this.length += length;
+        }
+
+        @Override
+        public void write(CharSequence text) {
+            int count = text.length();
+            if (length + count > buffer.length) {
+                drain();
+                if (count > buffer.length) {
+                    pass(text.toString().toCharArray(), 0, count);
+                    return;
+                }
+            }
+            if (text instanceof String) {
+                ((String)text).getChars(0, count, buffer, length);
+                length += count;
+            } else if (text instanceof ScratchString) {
+                ((ScratchString)text).getChars(buffer, length);
+                length += count;
+            } else {
+                super.write(text);
+            }
+        }
+
+        @Override
+        public void newline() {
+            write('\n');
+            if (policy == FLUSH_LINE) {
+                flush();
+            }
+        }
+
+        @Override
+        public void endRun() {
+            if (policy != FLUSH_SIZE) {
+                flush();
+            }
+        }
+
+        @Override
+        public void flush() {
+            drain();
+            try {
+                out.flush();
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot write output: " + e.getMessage());
+            }
+        }
+
+        private void drain() {
+            pass(buffer, 0, length);
+            length = 0;
+        }
+
+        private void pass(char[] chars, int start, int length) {
+            try {
+                out.write(chars, start, length);
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot write output: " + e.getMessage());
+            }
+        }
+    }
+
+    // Keeps everything written, for tests and for hosts that want the text.
+    public static class Capture extends OutputSink {
+        private final StringBuilder text = new StringBuilder();
+
+        @Override
+        public void write(char c) {
+            text.append(c);
+        }
+
+        @Override
+        public void write(char[] chars, int start, int length) {
+            text.append(chars, start, length);
+        }
+
+        @Override
+        public void write(CharSequence text) {
+            this.text.append(text);
+        }
+
+        public String getText() {
+            return text.toString();
+        }
+
+        public void clear() {
+            text.setLength(0);
+        }
+    }
+
+    // Keeps the last SIZE chars written, in a ring that never grows, for a
+    // UI that shows the end of the output: it may call getText from its
+    // own thread at any time, and getChars to tell whether anything has
+    // changed since.
+    public static class Ring extends OutputSink {
+        private final char[] ring;
+        private long written;
+
+        public Ring(int size) {
+            ring = new char[size];
+        }
+
+        @Override
+        public synchronized void write(char c) {
+            ring[(int)(written++ % ring.length)] = c;
+        }
+
+        @Override
+        public synchronized void write(char[] chars, int start, int length) {
+            super.write(chars, start, length);
+        }
+
+        @Override
+        public synchronized void write(CharSequence text) {
+            super.write(text);
+        }
+
+        // Everything written so far, counting what is no longer kept.
+        public synchronized long getChars() {
+            return written;
+        }
+
+        // The text kept, starting at a whole line if the ring has wrapped.
+        public synchronized String getText() {
+            if (written <= ring.length) {
+                return new String(ring, 0, (int)written);
+            }
+            int start = (int)(written % ring.length);
+            StringBuilder text = new StringBuilder(ring.length);
+            text.append(ring, start, ring.length - start).append(ring, 0, start);
+            int line = text.indexOf("\n");
+            return line >= 0 ? text.substring(line + 1) : text.toString();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package scratch.lang;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// PMAP, PREDUCE and PFILTER: MAP, REDUCE and FILTER over chunks of a list
+// at once, on a pool of threads shared by all interpreters. Each chunk runs
+// in a fork of the calling interpreter (see Scratch.fork), which shares
+// its dictionary but has stacks of its own, so only pure blocks (see
+// Purity) are run this way. Any other block, a list of fewer than two
+// chunks, or an interpreter that is profiling runs one item at a time
+// instead, in the calling interpreter.
+//
+// Chunks are CHUNK items each, however many threads there are, and their
+// results are put together in order, so a result never depends on the
+// machine or on timing. PREDUCE folds each chunk separately (the first one
+// from the initial value, the others from their first item) and then folds
+// the chunk results together, in order. That is the same as REDUCE only
+// for an associative block, so PREDUCE splits only [ + ] and [ * ], and
+// gives the same result up to rounding; other blocks, even pure ones like
+// [ - ], run one item at a time as REDUCE does. If chunks fail, the error
+// is that of the first one. When the calling thread is interrupted, the
+// forks are stopped at their next limit check and the call fails with
+// Scratch.LimitExceeded, as it would without them.
+final class Parallel {
+    static final int CHUNK = 1024;
+
+    private static final int MAP = 0;
+    private static final int FILTER = 1;
+    private static final int REDUCE = 2;
+
+    private Parallel() {
+    }
+
+    // Made on first use.
+    private static final class Pool {
+        static final ForkJoinPool pool = new ForkJoinPool();
+    }
+
+    static ScratchList map(Scratch terp, ScratchList list, Block code) {
+        if (!isParallel(terp, list, null, code)) {
+            return list.map(terp, code);
+        }
+        return ScratchList.concat(results(run(terp, list, null, code, MAP)));
+    }
+
+    static ScratchList filter(Scratch terp, ScratchList list, Block code) {
+        if (!isParallel(terp, list, null, code)) {
+            return list.filter(terp, code);
+        }
+        return ScratchList.concat(results(run(terp, list, null, code, FILTER)));
+    }
+
+    static void reduce(Scratch terp, ScratchList list, Object initial, Block code) {
+        int op = Kernel.binary(code);
+        if ((op != Block.OP_ADD && op != Block.OP_MUL) || !isParallel(terp, list, initial, code)) {
+            list.reduce(terp, initial, code);
+            return;
+        }
+        Chunk[] chunks = run(terp, list, initial, code, REDUCE);
+        terp.stack.push(chunks[0].result);
+        for (int i = 1; i < chunks.length; i++) {
+            terp.stack.push(chunks[i].result);
+            code.execute(terp);
+        }
+    }
+
+    private static boolean isParallel(Scratch terp, ScratchList list, Object initial, Block code) {
+        if (list.size() < 2 * CHUNK || terp.profiler != null || !Purity.isPure(terp, code)) {
+            return false;
+        }
+        return !Purity.runsLists(terp, code)
+                || (Purity.isPure(terp, initial) && Purity.itemsArePure(terp, list));
+    }
+
+    private static Chunk[] run(Scratch terp, ScratchList list, Object initial, Block code, int kind) {
+        AtomicBoolean cancelled = terp.cancelled() != null ? terp.cancelled() : new AtomicBoolean();
+        int count = (list.size() + CHUNK - 1) / CHUNK;
+        final Chunk[] chunks = new Chunk[count];
+        for (int i = 0; i < count; i++) {
+            int from = i * CHUNK;
+            int to = Math.min(from + CHUNK, list.size());
+            Object start = initial;
+            if (kind == REDUCE && i > 0) {
+                start = list.get(from++);
+            }
+            chunks[i] = new Chunk(terp.fork(cancelled), list.slice(from, to), start, code, kind);
+        }
+        ForkJoinTask<Void> all = new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(chunks);
+            }
+        };
+        if (ForkJoinTask.inForkJoinPool()) {
+            all.invoke(); // Already in a chunk: the pool is there to help.
+        } else {
+            await(all, cancelled);
+        }
+        long executed = 0;
+        for (Chunk chunk : chunks) {
+            executed += chunk.fork.instructionsExecuted();
+        }
+        terp.charge(executed);
+        for (Chunk chunk : chunks) {
+            if (chunk.error != null) {
+                throw chunk.error;
+            }
+        }
+        return chunks;
+    }
+
+    // Unlike invoke, waits for ALL in a way an interrupt can end.
+    private static void await(ForkJoinTask<Void> all, AtomicBoolean cancelled) {
+        Pool.pool.execute(all);
+        try {
+            all.get();
+        } catch (InterruptedException e) {
+            cancelled.set(true);
+            all.quietlyJoin();
+            throw new Scratch.LimitExceeded("Interrupted");
+        } catch (ExecutionException e) {
+            // Chunks keep their own exceptions, so this is an Error.
+            throw (Error)e.getCause();
+        }
+    }
+
+    private static ScratchList[] results(Chunk[] chunks) {
+        ScratchList[] results = new ScratchList[chunks.length];
+        for (int i = 0; i < chunks.length; i++) {
+            results[i] = (ScratchList)chunks[i].result;
+        }
+        return results;
+    }
+
+    private static final class Chunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final Scratch fork;
+        final ScratchList items;
+        final Object initial; // REDUCE
+        final Block code;
+        final int kind;
+        Object result;
+        RuntimeException error;
+
+        Chunk(Scratch fork, ScratchList items, Object initial, Block code, int kind) {
+            this.fork = fork;
+            this.items = items;
+            this.initial = initial;
+            this.code = code;
+            this.kind = kind;
+        }
+
+        @Override
+        protected void compute() {
+            if (fork.cancelled().get()) {
+                error = new Scratch.LimitExceeded("Interrupted");
+                return;
+            }
+            try {
+                switch (kind) {
+                    case MAP:
+                        result = items.map(fork, code);
+                        break;
+                    case FILTER:
+                        result = items.filter(fork, code);
+                        break;
+                    default:
+                        items.reduce(fork, initial, code);
+                        if (fork.stack.size() != 1) {
+                            throw new RuntimeException("PREDUCE block must leave one item");
+                        }
+                        result = fork.stack.pop();
+                        break;
+                }
+            } catch (RuntimeException e) {
+                error = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package scratch.lang;
+
+import java.util.HashMap;
+
+// Peephole optimizer for blocks. The instructions of a block are appended
+// one at a time, and after each one the end of the output is matched
+// against the rules in rewrite, so rewrites cascade: "i @ 1 + i !" first
+// becomes @VAR i, +NUM 1, !VAR i and then the single +!VAR i 1.
+//
+// - Arithmetic, comparisons and logic on literals are folded, as the
+//   number tower (see Arithmetic) would do them at run time; integer
+//   arithmetic that overflows a long, or an integer modulus by zero, is
+//   left to run.
+// - A literal pushed and dropped again is removed.
+// - Common sequences are fused into superinstructions: fetch from and
+//   store to a known variable, add to a variable, add or compare with a
+//   literal (in a double and an integer form), DUP *, SWAP DROP.
+// - TRUE ?BREAK and TRUE ?CONTINUE always leave or restart the block, so
+//   the instructions after them are dropped; with FALSE they do nothing
+//   and are removed.
+final class Peephole {
+    private final Object[] constants;
+    private int[] ops = new int[16];
+    private int[] as = new int[16];
+    private int[] bs = new int[16];
+    private int count;
+    private double[] numbers;
+    private int number_count;
+    private final HashMap<Long, Integer> number_index = new HashMap<>();
+    private long[] integers;
+    private int integer_count;
+    private final HashMap<Long, Integer> integer_index = new HashMap<>();
+    private boolean dead; // After an unconditional exit or restart.
+    private int length;
+
+    private Peephole(double[] numbers, long[] integers, Object[] constants) {
+        this.constants = constants;
+        this.numbers = numbers.length > 0 ? numbers.clone() : new double[4];
+        number_count = numbers.length;
+        for (int i = 0; i < numbers.length; i++) {
+            Long bits = Double.doubleToRawLongBits(numbers[i]);
+            if (!number_index.containsKey(bits)) {
+                number_index.put(bits, i);
+            }
+        }
+        this.integers = integers.length > 0 ? integers.clone() : new long[4];
+        integer_count = integers.length;
+        for (int i = 0; i < integers.length; i++) {
+            if (!integer_index.containsKey(integers[i])) {
+                integer_index.put(integers[i], i);
+            }
+        }
+    }
+
+    // Optimize PLAIN; the result's numbers and integers extend NUMBERS and
+    // INTEGERS.
+    static Peephole optimize(int[] plain, double[] numbers, long[] integers, Object[] constants) {
+        Peephole peephole = new Peephole(numbers, integers, constants);
+        for (int pc = 0; pc < plain.length; pc += Block.length(plain[pc])) {
+            int opcode = plain[pc];
+            int length = Block.length(opcode);
+            peephole.add(opcode, length > 1 ? plain[pc + 1] : 0, 0);
+        }
+        return peephole;
+    }
+
+    int[] code() {
+        int[] code = new int[length];
+        int pc = 0;
+        for (int i = 0; i < count; i++) {
+            code[pc++] = ops[i];
+            int length = Block.length(ops[i]);
+            if (length > 1) {
+                code[pc++] = as[i];
+            }
+            if (length > 2) {
+                code[pc++] = bs[i];
+            }
+        }
+        return code;
+    }
+
+    double[] numbers() {
+        if (number_count == numbers.length) {
+            return numbers;
+        }
+        double[] result = new double[number_count];
+        System.arraycopy(numbers, 0, result, 0, number_count);
+        return result;
+    }
+
+    long[] integers() {
+        if (integer_count == integers.length) {
+            return integers;
+        }
+        long[] result = new long[integer_count];
+        System.arraycopy(integers, 0, result, 0, integer_count);
+        return result;
+    }
+
+    private void add(int opcode, int a, int b) {
+        if (dead) {
+            return;
+        }
+        if (count == ops.length) {
+            int[] new_ops = new int[count * 2];
+            int[] new_as = new int[count * 2];
+            int[] new_bs = new int[count * 2];
+            System.arraycopy(ops, 0, new_ops, 0, count);
+            System.arraycopy(as, 0, new_as, 0, count);
+            System.arraycopy(bs, 0, new_bs, 0, count);
+            ops = new_ops;
+            as = new_as;
+            bs = new_bs;
+        }
+        ops[count] = opcode;
+        as[count] = a;
+        bs[count] = b;
+        count++;
+        length += Block.length(opcode);
+        while (rewrite()) {
+            // Keep going: one rewrite can enable the next.
+        }
+    }
+
+    // Replace the last N instructions with OPCODE (A, B).
+    private boolean replace(int n, int opcode, int a, int b) {
+        drop(n);
+        add(opcode, a, b);
+        return false; // add has already rewritten the result.
+    }
+
+    private void drop(int n) {
+        for (int i = 0; i < n; i++) {
+            length -= Block.length(ops[--count]);
+        }
+    }
+
+    private boolean is(int back, int opcode) {
+        return count > back && ops[count - 1 - back] == opcode;
+    }
+
+    private double number(int back) {
+        return numbers[as[count - 1 - back]];
+    }
+
+    private long integer(int back) {
+        return integers[as[count - 1 - back]];
+    }
+
+    private boolean isLiteral(int back) {
+        return is(back, Block.OP_NUMBER) || is(back, Block.OP_INTEGER);
+    }
+
+    // A literal of either kind, as a double.
+    private double value(int back) {
+        return is(back, Block.OP_INTEGER) ? integer(back) : number(back);
+    }
+
+    private boolean isVar(int back) {
+        return is(back, Block.OP_OBJECT) && constants[as[count - 1 - back]] instanceof CodeVarRef;
+    }
+
+    private boolean isBoolean(int back) {
+        return is(back, Block.OP_TRUE) || is(back, Block.OP_FALSE);
+    }
+
+    private int constant(double value) {
+        Long bits = Double.doubleToRawLongBits(value);
+        Integer index = number_index.get(bits);
+        if (index == null) {
+            if (number_count == numbers.length) {
+                double[] new_numbers = new double[number_count * 2];
+                System.arraycopy(numbers, 0, new_numbers, 0, number_count);
+                numbers = new_numbers;
+            }
+            index = number_count++;
+            numbers[index] = value;
+            number_index.put(bits, index);
+        }
+        return index;
+    }
+
+    private int integerConstant(long value) {
+        Integer index = integer_index.get(value);
+        if (index == null) {
+            if (integer_count == integers.length) {
+                long[] new_integers = new long[integer_count * 2];
+                System.arraycopy(integers, 0, new_integers, 0, integer_count);
+                integers = new_integers;
+            }
+            index = integer_count++;
+            integers[index] = value;
+            integer_index.put(value, index);
+        }
+        return index;
+    }
+
+    private boolean rewrite() {
+        int last = ops[count - 1];
+        switch (last) {
+            case Block.OP_ADD:
+            case Block.OP_SUB:
+            case Block.OP_MUL:
+            case Block.OP_DIV:
+            case Block.OP_MOD:
+                if (is(1, Block.OP_INTEGER) && is(2, Block.OP_INTEGER) && last != Block.OP_DIV) {
+                    long x = integer(2);
+                    long y = integer(1);
+                    long r;
+                    switch (last) {
+                        case Block.OP_ADD:
+                            r = x + y;
+                            if (Arithmetic.addOverflows(x, y, r)) {
+                                return false;
+                            }
+                            break;
+                        case Block.OP_SUB:
+                            r = x - y;
+                            if (Arithmetic.subOverflows(x, y, r)) {
+                                return false;
+                            }
+                            break;
+                        case Block.OP_MUL:
+                            r = x * y;
+                            if (Arithmetic.mulOverflows(x, y, r)) {
+                                return false;
+                            }
+                            break;
+                        default:
+                            if (y == 0) {
+                                return false;
+                            }
+                            r = x % y;
+                            break;
+                    }
+                    return replace(3, Block.OP_INTEGER, integerConstant(r), 0);
+                }
+                if (isLiteral(1) && isLiteral(2)) {
+                    double x = value(2);
+                    double y = value(1);
+                    return replace(3, Block.OP_NUMBER, constant(Arithmetic.arith(last, x, y)), 0);
+                }
+                if (is(1, Block.OP_NUMBER) && (last == Block.OP_ADD || last == Block.OP_SUB)) {
+                    double y = number(1);
+                    return replace(2, Block.OP_ADD_NUM, constant(last == Block.OP_ADD ? y : -y), 0);
+                }
+                // Not x 0 -, which would be x 0 +: -0.0 0 - is -0.0, but
+                // -0.0 0 + is 0.0.
+                if (is(1, Block.OP_INTEGER) && (last == Block.OP_ADD || (last == Block.OP_SUB && integer(1) != 0))
+                        && integer(1) != Long.MIN_VALUE) {
+                    long y = integer(1);
+                    return replace(2, Block.OP_ADD_INT, integerConstant(last == Block.OP_ADD ? y : -y), 0);
+                }
+                if (last == Block.OP_MUL && is(1, Block.OP_DUP)) {
+                    return replace(2, Block.OP_SQUARE, 0, 0);
+                }
+                return false;
+            case Block.OP_SQRT:
+                if (isLiteral(1)) {
+                    return replace(2, Block.OP_NUMBER, constant(Math.sqrt(value(1))), 0);
+                }
+                return false;
+            case Block.OP_LESS:
+            case Block.OP_LE:
+            case Block.OP_EQUAL:
+            case Block.OP_GE:
+            case Block.OP_GREATER:
+                if (isLiteral(1) && isLiteral(2)) {
+                    boolean result = is(1, Block.OP_INTEGER) && is(2, Block.OP_INTEGER)
+                            ? Arithmetic.compare(last, Long.compare(integer(2), integer(1)))
+                            : Arithmetic.compare(last, value(2), value(1));
+                    return replace(3, result ? Block.OP_TRUE : Block.OP_FALSE, 0, 0);
+                }
+                if (is(1, Block.OP_NUMBER)) {
+                    int opcode = Block.OP_LESS_NUM + (last - Block.OP_LESS);
+                    return replace(2, opcode, as[count - 2], 0);
+                }
+                if (is(1, Block.OP_INTEGER)) {
+                    int opcode = Block.OP_LESS_INT + (last - Block.OP_LESS);
+                    return replace(2, opcode, as[count - 2], 0);
+                }
+                return false;
+            case Block.OP_NOT:
+                if (isBoolean(1)) {
+                    return replace(2, is(1, Block.OP_TRUE) ? Block.OP_FALSE : Block.OP_TRUE, 0, 0);
+                }
+                return false;
+            case Block.OP_AND:
+            case Block.OP_OR:
+                if (isBoolean(1) && isBoolean(2)) {
+                    boolean y = is(1, Block.OP_TRUE);
+                    boolean x = is(2, Block.OP_TRUE);
+                    boolean result = last == Block.OP_AND ? x && y : x || y;
+                    return replace(3, result ? Block.OP_TRUE : Block.OP_FALSE, 0, 0);
+                }
+                return false;
+            case Block.OP_DROP:
+                if (isLiteral(1) || is(1, Block.OP_OBJECT) || isBoolean(1)
+                        || is(1, Block.OP_FETCH_VAR)) {
+                    drop(2);
+                    return false;
+                }
+                if (is(1, Block.OP_SWAP)) {
+                    return replace(2, Block.OP_NIP, 0, 0);
+                }
+                return false;
+            case Block.OP_FETCH:
+                if (isVar(1)) {
+                    return replace(2, Block.OP_FETCH_VAR, as[count - 2], 0);
+                }
+                return false;
+            case Block.OP_STORE:
+                if (isVar(1)) {
+                    return replace(2, Block.OP_STORE_VAR, as[count - 2], 0);
+                }
+                return false;
+            case Block.OP_STORE_VAR:
+                if (is(1, Block.OP_ADD_NUM) && is(2, Block.OP_FETCH_VAR) && as[count - 3] == as[count - 1]) {
+                    return replace(3, Block.OP_ADD_VAR, as[count - 1], as[count - 2]);
+                }
+                if (is(1, Block.OP_ADD_INT) && is(2, Block.OP_FETCH_VAR) && as[count - 3] == as[count - 1]) {
+                    return replace(3, Block.OP_ADD_VAR_INT, as[count - 1], as[count - 2]);
+                }
+                return false;
+            case Block.OP_BREAK:
+            case Block.OP_CONTINUE:
+                if (is(1, Block.OP_FALSE)) {
+                    drop(2);
+                    return false;
+                }
+                if (is(1, Block.OP_TRUE)) {
+                    replace(2, last == Block.OP_BREAK ? Block.OP_EXIT : Block.OP_RESTART, 0, 0);
+                    dead = true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package scratch.lang;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+// Per-word execution profile of one interpreter, switched on and off with
+// Scratch.setProfiling. While it is on, blocks run through execute below
+// instead of the dispatch loop in Block, so every word, built-in or not,
+// is counted and timed; while it is off the only cost is one null check
+// per block.
+//
+// Inclusive time covers everything a word calls, exclusive time only the
+// word itself. A word that is running when it is called again (e.g. RUN
+// inside RUN) only has its outermost call added to its inclusive time.
+public class Profiler {
+    public static class WordStats {
+        public final String name;
+        public final long calls;
+        public final long inclusive_nanos;
+        public final long exclusive_nanos;
+        public final long iterations; // Loop bodies run by TIMES, WHILE, LOOP.
+
+        WordStats(String name, long calls, long inclusive_nanos, long exclusive_nanos, long iterations) {
+            this.name = name;
+            this.calls = calls;
+            this.inclusive_nanos = inclusive_nanos;
+            this.exclusive_nanos = exclusive_nanos;
+            this.iterations = iterations;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-16s %10d %12.3f %12.3f %10d", name, calls,
+                    inclusive_nanos / 1e6, exclusive_nanos / 1e6, iterations);
+        }
+    }
+
+    private static class Record {
+        final String name;
+        long calls;
+        long inclusive;
+        long exclusive;
+        long iterations;
+        int active;
+
+        Record(String name) {
+            this.name = name;
+        }
+    }
+
+    private final Scratch terp;
+    private final IdentityHashMap<Code, Record> records = new IdentityHashMap<>();
+    private final Code[] builtins = new Code[Block.OP_LOOP + 1];
+    // Time spent in callees by each running call, innermost last.
+    private long[] children = new long[64];
+    private int depth;
+    private int max_stack;
+
+    Profiler(Scratch terp) {
+        this.terp = terp;
+    }
+
+    // Run CODE as a single profiled call.
+    void call(Code code) {
+        Record record = record(code);
+        if (depth == children.length) {
+            long[] new_children = new long[depth * 2];
+            System.arraycopy(children, 0, new_children, 0, depth);
+            children = new_children;
+        }
+        children[depth++] = 0;
+        record.calls++;
+        record.active++;
+        long start = System.nanoTime();
+        try {
+            code.call(terp);
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            record.active--;
+            if (record.active == 0) {
+                record.inclusive += elapsed;
+            }
+            record.exclusive += elapsed - children[--depth];
+            if (depth > 0) {
+                children[depth - 1] += elapsed;
+            }
+            if (terp.stack.size() > max_stack) {
+                max_stack = terp.stack.size();
+            }
+        }
+    }
+
+    // Count COUNT runs of a loop body by LOOP_WORD.
+    void iterations(Code loop_word, long count) {
+        record(loop_word).iterations += count;
+    }
+
+    // Block.execute with every instruction going through call.
+    void execute(Block block, Scratch terp) {
+        final int[] code = block.plain;
+        int pc = 0;
+        while (pc < code.length) {
+            int opcode = code[pc++];
+            switch (opcode) {
+                case Block.OP_NUMBER:
+                    terp.stack.pushDouble(block.numbers[code[pc++]]);
+                    break;
+                case Block.OP_INTEGER:
+                    terp.stack.pushLong(block.integers[code[pc++]]);
+                    break;
+                case Block.OP_OBJECT:
+                    terp.stack.pushObject(block.constants[code[pc++]]);
+                    break;
+                case Block.OP_CALL: {
+                    // Counted under the definition that runs.
+                    Code word = (Code)block.constants[code[pc++]];
+                    call(word instanceof CodeCall ? ((CodeCall)word).code(terp) : word);
+                    break;
+                }
+                case Block.OP_CONTINUE:
+                case Block.OP_BREAK:
+                    try {
+                        call(builtin(opcode));
+                    } catch (LoopFrame.Transfer transfer) {
+                        if (transfer.loop >= 0) {
+                            throw transfer; // To the loop word running.
+                        }
+                        // No loop: leave or restart the block.
+                        if (opcode == Block.OP_BREAK) {
+                            return;
+                        }
+                        pc = 0;
+                        terp.tick(code.length + 1);
+                    }
+                    break;
+                default:
+                    call(builtin(opcode));
+                    break;
+            }
+        }
+    }
+
+    public int maxStackDepth() {
+        return max_stack;
+    }
+
+    // Every word called so far, most exclusive time first.
+    public List<WordStats> snapshot() {
+        List<WordStats> stats = new ArrayList<>();
+        for (Record record : records.values()) {
+            stats.add(new WordStats(record.name, record.calls, record.inclusive, record.exclusive, record.iterations));
+        }
+        Collections.sort(stats, new Comparator<WordStats>() {
+            @Override
+            public int compare(WordStats a, WordStats b) {
+                return Long.compare(b.exclusive_nanos, a.exclusive_nanos);
+            }
+        });
+        return stats;
+    }
+
+    public void reset() {
+        records.clear();
+        max_stack = 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%-16s %10s %12s %12s %10s%n", "word", "calls", "incl ms", "excl ms", "loops"));
+        for (WordStats stats : snapshot()) {
+            builder.append(stats).append(String.format("%n"));
+        }
+        builder.append("max stack depth ").append(max_stack);
+        return builder.toString();
+    }
+
+    private Code builtin(int opcode) {
+        Code code = builtins[opcode];
+        if (code == null) {
+            code = builtins[opcode] = terp.builtin(Block.name(opcode));
+        }
+        return code;
+    }
+
+    // Named when first seen, so a word that is later redefined keeps the
+    // name it was called by.
+    private Record record(Code code) {
+        Record record = records.get(code);
+        if (record == null) {
+            record = new Record(terp.nameOf(code));
+            records.put(code, record);
+        }
+        return record;
+    }
+}
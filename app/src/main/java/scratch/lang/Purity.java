@@ -0,0 +1,184 @@
+package scratch.lang;
+
+import java.util.IdentityHashMap;
+
+// What running a block can do other than work on the stack, found from its
+// code and that of every word and list constant it calls. The parallel
+// list words (PMAP, PREDUCE, PFILTER) only hand pure blocks to other
+// threads and run any other block one item at a time, as MAP, REDUCE and
+// FILTER do.
+//
+// A block is pure when nothing it can run stores to a variable or uses a
+// built-in with side effects (printing, for one), nor ?BREAK or ?CONTINUE
+// (which would leave a loop in the caller). Reading variables is fine, and
+// so is running lists (RUN, IFTRUE, TIMES, MAP, ...), but not both: a list
+// read from a variable could be anything. Lists it is given as items are
+// checked separately, with itemsArePure.
+//
+// Words a block calls by name (see CodeCall) are looked up as the
+// interpreter would run them, so the result for such a block only holds
+// until the interpreter's bindings change.
+final class Purity {
+    static final int SIDE_EFFECTS = 1;
+    static final int FETCHES = 2;
+    static final int RUNS = 4;
+
+    private final Scratch terp;
+    private final IdentityHashMap<Block, Boolean> seen = new IdentityHashMap<>();
+    private int effects;
+    private boolean calls; // Whether any word was looked up by name.
+
+    private Purity(Scratch terp) {
+        this.terp = terp;
+    }
+
+    // The result for a block, with the bindings it depends on, if any.
+    static final class Cached {
+        final Scratch.Bindings bindings;
+        final int effects;
+
+        Cached(Scratch.Bindings bindings, int effects) {
+            this.bindings = bindings;
+            this.effects = effects;
+        }
+    }
+
+    // The effects of BLOCK run by TERP, an OR of the flags above.
+    static int of(Scratch terp, Block block) {
+        Cached cached = block.effects;
+        if (cached == null || (cached.bindings != null && cached.bindings != terp.bindings())) {
+            Purity purity = new Purity(terp);
+            purity.scan(block);
+            cached = block.effects = new Cached(purity.calls ? terp.bindings() : null, purity.effects);
+        }
+        return cached.effects;
+    }
+
+    static boolean isPure(Scratch terp, Block block) {
+        return isPure(of(terp, block));
+    }
+
+    private static boolean isPure(int effects) {
+        return (effects & SIDE_EFFECTS) == 0 && (effects & (FETCHES | RUNS)) != (FETCHES | RUNS);
+    }
+
+    static boolean runsLists(Scratch terp, Block block) {
+        return (of(terp, block) & RUNS) != 0;
+    }
+
+    // Whether VALUE, handed to a block that runs lists, is pure: if it is a
+    // list, the block may run it or any list in it.
+    static boolean isPure(Scratch terp, Object value) {
+        if (!(value instanceof ScratchList) || ((ScratchList)value).isNumeric()) {
+            return true;
+        }
+        Purity purity = new Purity(terp);
+        purity.scan((ScratchList)value);
+        return isPure(purity.effects);
+    }
+
+    // Whether every item of LIST is pure, as above.
+    static boolean itemsArePure(Scratch terp, ScratchList list) {
+        if (list.isNumeric()) {
+            return true;
+        }
+        for (int i = 0; i < list.size(); i++) {
+            if (!isPure(terp, list.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void scan(Block block) {
+        if (seen.put(block, Boolean.TRUE) != null) {
+            return;
+        }
+        int[] code = block.plain;
+        int pc = 0;
+        while (pc < code.length) {
+            int opcode = code[pc];
+            switch (opcode) {
+                case Block.OP_OBJECT: {
+                    Object constant = block.constants[code[pc + 1]];
+                    if (constant instanceof ScratchList) {
+                        scan((ScratchList)constant);
+                    }
+                    break;
+                }
+                case Block.OP_CALL:
+                    call(block.constants[code[pc + 1]]);
+                    break;
+                case Block.OP_STORE:
+                case Block.OP_BREAK:
+                case Block.OP_CONTINUE:
+                    effects |= SIDE_EFFECTS;
+                    break;
+                case Block.OP_FETCH:
+                    effects |= FETCHES;
+                    break;
+                case Block.OP_RUN:
+                case Block.OP_IFTRUE:
+                case Block.OP_IFFALSE:
+                case Block.OP_TIMES:
+                case Block.OP_WHILE:
+                case Block.OP_LOOP:
+                    effects |= RUNS;
+                    break;
+                default:
+                    break;
+            }
+            pc += Block.length(opcode);
+        }
+    }
+
+    // A list that does not compile counts as impure, so that its error
+    // comes where it would have without the check.
+    private void scan(ScratchList list) {
+        try {
+            scan(list.block());
+        } catch (RuntimeException e) {
+            effects |= SIDE_EFFECTS;
+        }
+        for (int i = 0; i < list.size(); i++) {
+            Object item = list.get(i);
+            if (item instanceof ScratchList) {
+                scan((ScratchList)item);
+            }
+        }
+    }
+
+    private void call(Object code) {
+        if (code instanceof CodeCall) {
+            calls = true;
+            try {
+                code = ((CodeCall)code).code(terp);
+            } catch (RuntimeException e) {
+                effects |= SIDE_EFFECTS; // Fails where it would without the check.
+                return;
+            }
+        }
+        if (code instanceof CodeVarRef || code instanceof CodeConstRef) {
+            return; // Pushes the variable or the value.
+        }
+        if (code instanceof CodeWordRef) {
+            Block block = ((CodeWordRef)code).block;
+            if (block == null) {
+                effects |= SIDE_EFFECTS;
+            } else {
+                scan(block);
+            }
+        } else if (code instanceof CodeMap || code instanceof CodeReduce || code instanceof CodeFilter
+                || code instanceof CodePMap || code instanceof CodePReduce || code instanceof CodePFilter) {
+            effects |= RUNS;
+        } else if (!(code instanceof CodeLength || code instanceof CodeItem || code instanceof CodeSum
+                || code instanceof CodeMin || code instanceof CodeMax || code instanceof CodeSlice
+                || code instanceof CodeAppend || code instanceof CodeCompare || code instanceof CodeStrEqual
+                || code instanceof CodeVAdd || code instanceof CodeVMul || code instanceof CodeVSqrt
+                || code instanceof CodeVDot || code instanceof CodeVSum || code instanceof CodeVLess
+                || code instanceof CodeVLE || code instanceof CodeVEqual || code instanceof CodeVGE
+                || code instanceof CodeVGreater)) {
+            effects |= SIDE_EFFECTS;
+        }
+    }
+}
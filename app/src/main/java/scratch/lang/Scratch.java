@@ -3,870 +3,569 @@
  */
 package scratch.lang;
 
-import java.util.HashMap;
-import java.util.Stack;
-
-class ScratchLexer {
-    private String text;
-    private int position; // Beginning of TEXT.
-
-    public ScratchLexer(String text) {
-        this.text = text;
-        position = 0;
-    }
-
-    // Trying to avoid regular expressions here.
-    public boolean isWhitespace(char ch) {
-        return ch == ' '
-                || ch == '\t'
-                || ch == '\r'
-                || ch == '\n';
-    }
-
-    public String nextWord() {
-        if (position >= text.length()) {
-            return null;
-        }
-        while (isWhitespace(text.charAt(position))) {
-            position++;
-            if (position >= text.length()) {
-                return null;
-            }
-        }
-        int new_pos = position;
-        while (!isWhitespace(text.charAt(new_pos))) {
-            new_pos++;
-            if (new_pos >= text.length()) {
-                break;
-            }
-        }
-        String collector = text.substring(position, new_pos);
-        new_pos++;
-        position = new_pos; // Skip the delimiter.
-        return collector;
-    }
-
-    public String nextCharsUpTo(char ch) {
-        if (position >= text.length()) {
-            return null;
-        }
-        int new_pos = position;
-        while (text.charAt(new_pos) != ch) {
-            new_pos++;
-            if (new_pos >= text.length()) {
-                throw new RuntimeException("Unexpected end of input");
-            }
-        }
-        String collector = text.substring(position, new_pos);
-        new_pos++;
-        position = new_pos; // Skip the delimiter.
-        return collector;
-    }
-}
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Scratch {
-    private HashMap<String, Code> dictionary = new HashMap<>();
-    private Stack<Object> data_stack = new Stack<>();
-    private Stack<Object> compile_buffer = new Stack<>();
-    public Stack<Object> stack = data_stack;
+    private final Dictionary dictionary;
+    private SymbolTable words = new SymbolTable(); // Not yet published.
+    final LiteralParser literals = new LiteralParser();
+    private final CompiledScript.Cache scripts = new CompiledScript.Cache(256, 1 << 22);
+    private DataStack data_stack = new DataStack();
+    private DataStack compile_buffer = new DataStack();
+    public DataStack stack = data_stack;
     private boolean immediate = false;
     public ScratchLexer lexer;
     public String latest;
-    public int code_pointer;
-    public boolean break_state;
+    CodeWordRef defining; // The word between DEF and END, for RECURSE.
+    public boolean jit = true;
+    public int jit_threshold = 1000;
+    Profiler profiler; // Null unless profiling.
+    private OutputSink output; // Made on first use (see getOutput).
+    private Bindings bindings; // See bindings().
+
+    // Limits (see setLimits). FUEL counts down the instructions left until
+    // the next check; without limits it never runs out.
+    private static final long CHECK_INTERVAL = 1 << 16;
+    private long fuel = Long.MAX_VALUE;
+    private long slice = Long.MAX_VALUE;
+    private long executed;
+    private long max_instructions = Long.MAX_VALUE;
+    private long deadline;
+    private boolean timed;
+    private AtomicBoolean cancelled; // For a fork: set once its work is not wanted.
+
+    // Return stack: where to go back to when a block called from the
+    // checked dispatch loop in Block is done.
+    private static final int DEFAULT_MAX_RETURN_DEPTH = 100000;
+    Block[] return_blocks = new Block[256];
+    int[] return_pcs = new int[256];
+    int return_depth;
+    private int max_return_depth = DEFAULT_MAX_RETURN_DEPTH;
+
+    // Control stack: the loops being run, innermost last (see LoopFrame).
+    // Frames are kept for reuse once popped.
+    LoopFrame[] loops = new LoopFrame[16];
+    int loop_depth;
 
     public Scratch() {
-        Object[] words = {
-                "PRINT", new CodePrint(),
-                ".", new CodePrint(),
-                "PSTACK", new CodePstack(),
-                ".S", new CodePstack(),
-                "+", new CodeAdd(),
-                "-", new CodeSub(),
-                "*", new CodeMul(),
-                "/", new CodeDiv(),
-                "%", new CodeMod(),
-                "SQRT", new CodeSqrt(),
-                "DUP", new CodeDup(),
-                "DROP", new CodeDrop(),
-                "SWAP", new CodeSwap(),
-                "OVER", new CodeOver(),
-                "ROT", new CodeRot(),
-                "CLEAR", new CodeClear(),
-                "VAR", new CodeVar(),
-                "STORE", new CodeStore(),
-                "!", new CodeStore(),
-                "FETCH", new CodeFetch(),
-                "@", new CodeFetch(),
-                "CONST", new CodeConst(),
-                "\"", new CodeString(),
-                "/*", new CodeCComment(),
-                "(", new CodeComment(),
-                "//", new CodeCCComment(),
-                "DEF", new CodeDef(),
-                ":", new CodeDef(),
-                "END", new CodeEnd(),
-                ";", new CodeEnd(),
-                "[", new CodeList(),
-                "LENGTH", new CodeLength(),
-                "ITEM", new CodeItem(),
-                "RUN", new CodeRun(),
-                "TIMES", new CodeTimes(),
-                "IFTRUE", new CodeIfTrue(),
-                "IFFALSE", new CodeIfFalse(),
-                "WHILE", new CodeWhile(),
-                "?CONTINUE", new CodeContinue(),
-                "?BREAK", new CodeBreak(),
-                "LOOP", new CodeLoop(),
-                "TRUE", new CodeTrue(),
-                "FALSE", new CodeFalse(),
-                "AND", new CodeAnd(),
-                "OR", new CodeOr(),
-                "NOT", new CodeNot(),
-                "<", new CodeLess(),
-                "<=", new CodeLE(),
-                "=", new CodeEqual(),
-                ">=", new CodeGE(),
-                ">", new CodeGreater(),
-        };
-        for (int i = 0; i < words.length; i += 2) {
-            define((String)words[i], (Code)words[i + 1]);
-        }
+        this(new Dictionary());
     }
 
-    public void define(String word, Code code) {
-        dictionary.put(word.toUpperCase(), code);
-    }
-
-    public void run(String text) {
-        lexer = new ScratchLexer(text);
-        String word;
-        while ((word = lexer.nextWord()) != null) {
-            Object obj = compile(word);
-            if (immediate) {
-                interpret(obj);
-                immediate = false;
-            } else if (isCompiling()) {
-                stack.push(obj);
-            } else {
-                interpret(obj);
-            }
-        }
+    // An interpreter working on top of DICTIONARY. Its own definitions are
+    // kept apart, and seen by no one else, until it calls publish.
+    public Scratch(Dictionary dictionary) {
+        this.dictionary = dictionary;
     }
 
-    public Object compile(String word) {
-        word = word.toUpperCase();
-        if (dictionary.containsKey(word)) {
-            immediate = dictionary.get(word).immediate;
-            return dictionary.get(word);
-        }
-        try {
-            return Double.parseDouble(word);
-        } catch (NumberFormatException e) {
-            throw new RuntimeException("Unknown word: [" + word + "]");
-        }
+    public Dictionary getDictionary() {
+        return dictionary;
     }
 
-    public void interpret(Object word) {
-        if (word instanceof Code) {
-            ((Code)word).call(this);
-        } else {
-            stack.push(word);
-        }
+    Code builtin(String name) {
+        return dictionary.builtin(name);
     }
 
-    public void startCompiling() {
-        stack = compile_buffer;
+    String builtinName(Code code) {
+        return dictionary.builtinName(code);
     }
 
-    public void stopCompiling() {
-        stack = data_stack;
+    SymbolTable words() {
+        return words;
     }
 
-    private boolean isCompiling() {
-        return stack == compile_buffer;
+    // Start or stop counting and timing every word this interpreter runs.
+    // Switching profiling back on starts a new profile.
+    public void setProfiling(boolean on) {
+        profiler = on ? new Profiler(this) : null;
     }
 
-    public static void main(String[] args) {
-        Scratch terp = new Scratch();
-        String[] texts = {
-                "1 2 + print",
-                "3 4 - print",
-                "5 6 * print",
-                "7 8 / print",
-                "9 sqrt print",
-                "10 dup pstack clear",
-                "11 drop pstack",
-                "12 13 swap pstack clear",
-                "14 15 over pstack clear",
-                "16 17 18 rot pstack clear",
-                "var a 19 a ! a @ print",
-                "20 const b b print",
-                "\" 21\" print",
-                "22 /* comment */ print",
-                "23 ( comment ) print",
-                "24 // comment\n print",
-                ": c 25 print ; c",
-                "true [ 26 . ] iftrue",
-                "false [ 26.1 . ] iffalse",
-                "false [ 27 . ] iffalse",
-                "true [ 27.1 . ] iffalse",
-                "true true and [ 28 . ] iftrue",
-                "false true and [ 28.1 . ] iftrue",
-                "true false or [ 29 . ] iftrue",
-                "false false or [ 29.1 . ] iftrue",
-                "false not [ 30 . ] iftrue",
-                "31 31 < [ 31 . ] iffalse",
-                "32 32 <= [ 32 . ] iftrue",
-                "33 33 = [ 33 . ] iftrue",
-                "34 34 > [ 34 . ] iffalse",
-                "35 35 >= [ 35 . ] iftrue",
-                "[ 36 . ] 3 times",
-                "var d 0 d ! [ d @ 3 < ] [ 37 . d @ 1 + d ! ] while",
-                "var e 0 e ! [ e @ 3 >= ?break 38 . e @ 1 + e ! ] loop",
-                "var f 0 f ! [ 39 . f @ 1 + f ! f @ 3 < ?continue true ?break ] loop",
-                "40 40 % .",
-                "pstack",
-        };
-        for (String text : texts) {
-            terp.run(text);
-        }
+    // The current profile, or null if profiling is off.
+    public Profiler getProfiler() {
+        return profiler;
     }
-}
-
-abstract class Code {
-    public boolean immediate;
 
-    public abstract void call(Scratch terp);
-}
-
-abstract class CodeImmediate extends Code {
-    public CodeImmediate() {
-        immediate = true;
+    // Where PRINT, PSTACK and SEE write: by default, standard output,
+    // flushed at the end of each run.
+    public void setOutput(OutputSink output) {
+        this.output = output;
     }
-}
 
-// Print and discard top of stack.
-class CodePrint extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
+    public OutputSink getOutput() {
+        if (output == null) {
+            output = OutputSink.Buffered.standard();
         }
-        Object tos = terp.stack.pop();
-        System.out.println(tos);
+        return output;
     }
-}
 
-// Print out the contents of the stack.
-class CodePstack extends Code {
-    @Override
-    public void call(Scratch terp) {
-        System.out.println(terp.stack);
+    // Stop running with LimitExceeded once INSTRUCTIONS instructions have
+    // been executed or TIMEOUT_MILLIS have passed, counting from now, or
+    // when the thread is interrupted. A limit of 0 means none. Limits are
+    // checked every few thousand instructions, not after each one.
+    public void setLimits(long instructions, long timeout_millis) {
+        executed = 0;
+        max_instructions = instructions > 0 ? instructions : Long.MAX_VALUE;
+        timed = timeout_millis > 0;
+        deadline = System.nanoTime() + timeout_millis * 1000000;
+        slice = fuel = Math.min(CHECK_INTERVAL, max_instructions);
     }
-}
 
-class CodeAdd extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        double tos = (double)terp.stack.pop();
-        double _2os = (double)terp.stack.pop();
-        terp.stack.push(_2os + tos);
+    public void clearLimits() {
+        max_instructions = Long.MAX_VALUE;
+        timed = false;
+        slice = fuel = Long.MAX_VALUE;
     }
-}
 
-class CodeSub extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        double tos = (double)terp.stack.pop();
-        double _2os = (double)terp.stack.pop();
-        terp.stack.push(_2os - tos);
+    // Words and lists may nest at most DEPTH calls deep before running
+    // into "Return stack overflow"; tail calls do not count.
+    public void setMaxReturnDepth(int depth) {
+        max_return_depth = depth;
     }
-}
 
-class CodeMul extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        double tos = (double)terp.stack.pop();
-        double _2os = (double)terp.stack.pop();
-        terp.stack.push(_2os * tos);
+    public int getMaxReturnDepth() {
+        return max_return_depth;
     }
-}
 
-class CodeDiv extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
+    void pushReturn(Block block, int pc) {
+        if (return_depth >= max_return_depth) {
+            throw new RuntimeException("Return stack overflow");
         }
-        double tos = (double)terp.stack.pop();
-        double _2os = (double)terp.stack.pop();
-        terp.stack.push(_2os / tos);
-    }
-}
-
-class CodeMod extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
+        if (return_depth == return_blocks.length) {
+            int new_size = (int)Math.min((long)return_depth * 2, max_return_depth);
+            Block[] new_blocks = new Block[new_size];
+            int[] new_pcs = new int[new_size];
+            System.arraycopy(return_blocks, 0, new_blocks, 0, return_depth);
+            System.arraycopy(return_pcs, 0, new_pcs, 0, return_depth);
+            return_blocks = new_blocks;
+            return_pcs = new_pcs;
         }
-        double tos = (double)terp.stack.pop();
-        double _2os = (double)terp.stack.pop();
-        terp.stack.push((double)((int)_2os % (int)tos));
+        return_blocks[return_depth] = block;
+        return_pcs[return_depth++] = pc;
     }
-}
 
-class CodeSqrt extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
+    LoopFrame pushLoop(int kind, int return_depth) {
+        if (loop_depth == loops.length) {
+            LoopFrame[] new_loops = new LoopFrame[loop_depth * 2];
+            System.arraycopy(loops, 0, new_loops, 0, loop_depth);
+            loops = new_loops;
         }
-        double tos = (double)terp.stack.pop();
-        terp.stack.push(Math.sqrt(tos));
-    }
-}
-
-// Duplicate the top of stack (TOS).
-class CodeDup extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
+        LoopFrame loop = loops[loop_depth];
+        if (loop == null) {
+            loop = loops[loop_depth] = new LoopFrame();
         }
-        Object tos = terp.stack.pop();
-        terp.stack.push(tos);
-        terp.stack.push(tos);
+        loop_depth++;
+        loop.kind = kind;
+        loop.return_depth = return_depth;
+        loop.done = 0;
+        loop.in_cond = false;
+        return loop;
     }
-}
 
-// Throw away the TOS -- the opposite of DUP.
-class CodeDrop extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
+    // Run BLOCK once for the JAVA loop frame at index LOOP: false if the
+    // loop has been left with ?BREAK.
+    boolean runLoopBlock(Block block, int loop) {
+        try {
+            block.execute(this);
+            return true;
+        } catch (LoopFrame.Transfer transfer) {
+            if (transfer.loop != loop) {
+                throw transfer;
+            }
+            return !transfer.is_break;
         }
-        terp.stack.pop();
     }
-}
 
-// Exchange positions of TOS and second item on stack (2OS).
-class CodeSwap extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
+    // Account for COST instructions about to be executed.
+    void tick(int cost) {
+        fuel -= cost;
+        if (fuel < 0) {
+            checkLimits();
         }
-        Object tos = terp.stack.pop();
-        Object _2os = terp.stack.pop();
-        terp.stack.push(tos);
-        terp.stack.push(_2os);
     }
-}
 
-// Copy 2OS on top of stack.
-class CodeOver extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
+    private void checkLimits() {
+        executed += slice - fuel;
+        if (Thread.interrupted() || (cancelled != null && cancelled.get())) {
+            throw new LimitExceeded("Interrupted");
         }
-        Object tos = terp.stack.pop();
-        Object _2os = terp.stack.pop();
-        terp.stack.push(_2os);
-        terp.stack.push(tos);
-        terp.stack.push(_2os);
-    }
-}
-
-// Bring the 3rd item on stack to the top.
-class CodeRot extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 3) {
-            throw new RuntimeException("Not enough items on stack");
+        if (executed >= max_instructions) {
+            throw new LimitExceeded("Instruction limit exceeded");
         }
-        Object tos = terp.stack.pop();
-        Object _2os = terp.stack.pop();
-        Object _3os = terp.stack.pop();
-        terp.stack.push(_2os);
-        terp.stack.push(tos);
-        terp.stack.push(_3os);
+        if (timed && System.nanoTime() - deadline > 0) {
+            throw new LimitExceeded("Time limit exceeded");
+        }
+        slice = fuel = Math.min(CHECK_INTERVAL, max_instructions - executed);
     }
-}
 
-class CodeClear extends Code {
-    @Override
-    public void call(Scratch terp) {
-        terp.stack.clear();
+    // Account for INSTRUCTIONS run for this interpreter by its forks.
+    void charge(long instructions) {
+        fuel -= instructions;
+        if (fuel < 0) {
+            checkLimits();
+        }
     }
-}
 
-class CodeVarRef extends Code {
-    public Object value;
-
-    @Override
-    public void call(Scratch terp) {
-        terp.stack.push(this);
+    // Instructions run since the limits were set; only counted with limits.
+    long instructionsExecuted() {
+        return executed + slice - fuel;
     }
-}
 
-// Read next word from input and make it a variable.
-class CodeVar extends CodeImmediate {
-    @Override
-    public void call(Scratch terp) {
-        String var_name = terp.lexer.nextWord();
-        if (var_name == null) {
-            throw new RuntimeException("Unexpected end of input");
+    // An interpreter to run pure blocks for this one on another thread (see
+    // Parallel): the same dictionary and settings, its own stacks, and the
+    // instructions and time this one has left. It stops with LimitExceeded
+    // once CANCELLED is set.
+    Scratch fork(AtomicBoolean cancelled) {
+        Scratch fork = new Scratch(dictionary);
+        // Calls in the blocks it runs are looked up in this one's words.
+        fork.words = words;
+        fork.bindings = bindings;
+        fork.jit = jit;
+        fork.jit_threshold = jit_threshold;
+        fork.max_return_depth = max_return_depth;
+        fork.cancelled = cancelled;
+        if (max_instructions != Long.MAX_VALUE) {
+            fork.max_instructions = Math.max(max_instructions - instructionsExecuted(), 0);
         }
-        terp.define(var_name, new CodeVarRef());
+        fork.timed = timed;
+        fork.deadline = deadline;
+        fork.slice = fork.fuel = Math.min(CHECK_INTERVAL, fork.max_instructions);
+        return fork;
     }
-}
 
-// Store value of 2OS into variable given by TOS.
-class CodeStore extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        CodeVarRef reference = (CodeVarRef)terp.stack.pop();
-        reference.value = terp.stack.pop();
+    // For a fork: what cancels it, and so any forks of its own.
+    AtomicBoolean cancelled() {
+        return cancelled;
     }
-}
 
-// Replace reference to variable on TOS with its value.
-class CodeFetch extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
+    // Thrown when a script runs past the limits set with setLimits.
+    public static class LimitExceeded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        LimitExceeded(String message) {
+            super(message);
         }
-        CodeVarRef reference = (CodeVarRef)terp.stack.pop();
-        terp.stack.push(reference.value);
     }
-}
-
-class CodeConstRef extends Code {
-    private final Object value;
 
-    public CodeConstRef(Object value) {
-        this.value = value;
+    // Make this interpreter's definitions part of the shared dictionary.
+    public void publish() {
+        dictionary.publish(words.entries());
+        words = new SymbolTable();
+        bindings = null;
     }
 
-    @Override
-    public void call(Scratch terp) {
-        terp.stack.push(value);
-    }
-}
+    // What names mean to this interpreter at the moment: its own words, as
+    // of their version, over the current shared table. The same object is
+    // returned until something is defined here or published, so a cache
+    // of lookups (see CodeCall) can be checked with a single compare.
+    // Interpreters with no words of their own share the table's. Words
+    // published by another interpreter are seen from the next run on.
+    static final class Bindings {
+        final int version;
+        final SymbolTable shared;
 
-// Read next word from input and make it a constant with TOS as value.
-class CodeConst extends CodeImmediate {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
+        Bindings(int version, SymbolTable shared) {
+            this.version = version;
+            this.shared = shared;
         }
-        String const_name = terp.lexer.nextWord();
-        if (const_name == null) {
-            throw new RuntimeException("Unexpected end of input");
-        }
-        Object const_value = terp.stack.pop();
-        terp.define(const_name, new CodeConstRef(const_value));
-    }
-}
-
-class CodeString extends CodeImmediate {
-    @Override
-    public void call(Scratch terp) {
-        terp.stack.push(terp.lexer.nextCharsUpTo('"'));
     }
-}
 
-class CodeCComment extends CodeImmediate {
-    @Override
-    public void call(Scratch terp) {
-        String next_word;
-        do {
-            next_word = terp.lexer.nextWord();
-            if (next_word == null) {
-                throw new RuntimeException("Unexpected end of input");
+    Bindings bindings() {
+        Bindings current = bindings;
+        if (current == null) {
+            SymbolTable shared = dictionary.snapshot();
+            if (words.size() > 0) {
+                current = new Bindings(words.version, shared);
+            } else {
+                current = shared.unshadowed;
+                if (current == null) {
+                    current = shared.unshadowed = new Bindings(0, shared);
+                }
             }
-        } while (!next_word.endsWith("*/"));
+            bindings = current;
+        }
+        return current;
     }
-}
 
-class CodeComment extends CodeImmediate {
-    @Override
-    public void call(Scratch terp) {
-        terp.lexer.nextCharsUpTo(')');
+    public void define(String word, Code code) {
+        words.define(word, code);
+        bindings = null;
     }
-}
 
-class CodeCCComment extends CodeImmediate {
-    @Override
-    public void call(Scratch terp) {
-        terp.lexer.nextCharsUpTo('\n');
+    public void run(CharSequence text) {
+        run(new ScratchLexer(text));
     }
-}
 
-class CodeWordRef extends Code {
-    public Stack code;
-
-    public CodeWordRef(Stack code) {
-        this.code = code;
-    }
-
-    @Override
-    public void call(Scratch terp) {
-        int old_pointer = terp.code_pointer;
-        terp.code_pointer = 0;
-        while (terp.code_pointer >= 0 && terp.code_pointer < code.size()) {
-            terp.interpret(code.get(terp.code_pointer));
-            terp.code_pointer++;
+    public void run(Reader reader) throws IOException {
+        try {
+            run(new ScratchLexer(reader));
+        } catch (ScratchLexer.ReadError e) {
+            throw e.getCause();
         }
-        terp.code_pointer = old_pointer;
     }
-}
 
-class CodeDef extends CodeImmediate {
-    @Override
-    public void call(Scratch terp) {
-        String new_word = terp.lexer.nextWord();
-        if (new_word == null) {
-            throw new RuntimeException("Unexpected end of input");
+    // The file is memory-mapped and streamed through the lexer, so it is
+    // never loaded into memory as a whole.
+    public void run(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            run(new ScratchLexer.MappedReader(in.getChannel(), Charset.forName("UTF-8")));
         }
-        terp.latest = new_word;
-        terp.startCompiling();
     }
-}
 
-class CodeEnd extends CodeImmediate {
-    @Override
-    public void call(Scratch terp) {
-        Stack<Object> new_code = new Stack<>();
-        new_code.addAll(terp.stack); // Clone compile_buffer.
-        terp.stack.clear(); // Clear compile_buffer.
-        terp.define(terp.latest, new CodeWordRef(new_code));
-        terp.stopCompiling();
+    // Write every definition this interpreter can see, other than the
+    // built-ins, to FILE.
+    public void saveImage(File file) throws IOException {
+        ScratchImage.save(dictionary, definitions(), file);
     }
-}
 
-class CodeList extends CodeImmediate {
-    @Override
-    public void call(Scratch terp) {
-        Stack<Object> list = new Stack<>();
-        Stack<Object> old_stack = terp.stack;
-        terp.stack = list;
-        do {
-            String next_word = terp.lexer.nextWord();
-            if (next_word == null) {
-                throw new RuntimeException("Unexpected end of input");
-            }
-            if (next_word.equals("]")) {
-                break;
-            }
-            Object obj = terp.compile(next_word);
-            if ((obj instanceof Code) && ((Code)obj).immediate) {
-                terp.interpret(obj);
-            } else {
-                terp.stack.push(obj);
-            }
-        } while (true);
-        terp.stack = old_stack;
-        terp.stack.push(list);
-    }
-}
-
-class CodeLength extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        Object temp = terp.stack.pop();
-        if (!(temp instanceof Stack)) {
-            throw new RuntimeException("List expected");
-        }
-        terp.stack.push(((Stack)temp).size());
+    // Add the definitions saved in FILE to this interpreter's own. They are
+    // decoded lazily, the first time each one is looked up.
+    public void loadImage(File file) throws IOException {
+        ScratchImage.load(dictionary, words, file);
+        bindings = null;
     }
-}
 
-class CodeItem extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        double index = (double)terp.stack.pop();
-        Object obj = terp.stack.pop();
-        if (obj instanceof Stack) {
-            terp.stack.push(((Stack)obj).get((int)index));
-        } else {
-            throw new RuntimeException("Object expected");
+    // Lex and resolve TEXT once; repeated calls with the same text return
+    // the cached result.
+    public CompiledScript prepare(String text) {
+        CompiledScript script = scripts.get(text);
+        if (script == null) {
+            script = new CompiledScript(this, text);
+            scripts.put(text, script);
         }
+        return script;
     }
-}
 
-class CodeRun extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
+    void run(ScratchLexer lexer) {
+        this.lexer = lexer;
+        Bindings current = bindings;
+        if (current != null && (current.shared != dictionary.snapshot() || current.version != words.version)) {
+            bindings = null;
         }
-        Object temp = terp.stack.pop();
-        if (!(temp instanceof Stack)) {
-            throw new RuntimeException("List expected");
+        try {
+            while (lexer.next()) {
+                Object obj = compile(lexer);
+                if (immediate) {
+                    interpret(obj);
+                    immediate = false;
+                } else if (isCompiling()) {
+                    stack.push(reference(obj, lexer));
+                } else {
+                    interpret(obj);
+                }
+            }
+        } finally {
+            if (output != null) {
+                output.endRun();
+            }
         }
-        terp.interpret(new CodeWordRef((Stack)temp));
     }
-}
 
-class CodeTimes extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        double count = (double)terp.stack.pop();
-        Object code = terp.stack.pop();
-        if (!(code instanceof Stack)) {
-            throw new RuntimeException("List expected");
-        }
-        Code word = new CodeWordRef((Stack)code);
-        for (int i = 0; i < count; i++) {
-            word.call(terp);
+    public Object compile(String word) {
+        return compile(word.toCharArray(), 0, word.length());
+    }
+
+    // Compile the lexer's current token.
+    Object compile(ScratchLexer lexer) {
+        if (lexer.token >= 0) {
+            Object obj = lexer.script.lookup(this, lexer.token);
+            if (obj instanceof Code) {
+                immediate = ((Code)obj).immediate;
+                return obj;
+            } else if (obj != null) {
+                return obj;
+            }
         }
+        return compile(lexer.buf, lexer.start, lexer.length);
     }
-}
 
-class CodeIfTrue extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
+    Object compile(char[] chars, int start, int length) {
+        SymbolTable.Entry entry = find(chars, start, length);
+        if (entry != null) {
+            Code code = entry.code();
+            immediate = code.immediate;
+            return code;
         }
-        Object code = terp.stack.pop();
-        boolean cond = (boolean)terp.stack.pop();
-        if (!(code instanceof Stack)) {
-            throw new RuntimeException("List expected");
-        }
-        if (cond) {
-            terp.interpret(new CodeWordRef((Stack)code));
+        Object literal = literals.parse(chars, start, length);
+        if (literal == null) {
+            throw new RuntimeException("Unknown word: [" + new String(chars, start, length).toUpperCase() + "]");
         }
+        return literal;
     }
-}
 
-class CodeIfFalse extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
+    // What compiled code holds for OBJ, just compiled from LEXER's current
+    // token: a word defined with DEF, VAR or CONST is held by name (see
+    // CodeCall), so that running the code uses its latest definition, as
+    // the same words typed at the top level would. Inside its own
+    // definition a word's name still means the previous one, so that stays
+    // bound. Built-ins are compiled in as they are.
+    Object reference(Object obj, ScratchLexer lexer) {
+        if (!(obj instanceof CodeWordRef || obj instanceof CodeVarRef || obj instanceof CodeConstRef)) {
+            return obj;
         }
-        Object code = terp.stack.pop();
-        boolean cond = (boolean)terp.stack.pop();
-        if (!(code instanceof Stack)) {
-            throw new RuntimeException("List expected");
-        }
-        if (!cond) {
-            terp.interpret(new CodeWordRef((Stack)code));
+        char[] name = SymbolTable.fold(lexer.buf, lexer.start, lexer.length);
+        if (defining != null && new String(name).equals(new String(SymbolTable.fold(
+                latest.toCharArray(), 0, latest.length())))) {
+            return obj;
         }
+        return new CodeCall(name);
     }
-}
 
-class CodeWhile extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        Object code = terp.stack.pop();
-        Object cond = terp.stack.pop();
-        if (!(code instanceof Stack)) {
-            throw new RuntimeException("List expected");
-        }
-        if (!(cond instanceof Stack)) {
-            throw new RuntimeException("List expected");
-        }
-        Code code_word = new CodeWordRef((Stack)code);
-        Code cond_word = new CodeWordRef((Stack)cond);
-        do {
-            cond_word.call(terp);
-            if (terp.stack.size() < 1) {
-                throw new RuntimeException("Not enough items on stack");
-            }
-            boolean val = (boolean)terp.stack.pop();
-            if (val) {
-                break;
+    // The definition of a word: this interpreter's own, else the shared one.
+    SymbolTable.Entry find(char[] chars, int start, int length) {
+        SymbolTable.Entry entry = words.lookup(chars, start, length);
+        if (entry == null || entry.code() == null) {
+            entry = dictionary.snapshot().lookup(chars, start, length);
+            if (entry == null || entry.code() == null) {
+                return null;
             }
-            code_word.call(terp);
-        } while (true);
-    }
-}
-
-class CodeContinue extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        boolean cond = (boolean)terp.stack.pop();
-        if (cond) {
-            terp.code_pointer = -1;
         }
+        return entry;
     }
-}
 
-class CodeBreak extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
+    // The name CODE is known by, for listings: a built-in's, else that of
+    // a definition it is the code of, else its class.
+    String nameOf(Code code) {
+        if (code instanceof CodeCall) {
+            return code.toString();
         }
-        boolean cond = (boolean)terp.stack.pop();
-        if (cond) {
-            terp.code_pointer = Integer.MIN_VALUE;
-            terp.break_state = true;
+        String name = builtinName(code);
+        if (name != null) {
+            return name;
         }
-    }
-}
-
-class CodeLoop extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        Object code = terp.stack.pop();
-        if (!(code instanceof Stack)) {
-            throw new RuntimeException("List expected");
-        }
-        Code code_word = new CodeWordRef((Stack)code);
-        boolean old_break_state = terp.break_state;
-        terp.break_state = false;
-        do {
-            code_word.call(terp);
-        } while (!terp.break_state);
-        terp.break_state = old_break_state;
-    }
-}
-
-class CodeTrue extends Code {
-    @Override
-    public void call(Scratch terp) {
-        terp.stack.push(true);
-    }
-}
-
-class CodeFalse extends Code {
-    @Override
-    public void call(Scratch terp) {
-        terp.stack.push(false);
-    }
-}
-
-class CodeAnd extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
+        for (SymbolTable.Entry entry : definitions()) {
+            if (entry.code() == code) {
+                return entry.toString();
+            }
         }
-        boolean term2 = (boolean)terp.stack.pop();
-        boolean term1 = (boolean)terp.stack.pop();
-        terp.stack.push(term1 && term2);
+        return code.getClass().getSimpleName();
     }
-}
 
-class CodeOr extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
+    // Every visible definition, shadowed shared ones left out.
+    List<SymbolTable.Entry> definitions() {
+        List<SymbolTable.Entry> list = words.entries();
+        for (SymbolTable.Entry entry : dictionary.snapshot().entries()) {
+            if (words.lookup(entry.name, 0, entry.name.length) == null) {
+                list.add(entry);
+            }
         }
-        boolean term2 = (boolean)terp.stack.pop();
-        boolean term1 = (boolean)terp.stack.pop();
-        terp.stack.push(term1 || term2);
+        return list;
     }
-}
 
-class CodeNot extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
+    public void interpret(Object word) {
+        if (word instanceof Code) {
+            if (profiler != null) {
+                profiler.call((Code)word);
+                return;
+            }
+            ((Code)word).call(this);
+        } else {
+            stack.push(word);
         }
-        boolean term = (boolean)terp.stack.pop();
-        terp.stack.push(!term);
     }
-}
 
-class CodeLess extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        double term2 = (double)terp.stack.pop();
-        double term1 = (double)terp.stack.pop();
-        terp.stack.push(term1 < term2);
+    public void startCompiling() {
+        stack = compile_buffer;
     }
-}
 
-class CodeLE extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        double term2 = (double)terp.stack.pop();
-        double term1 = (double)terp.stack.pop();
-        terp.stack.push(term1 <= term2);
+    public void stopCompiling() {
+        stack = data_stack;
     }
-}
 
-class CodeEqual extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        double term2 = (double)terp.stack.pop();
-        double term1 = (double)terp.stack.pop();
-        terp.stack.push(term1 == term2);
+    private boolean isCompiling() {
+        return stack == compile_buffer;
     }
-}
 
-class CodeGE extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
+    public static void main(String[] args) {
+        Scratch terp = new Scratch();
+        String[] texts = {
+                "1 2 + print",
+                "3 4 - print",
+                "5 6 * print",
+                "7 8 / print",
+                "9 sqrt print",
+                "10 dup pstack clear",
+                "11 drop pstack",
+                "12 13 swap pstack clear",
+                "14 15 over pstack clear",
+                "16 17 18 rot pstack clear",
+                "var a 19 a ! a @ print",
+                "20 const b b print",
+                "\" 21\" print",
+                "22 /* comment */ print",
+                "23 ( comment ) print",
+                "24 // comment\n print",
+                ": c 25 print ; c",
+                "true [ 26 . ] iftrue",
+                "false [ 26.1 . ] iffalse",
+                "false [ 27 . ] iffalse",
+                "true [ 27.1 . ] iffalse",
+                "true true and [ 28 . ] iftrue",
+                "false true and [ 28.1 . ] iftrue",
+                "true false or [ 29 . ] iftrue",
+                "false false or [ 29.1 . ] iftrue",
+                "false not [ 30 . ] iftrue",
+                "31 31 < [ 31 . ] iffalse",
+                "32 32 <= [ 32 . ] iftrue",
+                "33 33 = [ 33 . ] iftrue",
+                "34 34 > [ 34 . ] iffalse",
+                "35 35 >= [ 35 . ] iftrue",
+                "[ 36 . ] 3 times",
+                "var d 0 d ! [ d @ 3 < ] [ 37 . d @ 1 + d ! ] while",
+                "var e 0 e ! [ e @ 3 >= ?break 38 . e @ 1 + e ! ] loop",
+                "var f 0 f ! [ 39 . f @ 1 + f ! f @ 3 < ?continue true ?break ] loop",
+                "40 40 % .",
+                "[ 41 42 ] dup length . 1 item .",
+                ": g 0 [ 1 + ] 43 times ; g .",
+                "var h 0 h ! : h+ h @ 1 + h ! ; [ h+ ] 2000 times h @ 1956 - .",
+                ": i 0 [ 2 3 * + dup 100 > ?break ] loop ; see i i .",
+                ": j dup 0 > [ 1 - recurse ] iftrue ; 100000 j .",
+                "[ 1 2 3 ] [ 2 * ] map [ 4 ] append dup . 0 [ + ] reduce .",
+                // Words compiled before a variable or constant is redefined
+                // use the new one, as the top level does.
+                "var p 5 p ! : q p @ 1 + ; var p 100 p ! q . 5 const r : s r 1 + ; 6 const r s .",
+                // Literals at the edges of LiteralParser's fast path.
+                "4.9e-324 2.2250738585072011e-308 9007199254740993.0 1e-400 1e309 pstack clear",
+                "0.1e1 123456789012345678901 -9223372036854775808 -0.0 pstack clear",
+                // Doubles OutputSink must write as Double.toString does.
+                "1e7 . 9999999.999999998 . 1e-3 . 9.999999999999998e-4 . 1e23 . -1.0 sqrt . -0.0 .",
+                // V words over items of mixed kinds, and an integer overflow.
+                "[ 1 2.5 123456789012345678901 ] [ 1 1 1 ] v+ . [ 4611686018427387904 2 ] [ 4 1 ] vdot .",
+                // The empty list sums and folds as integers.
+                "[ ] sum . [ ] vsum . [ ] 5 [ + ] reduce .",
+                // PREDUCE over more than two chunks with a block that is pure
+                // but not associative.
+                "[ 1 ] [ dup append ] 12 times 0 [ - ] preduce .",
+                "pstack",
+        };
+        for (String text : texts) {
+            terp.run(text);
         }
-        double term2 = (double)terp.stack.pop();
-        double term1 = (double)terp.stack.pop();
-        terp.stack.push(term1 >= term2);
-    }
-}
-
-class CodeGreater extends Code {
-    @Override
-    public void call(Scratch terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
+        CompiledScript script = terp.prepare("var n 45 n ! n @ . : n 46 ; n .");
+        script.execute(terp);
+        script.execute(terp);
+        // Input split inside a definition, a string and a comment.
+        ScratchFeed feed = new ScratchFeed(terp);
+        String[] pieces = {": k \" 4", "7\" print ( com", "ment ) ; k", " 48 . ( a", " b ) 49 ."};
+        for (String piece : pieces) {
+            feed.feed(piece);
+        }
+        feed.finish();
+        // V words given items that are not numbers fail, and leave their
+        // operands on the stack as they were.
+        String[] failing = {"[ 1 \" a\" ] 1 v+", "[ 1 \" a\" ] [ 1 2 ] v+", "[ \" a\" ] vsum", "[ 1 \" a\" ] vsqrt"};
+        for (String text : failing) {
+            try {
+                terp.run(text);
+            } catch (RuntimeException e) {
+                terp.getOutput().write(e.getMessage());
+                terp.getOutput().newline();
+            }
+            terp.run("pstack clear");
         }
-        double term2 = (double)terp.stack.pop();
-        double term1 = (double)terp.stack.pop();
-        terp.stack.push(term1 > term2);
     }
 }
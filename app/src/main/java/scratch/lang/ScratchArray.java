@@ -0,0 +1,137 @@
+package scratch.lang;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.FileChannel;
+
+// An array of doubles outside the Java heap, usually a file mapped into
+// memory by MAPFILE, for numeric data too big to hold as a list. ITEM,
+// LENGTH, SLICE, SUM, MIN, MAX and the V words (see Vectors) work on it as
+// on a list, and ITEM! writes to it. A slice is a view of the same memory,
+// not a copy, so writing to one writes to the array (and the file) it came
+// from.
+//
+// Files hold little-endian doubles, 8 bytes each, and nothing else: a file
+// whose length is not a multiple of 8 is not mapped. A file is mapped as a
+// whole, so it can be at most 2 GB; it is mapped read-only if it cannot be
+// written to.
+public class ScratchArray {
+    private final DoubleBuffer data;
+
+    // The items of DATA between its position and its limit, which are not
+    // copied. Any buffer will do, on the heap or not; a read-only one makes
+    // a read-only array.
+    public ScratchArray(DoubleBuffer data) {
+        this.data = data.slice();
+    }
+
+    public static ScratchArray map(File file) throws IOException {
+        boolean writable = file.canWrite();
+        try (RandomAccessFile in = new RandomAccessFile(file, writable ? "rw" : "r")) {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size % 8 != 0) {
+                throw new IOException(file + " is not a whole number of doubles (" + size + " bytes)");
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too big to map");
+            }
+            // The mapping stays valid once the file is closed.
+            MappedByteBuffer bytes = channel.map(
+                    writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+            return new ScratchArray(bytes.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer());
+        }
+    }
+
+    public int size() {
+        return data.limit();
+    }
+
+    public double get(int index) {
+        if (index < 0 || index >= data.limit()) {
+            throw new RuntimeException("Index out of range");
+        }
+        return data.get(index);
+    }
+
+    public void set(int index, double value) {
+        if (index < 0 || index >= data.limit()) {
+            throw new RuntimeException("Index out of range");
+        }
+        try {
+            data.put(index, value);
+        } catch (ReadOnlyBufferException e) {
+            throw new RuntimeException("Array is read-only");
+        }
+    }
+
+    // Copies COUNT items from index FROM up into the start of INTO.
+    void get(int from, double[] into, int count) {
+        if (from < 0 || count < 0 || from + count > data.limit()) {
+            throw new RuntimeException("Index out of range");
+        }
+        DoubleBuffer view = data.duplicate(); // As for slice.
+        view.position(from);
+        view.get(into, 0, count);
+    }
+
+    ScratchArray slice(int from, int to) {
+        if (from < 0 || to > data.limit() || from > to) {
+            throw new RuntimeException("Index out of range");
+        }
+        // A duplicate, so that the array's own position and limit are left
+        // alone for other threads reading it.
+        DoubleBuffer view = data.duplicate();
+        view.position(from);
+        view.limit(to);
+        return new ScratchArray(view);
+    }
+
+    double sum() {
+        double total = 0;
+        for (int i = 0, n = data.limit(); i < n; i++) {
+            total += data.get(i);
+        }
+        return total;
+    }
+
+    // Of no items at all: positive infinity.
+    double min() {
+        double min = Double.POSITIVE_INFINITY;
+        for (int i = 0, n = data.limit(); i < n; i++) {
+            min = Math.min(min, data.get(i));
+        }
+        return min;
+    }
+
+    // Of no items at all: negative infinity.
+    double max() {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0, n = data.limit(); i < n; i++) {
+            max = Math.max(max, data.get(i));
+        }
+        return max;
+    }
+
+    // The first few items, as for a list.
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("[");
+        int shown = Math.min(data.limit(), 16);
+        for (int i = 0; i < shown; i++) {
+            if (i > 0) {
+                text.append(", ");
+            }
+            text.append(data.get(i));
+        }
+        if (shown < data.limit()) {
+            text.append(", ... ").append(data.limit() - shown).append(" more");
+        }
+        return text.append("]").toString();
+    }
+}
@@ -0,0 +1,513 @@
+package scratch.lang;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+// Runs one piece of code over every record of a large input. The code is
+// compiled once, as a list would be, and shared by all threads. For each
+// record, its fields are pushed onto an empty stack (numbers as numbers,
+// anything else as a string), the code is run, and what is left on the
+// stack is written out as a line of its own, fields separated as in the
+// input. A record whose code fails is left out of the output and reported
+// to the error stream with its number, and the batch goes on. Empty
+// records, and ones of nothing but spaces and tabs, are skipped; they still
+// count when records are numbered.
+//
+// Records are separated by newlines (a CR before one is dropped) or by
+// another delimiter, and fields by runs of spaces and tabs or by a single
+// delimiter. With more than one thread, a reader thread cuts the input into
+// batches of records, worker threads run them, each in an interpreter of
+// its own on the shared dictionary, and the calling thread writes their
+// output in input order.
+//
+// Usage: ScratchBatch [-f definitions]... [-r record-delimiter]
+//        [-d field-delimiter] [-j threads] [-l max-instructions]
+//        -e code [input]
+// Reads standard input if no input file is given, and writes to standard
+// output; the number of records and records per second go to standard
+// error.
+public class ScratchBatch {
+    private static final int BATCH_CHARS = 1 << 16;
+    private static final int OUTPUT_BYTES = 1 << 16;
+
+    private final Dictionary dictionary;
+    private final Block code;
+    private char record_delimiter = '\n';
+    private char field_delimiter; // 0: spaces and tabs.
+    private int threads = 1;
+    private long max_instructions;
+    private PrintStream errors = System.err;
+
+    private long records;
+    private long failures;
+    private long nanos;
+
+    // CODE is compiled against DICTIONARY, so words it uses must have been
+    // published to it.
+    public ScratchBatch(Dictionary dictionary, String code) {
+        this.dictionary = dictionary;
+        Scratch terp = new Scratch(dictionary);
+        terp.run("[ " + code + " ]");
+        if (terp.stack.size() != 1) {
+            throw new RuntimeException("Unbalanced [ ] in batch code");
+        }
+        this.code = terp.stack.popList().block();
+    }
+
+    public void setDelimiters(char record_delimiter, char field_delimiter) {
+        this.record_delimiter = record_delimiter;
+        this.field_delimiter = field_delimiter;
+    }
+
+    // With 1 thread (the default), everything runs on the calling thread.
+    public void setThreads(int threads) {
+        this.threads = Math.max(threads, 1);
+    }
+
+    // Stop a record's code with an error after INSTRUCTIONS instructions; 0
+    // for no limit.
+    public void setMaxInstructions(long instructions) {
+        max_instructions = instructions;
+    }
+
+    public void setErrorStream(PrintStream errors) {
+        this.errors = errors;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    public double getRecordsPerSecond() {
+        return nanos > 0 ? records * 1e9 / nanos : 0;
+    }
+
+    public void run(Reader in, WritableByteChannel out) throws IOException {
+        records = 0;
+        failures = 0;
+        long start = System.nanoTime();
+        ChannelWriter writer = new ChannelWriter(out);
+        RecordReader reader = new RecordReader(in);
+        if (threads == 1) {
+            Worker worker = new Worker();
+            Batch batch;
+            while ((batch = reader.next()) != null) {
+                write(worker.run(batch), writer);
+            }
+        } else {
+            runPipelined(reader, writer);
+        }
+        writer.flush();
+        nanos = System.nanoTime() - start;
+    }
+
+    private void runPipelined(final RecordReader reader, ChannelWriter writer) throws IOException {
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final ThreadLocal<Worker> workers = new ThreadLocal<Worker>() {
+            @Override
+            protected Worker initialValue() {
+                return new Worker();
+            }
+        };
+        // Batches read but not yet written, in input order; a null batch
+        // marks the end of the input.
+        final BlockingQueue<Future<Batch>> queue = new ArrayBlockingQueue<>(threads * 4);
+        Thread reading = new Thread("ScratchBatch reader") {
+            @Override
+            public void run() {
+                try {
+                    Batch batch;
+                    do {
+                        try {
+                            batch = reader.next();
+                        } catch (IOException | RuntimeException e) {
+                            queue.put(done(e));
+                            return;
+                        }
+                        final Batch read = batch;
+                        queue.put(read == null ? done(null) : pool.submit(new Callable<Batch>() {
+                            @Override
+                            public Batch call() {
+                                return workers.get().run(read);
+                            }
+                        }));
+                    } while (batch != null);
+                } catch (InterruptedException e) {
+                    // The writer has given up.
+                }
+            }
+        };
+        reading.setDaemon(true);
+        reading.start();
+        try {
+            Batch batch;
+            while ((batch = queue.take().get()) != null) {
+                write(batch, writer);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw (Error)cause;
+        } finally {
+            reading.interrupt();
+            pool.shutdownNow();
+        }
+    }
+
+    // A future that is already done: with no batch if ERROR is null, else
+    // failed with ERROR.
+    private static Future<Batch> done(final Exception error) {
+        FutureTask<Batch> task = new FutureTask<Batch>(new Callable<Batch>() {
+            @Override
+            public Batch call() throws Exception {
+                if (error != null) {
+                    throw error;
+                }
+                return null;
+            }
+        });
+        task.run();
+        return task;
+    }
+
+    private void write(Batch batch, ChannelWriter writer) throws IOException {
+        writer.write(batch.output);
+        if (batch.errors.length() > 0) {
+            errors.print(batch.errors);
+        }
+        records += batch.count - batch.skipped;
+        failures += batch.failures;
+    }
+
+    // Records read in one go, and once run, what they came to.
+    private static final class Batch {
+        final long first; // Number of the first record, counting from 1.
+        final char[] chars;
+        final int[] starts;
+        final int[] ends;
+        final int count;
+        StringBuilder output;
+        StringBuilder errors;
+        int failures;
+        int skipped; // Blank records.
+
+        Batch(long first, char[] chars, int[] starts, int[] ends, int count) {
+            this.first = first;
+            this.chars = chars;
+            this.starts = starts;
+            this.ends = ends;
+            this.count = count;
+        }
+    }
+
+    private final class RecordReader {
+        private final Reader in;
+        private char[] pending = new char[0]; // Start of a record not yet ended.
+        private int pending_length;
+        private boolean eof;
+        private long next = 1;
+
+        RecordReader(Reader in) {
+            this.in = in;
+        }
+
+        // The next records, or null at the end of the input.
+        Batch next() throws IOException {
+            while (true) {
+                char[] chars = new char[Math.max(BATCH_CHARS, pending_length * 2)];
+                System.arraycopy(pending, 0, chars, 0, pending_length);
+                int length = pending_length;
+                while (length < chars.length && !eof) {
+                    int n = in.read(chars, length, chars.length - length);
+                    if (n < 0) {
+                        eof = true;
+                    } else {
+                        length += n;
+                    }
+                }
+                int[] starts = new int[256];
+                int[] ends = new int[256];
+                int count = 0;
+                int start = 0;
+                for (int i = 0; i <= length; i++) {
+                    if (i < length ? chars[i] != record_delimiter : !eof || start == length) {
+                        continue;
+                    }
+                    if (count == starts.length) {
+                        int[] new_starts = new int[count * 2];
+                        int[] new_ends = new int[count * 2];
+                        System.arraycopy(starts, 0, new_starts, 0, count);
+                        System.arraycopy(ends, 0, new_ends, 0, count);
+                        starts = new_starts;
+                        ends = new_ends;
+                    }
+                    int end = i;
+                    if (record_delimiter == '\n' && end > start && chars[end - 1] == '\r') {
+                        end--;
+                    }
+                    starts[count] = start;
+                    ends[count++] = end;
+                    start = i + 1;
+                }
+                // What follows the last delimiter is kept for the next batch;
+                // a record longer than the whole buffer makes it grow.
+                pending_length = Math.max(length - start, 0);
+                pending = new char[pending_length];
+                System.arraycopy(chars, Math.min(start, length), pending, 0, pending_length);
+                if (count > 0) {
+                    Batch batch = new Batch(next, chars, starts, ends, count);
+                    next += count;
+                    return batch;
+                }
+                if (eof) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    // An interpreter of its own, for one thread.
+    private final class Worker {
+        private final Scratch terp = new Scratch(dictionary);
+
+        Batch run(Batch batch) {
+            Block code = ScratchBatch.this.code.bind(terp);
+            StringBuilder output = new StringBuilder(batch.chars.length + 64);
+            StringBuilder errors = new StringBuilder();
+            char separator = field_delimiter != 0 ? field_delimiter : ' ';
+            for (int i = 0; i < batch.count; i++) {
+                if (isBlank(batch.chars, batch.starts[i], batch.ends[i])) {
+                    batch.skipped++;
+                    continue;
+                }
+                terp.stack.clear();
+                try {
+                    if (max_instructions > 0) {
+                        terp.setLimits(max_instructions, 0);
+                    }
+                    pushFields(batch.chars, batch.starts[i], batch.ends[i]);
+                    code.execute(terp);
+                } catch (RuntimeException e) {
+                    errors.append("Record ").append(batch.first + i).append(": ")
+                            .append(e.getMessage()).append('\n');
+                    batch.failures++;
+                    continue;
+                }
+                DataStack stack = terp.stack;
+                for (int j = 0; j < stack.size; j++) {
+                    if (j > 0) {
+                        output.append(separator);
+                    }
+                    if (stack.tags[j] == DataStack.NUMBER) {
+                        output.append(stack.numbers[j]);
+                    } else if (stack.tags[j] == DataStack.INTEGER) {
+                        output.append(stack.longs[j]);
+                    } else {
+                        output.append(stack.get(j));
+                    }
+                }
+                output.append(record_delimiter);
+            }
+            batch.output = output;
+            batch.errors = errors;
+            return batch;
+        }
+
+        private boolean isBlank(char[] chars, int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (chars[i] != ' ' && chars[i] != '\t') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void pushFields(char[] chars, int start, int end) {
+            if (field_delimiter != 0) {
+                int field = start;
+                for (int i = start; i <= end; i++) {
+                    if (i == end || chars[i] == field_delimiter) {
+                        pushField(chars, field, i);
+                        field = i + 1;
+                    }
+                }
+                return;
+            }
+            int i = start;
+            while (true) {
+                while (i < end && (chars[i] == ' ' || chars[i] == '\t')) {
+                    i++;
+                }
+                if (i == end) {
+                    return;
+                }
+                int field = i;
+                while (i < end && chars[i] != ' ' && chars[i] != '\t') {
+                    i++;
+                }
+                pushField(chars, field, i);
+            }
+        }
+
+        private void pushField(char[] chars, int start, int end) {
+            Object number = end > start ? terp.literals.parse(chars, start, end - start) : null;
+            if (number != null) {
+                terp.stack.push(number);
+            } else {
+                terp.stack.pushObject(ScratchString.copyOf(chars, start, end));
+            }
+        }
+    }
+
+    // Encodes text as UTF-8 into a buffer that is written out when full.
+    private static final class ChannelWriter {
+        private final WritableByteChannel out;
+        private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer bytes = ByteBuffer.allocateDirect(OUTPUT_BYTES);
+
+        ChannelWriter(WritableByteChannel out) {
+            this.out = out;
+        }
+
+        void write(CharSequence text) throws IOException {
+            CharBuffer chars = CharBuffer.wrap(text);
+            while (true) {
+                CoderResult result = encoder.encode(chars, bytes, false);
+                if (result.isUnderflow()) {
+                    return;
+                }
+                drain();
+            }
+        }
+
+        void flush() throws IOException {
+            drain();
+        }
+
+        private void drain() throws IOException {
+            bytes.flip();
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            bytes.clear();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Scratch terp = new Scratch();
+        String code = null;
+        String input = null;
+        char record_delimiter = '\n';
+        char field_delimiter = 0;
+        int threads = 1;
+        long max_instructions = 0;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("-") && arg.length() == 2 && i + 1 < args.length) {
+                String value = args[++i];
+                switch (arg.charAt(1)) {
+                    case 'f':
+                        terp.run(new File(value));
+                        continue;
+                    case 'e':
+                        code = value;
+                        continue;
+                    case 'r':
+                        record_delimiter = delimiter(value);
+                        continue;
+                    case 'd':
+                        field_delimiter = delimiter(value);
+                        continue;
+                    case 'j':
+                        threads = Integer.parseInt(value);
+                        continue;
+                    case 'l':
+                        max_instructions = Long.parseLong(value);
+                        continue;
+                    default:
+                        break;
+                }
+            } else if (input == null && !arg.startsWith("-")) {
+                input = arg;
+                continue;
+            }
+            code = null;
+            break;
+        }
+        if (code == null) {
+            System.err.println("Usage: ScratchBatch [-f definitions]... [-r record-delimiter]"
+                    + " [-d field-delimiter] [-j threads] [-l max-instructions] -e code [input]");
+            System.exit(2);
+        }
+        terp.publish();
+        ScratchBatch batch;
+        try {
+            batch = new ScratchBatch(terp.getDictionary(), code);
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        batch.setDelimiters(record_delimiter, field_delimiter);
+        batch.setThreads(threads);
+        batch.setMaxInstructions(max_instructions);
+        try (FileOutputStream out = new FileOutputStream(FileDescriptor.out)) {
+            if (input == null) {
+                batch.run(new InputStreamReader(System.in, "UTF-8"), out.getChannel());
+            } else {
+                try (FileInputStream in = new FileInputStream(input)) {
+                    batch.run(new ScratchLexer.MappedReader(in.getChannel(), Charset.forName("UTF-8")),
+                            out.getChannel());
+                }
+            }
+        }
+        System.err.printf("%d records (%d failed), %.0f records/s%n",
+                batch.getRecords(), batch.getFailures(), batch.getRecordsPerSecond());
+    }
+
+    // "\t" and "\n" may be written out as such.
+    private static char delimiter(String value) {
+        switch (value) {
+            case "\\t":
+                return '\t';
+            case "\\n":
+                return '\n';
+            default:
+                return value.charAt(0);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package scratch.lang;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Runs many small scripts against one shared Dictionary on a fixed pool of
+// threads. Each script gets a fresh Scratch, so scripts only see each
+// other's definitions once they are published. At most max_in_flight
+// scripts are queued or running at a time; submit blocks until one of them
+// is done. A script that runs over its limits, or whose Future is
+// cancelled, stops at the next limit check with Scratch.LimitExceeded.
+public class ScratchExecutor {
+    private final Dictionary dictionary;
+    private final ExecutorService pool;
+    private final Semaphore in_flight;
+
+    public ScratchExecutor(Dictionary dictionary, int threads, int max_in_flight) {
+        this.dictionary = dictionary;
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        this.in_flight = new Semaphore(max_in_flight);
+    }
+
+    // Run TEXT, giving it at most MAX_INSTRUCTIONS instructions and
+    // TIMEOUT_MILLIS of running time (0 for no limit). The result is the
+    // data stack as the script left it.
+    public Future<DataStack> submit(final String text, final long max_instructions, final long timeout_millis)
+            throws InterruptedException {
+        FutureTask<DataStack> task = new FutureTask<DataStack>(new Callable<DataStack>() {
+            @Override
+            public DataStack call() {
+                Scratch terp = new Scratch(dictionary);
+                terp.setLimits(max_instructions, timeout_millis);
+                terp.run(text);
+                return terp.stack;
+            }
+        }) {
+            @Override
+            protected void done() {
+                // Also called for tasks cancelled before they started.
+                in_flight.release();
+            }
+        };
+        in_flight.acquire();
+        try {
+            pool.execute(task);
+        } catch (RuntimeException e) {
+            in_flight.release();
+            throw e;
+        }
+        return task;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return pool.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,168 @@
+package scratch.lang;
+
+// Input pushed to an interpreter in pieces of any size, e.g. lines typed
+// into a REPL or buffers read from a socket. Each piece is scanned once,
+// by a small state machine that follows what the words reading ahead
+// (lists, definitions, strings, comments and the words taking a name)
+// will want; as soon as the input seen so far ends in something complete,
+// that part is run, and only what comes after it is kept. A definition or
+// list split across pieces is thus run once it is closed, and nothing is
+// ever scanned or run twice, however the input is cut up.
+//
+// As with Scratch.run, an error drops the rest of the complete input it
+// happened in; anything after that is kept. The state machine knows the
+// words reading ahead by their built-in names only: input that redefines
+// one of them, e.g. [ ( " : or VAR, is cut up as if it had not, and so
+// may be run before it is complete, or not until later input.
+public class ScratchFeed {
+    private static final int CODE = 0;
+    private static final int STRING = 1; // Up to ".
+    private static final int PAREN = 2; // Up to ).
+    private static final int LINE = 3; // Up to the end of the line.
+    private static final int BLOCK = 4; // Up to a word ending in */.
+
+    private final Scratch terp;
+    private final StringBuilder pending = new StringBuilder();
+    private int scanned; // Chars of PENDING already scanned.
+    private int complete; // Chars of PENDING that can be run.
+    private int token = -1; // Where the word being scanned starts.
+    private int mode = CODE;
+    private int lists; // [ not yet closed.
+    private boolean defining; // Between : and ;.
+    private boolean name; // The next word is a name.
+
+    public ScratchFeed(Scratch terp) {
+        this.terp = terp;
+    }
+
+    // Run as much of the input so far as is complete.
+    public void feed(CharSequence text) {
+        pending.append(text);
+        for (; scanned < pending.length(); scanned++) {
+            scan(pending.charAt(scanned));
+        }
+        if (complete > 0) {
+            String ready = pending.substring(0, complete);
+            pending.delete(0, complete);
+            scanned -= complete;
+            if (token >= 0) {
+                token -= complete;
+            }
+            complete = 0;
+            terp.run(ready);
+        }
+    }
+
+    // The end of the input: run whatever is left, complete or not, which
+    // fails as Scratch.run would on the same text.
+    public void finish() {
+        String rest = pending.toString();
+        reset();
+        if (!rest.trim().isEmpty()) {
+            terp.run(rest);
+        }
+    }
+
+    // Drop what has been fed and not yet run.
+    public void reset() {
+        pending.setLength(0);
+        scanned = complete = 0;
+        token = -1;
+        mode = CODE;
+        lists = 0;
+        defining = name = false;
+    }
+
+    // Whether input is waiting for more, e.g. for a REPL's second prompt.
+    public boolean isPending() {
+        return pending.length() > 0;
+    }
+
+    private void scan(char ch) {
+        switch (mode) {
+            case STRING:
+                end(ch == '"');
+                return;
+            case PAREN:
+                end(ch == ')');
+                return;
+            case LINE:
+                end(ch == '\n');
+                return;
+            default:
+                break;
+        }
+        boolean space = ch == ' ' || ch == '\t' || ch == '\r' || ch == '\n';
+        if (!space) {
+            if (token < 0) {
+                token = scanned;
+            }
+            return;
+        }
+        if (token >= 0) {
+            word(token, scanned - token);
+            token = -1;
+        }
+        if (mode == CODE) {
+            checkComplete();
+        }
+    }
+
+    // Leave a string or comment if CH closes it.
+    private void end(boolean closes) {
+        if (closes) {
+            mode = CODE;
+            checkComplete();
+        }
+    }
+
+    private void checkComplete() {
+        if (lists == 0 && !defining && !name) {
+            complete = scanned + 1;
+        }
+    }
+
+    // A word has been read, as the lexer will read it.
+    private void word(int start, int length) {
+        if (mode == BLOCK) {
+            if (length >= 2 && pending.charAt(start + length - 2) == '*'
+                    && pending.charAt(start + length - 1) == '/') {
+                mode = CODE;
+            }
+            return;
+        }
+        if (name) {
+            name = false;
+        } else if (is(start, length, "\"")) {
+            mode = STRING;
+        } else if (is(start, length, "(")) {
+            mode = PAREN;
+        } else if (is(start, length, "//")) {
+            mode = LINE;
+        } else if (is(start, length, "/*")) {
+            mode = BLOCK;
+        } else if (is(start, length, "[")) {
+            lists++;
+        } else if (is(start, length, "]")) {
+            lists = Math.max(lists - 1, 0);
+        } else if (is(start, length, ":") || is(start, length, "DEF")) {
+            defining = name = true;
+        } else if (is(start, length, ";") || is(start, length, "END")) {
+            defining = false;
+        } else if (is(start, length, "VAR") || is(start, length, "CONST") || is(start, length, "SEE")) {
+            name = true;
+        }
+    }
+
+    private boolean is(int start, int length, String word) {
+        if (length != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (Character.toUpperCase(pending.charAt(start + i)) != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
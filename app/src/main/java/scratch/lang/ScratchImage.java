@@ -0,0 +1,424 @@
+package scratch.lang;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+// Binary snapshot of an interpreter's dictionary. Everything a definition
+// can reach is stored as a graph of numbered objects (built-ins by name,
+// user words as compiled blocks, calls to them by name, variables and
+// constants with their values, lists with their items), so shared
+// variables stay shared after loading.
+//
+// Layout: magic, version, object count, an offset table of the object
+// records, then the dictionary (name, object number) pairs and finally
+// the records themselves. Loading maps the file and only fills in the
+// dictionary names; each object is decoded the first time it is reached.
+final class ScratchImage {
+    private static final int MAGIC = 0x53435249; // "SCRI"
+    private static final int VERSION = 3; // 1 had no O_CALL, 2 no integers.
+
+    // Object records.
+    private static final byte O_BUILTIN = 0;
+    private static final byte O_WORD = 1;
+    private static final byte O_VAR = 2;
+    private static final byte O_CONST = 3;
+    private static final byte O_LIST = 4;
+    private static final byte O_CALL = 5;
+
+    // Values, as found in variables, constants, lists and block constants.
+    private static final byte V_NULL = 0;
+    private static final byte V_NUMBER = 1;
+    private static final byte V_TRUE = 2;
+    private static final byte V_FALSE = 3;
+    private static final byte V_STRING = 4;
+    private static final byte V_OBJECT = 5;
+    private static final byte V_INTEGER = 6;
+    private static final byte V_BIG_INTEGER = 7; // As a decimal string.
+
+    private ScratchImage() {
+    }
+
+    static void save(Dictionary dictionary, List<SymbolTable.Entry> definitions, File file) throws IOException {
+        Writer writer = new Writer(dictionary);
+        List<SymbolTable.Entry> entries = new ArrayList<>();
+        List<Integer> ids = new ArrayList<>();
+        for (SymbolTable.Entry entry : definitions) {
+            Code code = entry.code();
+            String name = entry.toString();
+            // Untouched built-ins are there anyway when the image is loaded.
+            if (code == null || code == dictionary.builtin(name)) {
+                continue;
+            }
+            entries.add(entry);
+            ids.add(writer.object(code));
+        }
+        writer.writeRecords();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(writer.offsets.size());
+            int header = 12 + 4 * writer.offsets.size() + 4;
+            for (SymbolTable.Entry entry : entries) {
+                header += 4 + 2 * entry.name.length + 4;
+            }
+            for (int offset : writer.offsets) {
+                out.writeInt(header + offset);
+            }
+            out.writeInt(entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                char[] name = entries.get(i).name;
+                out.writeInt(name.length);
+                for (char ch : name) {
+                    out.writeChar(ch);
+                }
+                out.writeInt(ids.get(i));
+            }
+            out.write(writer.records.array(), 0, writer.records.position());
+        }
+    }
+
+    static void load(Dictionary dictionary, SymbolTable words, File file) throws IOException {
+        ByteBuffer buffer;
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a Scratch image: " + file);
+        }
+        int version = buffer.getInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported Scratch image version: " + file);
+        }
+        Reader reader = new Reader(dictionary, buffer, version, buffer.getInt());
+        buffer.position(buffer.position() + 4 * reader.objects.length);
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            char[] name = new char[buffer.getInt()];
+            for (int j = 0; j < name.length; j++) {
+                name[j] = buffer.getChar();
+            }
+            words.defineLazily(new String(name), reader, buffer.getInt());
+        }
+    }
+
+    private static class Writer {
+        private final Dictionary dictionary;
+        private final IdentityHashMap<Object, Integer> ids = new IdentityHashMap<>();
+        private final List<Object> objects = new ArrayList<>();
+        final List<Integer> offsets = new ArrayList<>();
+        ByteBuffer records = ByteBuffer.allocate(4096);
+
+        Writer(Dictionary dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        int object(Object obj) {
+            Integer id = ids.get(obj);
+            if (id == null) {
+                id = objects.size();
+                ids.put(obj, id);
+                objects.add(obj);
+            }
+            return id;
+        }
+
+        // Objects found while writing records are appended to OBJECTS, so
+        // this loop picks them up as well.
+        void writeRecords() {
+            for (int i = 0; i < objects.size(); i++) {
+                offsets.add(records.position());
+                writeRecord(objects.get(i));
+            }
+        }
+
+        private void writeRecord(Object obj) {
+            if (obj instanceof ScratchList) {
+                ScratchList list = (ScratchList)obj;
+                ensure(5);
+                records.put(O_LIST);
+                records.putInt(list.size());
+                for (int i = 0; i < list.size(); i++) {
+                    writeValue(list.get(i));
+                }
+            } else if (obj instanceof CodeWordRef) {
+                Block block = ((CodeWordRef)obj).block;
+                ensure(17 + 4 * block.plain.length + 8 * block.numbers.length + 8 * block.integers.length);
+                records.put(O_WORD);
+                records.putInt(block.plain.length);
+                for (int op : block.plain) {
+                    records.putInt(op);
+                }
+                records.putInt(block.numbers.length);
+                for (double number : block.numbers) {
+                    records.putDouble(number);
+                }
+                records.putInt(block.integers.length);
+                for (long integer : block.integers) {
+                    records.putLong(integer);
+                }
+                records.putInt(block.constants.length);
+                for (Object constant : block.constants) {
+                    writeValue(constant);
+                }
+            } else if (obj instanceof CodeCall) {
+                char[] name = ((CodeCall)obj).name;
+                ensure(5 + 2 * name.length);
+                records.put(O_CALL);
+                putString(new String(name));
+            } else if (obj instanceof CodeVarRef) {
+                ensure(1);
+                records.put(O_VAR);
+                writeValue(((CodeVarRef)obj).getValue());
+            } else if (obj instanceof CodeConstRef) {
+                ensure(1);
+                records.put(O_CONST);
+                writeValue(((CodeConstRef)obj).getValue());
+            } else {
+                String name = obj instanceof Code ? dictionary.builtinName((Code)obj) : null;
+                if (name == null) {
+                    throw new RuntimeException("Cannot save " + obj.getClass().getSimpleName());
+                }
+                ensure(5 + 2 * name.length());
+                records.put(O_BUILTIN);
+                putString(name);
+            }
+        }
+
+        private void writeValue(Object value) {
+            ensure(9);
+            if (value == null) {
+                records.put(V_NULL);
+            } else if (value instanceof Double) {
+                records.put(V_NUMBER);
+                records.putDouble((Double)value);
+            } else if (value instanceof Long) {
+                records.put(V_INTEGER);
+                records.putLong((Long)value);
+            } else if (value instanceof BigInteger) {
+                String digits = value.toString();
+                ensure(5 + 2 * digits.length());
+                records.put(V_BIG_INTEGER);
+                putString(digits);
+            } else if (value instanceof Boolean) {
+                records.put((Boolean)value ? V_TRUE : V_FALSE);
+            } else if (value instanceof CharSequence) {
+                String string = value.toString();
+                ensure(5 + 2 * string.length());
+                records.put(V_STRING);
+                putString(string);
+            } else if (value instanceof Code || value instanceof ScratchList) {
+                records.put(V_OBJECT);
+                records.putInt(object(value));
+            } else {
+                throw new RuntimeException("Cannot save " + value.getClass().getSimpleName());
+            }
+        }
+
+        private void putString(String string) {
+            records.putInt(string.length());
+            for (int i = 0; i < string.length(); i++) {
+                records.putChar(string.charAt(i));
+            }
+        }
+
+        private void ensure(int bytes) {
+            if (records.remaining() < bytes) {
+                ByteBuffer new_records = ByteBuffer.allocate(Math.max(records.capacity() * 2, records.position() + bytes));
+                records.flip();
+                new_records.put(records);
+                records = new_records;
+            }
+        }
+    }
+
+    // Decodes objects on demand. Reaching an object first creates an
+    // empty shell for it; the shell's contents (which may reach further
+    // objects) are filled in from a work list rather than by recursion, so
+    // long chains of words and self-references are handled alike. Once its
+    // definitions are published, a reader may be used by several threads.
+    static class Reader {
+        private final Dictionary dictionary;
+        private final ByteBuffer buffer;
+        private final int version;
+        private final int table;
+        private final Object[] objects;
+        private final Object[] contents; // What fill() has to fill in.
+        private final ArrayDeque<Integer> unfilled = new ArrayDeque<>();
+        private int position;
+
+        Reader(Dictionary dictionary, ByteBuffer buffer, int version, int count) {
+            this.dictionary = dictionary;
+            this.buffer = buffer.duplicate();
+            this.version = version;
+            this.table = buffer.position();
+            this.objects = new Object[count];
+            this.contents = new Object[count];
+        }
+
+        synchronized Code code(int id) {
+            Object obj = shell(id);
+            while (!unfilled.isEmpty()) {
+                fill(unfilled.poll());
+            }
+            return (Code)obj;
+        }
+
+        private Object shell(int id) {
+            Object obj = objects[id];
+            if (obj != null) {
+                return obj;
+            }
+            int saved = position;
+            position = offset(id) + 1;
+            switch (buffer.get(position - 1)) {
+                case O_BUILTIN:
+                    obj = dictionary.builtin(readString());
+                    break;
+                case O_CALL:
+                    obj = new CodeCall(readString().toCharArray());
+                    break;
+                case O_VAR:
+                    obj = new CodeVarRef();
+                    contents[id] = obj;
+                    unfilled.add(id);
+                    break;
+                case O_CONST:
+                    // Constants are immutable, so the value is read right
+                    // away; objects it refers to are only shells yet.
+                    obj = new CodeConstRef(readValue());
+                    break;
+                case O_LIST: {
+                    Object[] items = new Object[readInt()];
+                    obj = new ScratchList(items);
+                    contents[id] = items;
+                    unfilled.add(id);
+                    break;
+                }
+                case O_WORD: {
+                    // The block is made in fill, once its constants are
+                    // there for the peephole optimizer to look at.
+                    int code_length = readInt();
+                    position += 4 * code_length;
+                    int number_count = readInt();
+                    position += 8 * number_count;
+                    if (version >= 3) {
+                        int integer_count = readInt();
+                        position += 8 * integer_count;
+                    }
+                    Object[] constants = new Object[readInt()];
+                    obj = new CodeWordRef(null);
+                    contents[id] = constants;
+                    unfilled.add(id);
+                    break;
+                }
+                default:
+                    throw new RuntimeException("Corrupt Scratch image");
+            }
+            objects[id] = obj;
+            position = saved;
+            return obj;
+        }
+
+        private void fill(int id) {
+            position = offset(id) + 1;
+            Object target = contents[id];
+            contents[id] = null;
+            if (target instanceof CodeVarRef) {
+                ((CodeVarRef)target).setValue(readValue());
+                return;
+            }
+            int[] code = null;
+            double[] numbers = null;
+            long[] integers = new long[0];
+            if (objects[id] instanceof CodeWordRef) {
+                code = new int[readInt()];
+                for (int i = 0; i < code.length; i++) {
+                    code[i] = readInt();
+                }
+                numbers = new double[readInt()];
+                for (int i = 0; i < numbers.length; i++) {
+                    numbers[i] = buffer.getDouble(position);
+                    position += 8;
+                }
+                if (version >= 3) {
+                    integers = new long[readInt()];
+                    for (int i = 0; i < integers.length; i++) {
+                        integers[i] = buffer.getLong(position);
+                        position += 8;
+                    }
+                }
+            }
+            Object[] values = (Object[])target;
+            position += 4; // The count, also known from the shell.
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readValue();
+            }
+            if (code != null) {
+                ((CodeWordRef)objects[id]).block = new Block(code, numbers, integers, values);
+            } else if (objects[id] instanceof ScratchList) {
+                ((ScratchList)objects[id]).compact();
+            }
+        }
+
+        private int offset(int id) {
+            return buffer.getInt(table + 4 * id);
+        }
+
+        private int readInt() {
+            int value = buffer.getInt(position);
+            position += 4;
+            return value;
+        }
+
+        private Object readValue() {
+            byte tag = buffer.get(position++);
+            switch (tag) {
+                case V_NULL:
+                    return null;
+                case V_NUMBER: {
+                    double value = buffer.getDouble(position);
+                    position += 8;
+                    return value;
+                }
+                case V_INTEGER: {
+                    long value = buffer.getLong(position);
+                    position += 8;
+                    return value;
+                }
+                case V_BIG_INTEGER:
+                    return new BigInteger(readString());
+                case V_TRUE:
+                    return true;
+                case V_FALSE:
+                    return false;
+                case V_STRING:
+                    return ScratchString.intern(readString());
+                case V_OBJECT:
+                    return shell(readInt());
+                default:
+                    throw new RuntimeException("Corrupt Scratch image");
+            }
+        }
+
+        private String readString() {
+            char[] chars = new char[readInt()];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = buffer.getChar(position);
+                position += 2;
+            }
+            return new String(chars);
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package scratch.lang;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+// Streaming lexer. Input is pulled through a fixed-size window, so scripts
+// of any size are read in constant memory, and tokens are reported as spans
+// of that window (buf, start, length) instead of as new Strings.
+class ScratchLexer {
+    private static final int WINDOW = 8192;
+
+    private final Reader reader;
+    private final CharSequence text;
+    private int text_position;
+    char[] buf;
+    private int limit;
+    private int position; // Beginning of unread input in buf.
+    private boolean eof;
+
+    // The span of the token last returned by next().
+    int start;
+    int length;
+
+    // Replay of a prepared script: its token spans are known up front, so
+    // next() just steps through them. TOKEN is the index of the current
+    // token, or -1 if it had to be scanned after all.
+    final CompiledScript script;
+    int token = -1;
+    private int next_token;
+    private boolean synced = true;
+
+    public ScratchLexer(CharSequence text) {
+        this.text = text;
+        this.reader = null;
+        this.script = null;
+        buf = new char[Math.min(WINDOW, Math.max(text.length(), 16))];
+    }
+
+    public ScratchLexer(Reader reader) {
+        this.text = null;
+        this.reader = reader;
+        this.script = null;
+        buf = new char[WINDOW];
+    }
+
+    // Scan (or, with a script, replay) text that is already in memory.
+    ScratchLexer(char[] chars, CompiledScript script) {
+        this.text = null;
+        this.reader = null;
+        this.script = script;
+        buf = chars;
+        limit = chars.length;
+        eof = true;
+    }
+
+    // Trying to avoid regular expressions here.
+    public boolean isWhitespace(char ch) {
+        return ch == ' '
+                || ch == '\t'
+                || ch == '\r'
+                || ch == '\n';
+    }
+
+    // Advance to the next token and make it the current span.
+    public boolean next() {
+        if (script != null && replay()) {
+            return true;
+        }
+        token = -1;
+        do {
+            if (position >= limit) {
+                start = position;
+                if (!fill()) {
+                    return false;
+                }
+            }
+            if (!isWhitespace(buf[position])) {
+                break;
+            }
+            position++;
+        } while (true);
+        start = position;
+        int new_pos = position;
+        do {
+            if (new_pos >= limit) {
+                int offset = new_pos - start;
+                if (!fill()) {
+                    break;
+                }
+                new_pos = start + offset;
+            }
+            if (isWhitespace(buf[new_pos])) {
+                length = new_pos - start;
+                position = new_pos + 1; // Skip the delimiter.
+                return true;
+            }
+            new_pos++;
+        } while (true);
+        length = limit - start;
+        position = limit;
+        return true;
+    }
+
+    private boolean replay() {
+        int[] starts = script.starts;
+        if (!synced) {
+            // Raw input was consumed; find out where the next token starts
+            // and whether it is still one of the prepared ones.
+            while (position < limit && isWhitespace(buf[position])) {
+                position++;
+            }
+            while (next_token < starts.length && starts[next_token] < position) {
+                next_token++;
+            }
+            if (next_token == starts.length || starts[next_token] != position) {
+                return false;
+            }
+            synced = true;
+        }
+        if (next_token == starts.length) {
+            position = limit;
+            return false;
+        }
+        token = next_token++;
+        start = starts[token];
+        length = script.lengths[token];
+        position = start + length + 1; // Skip the delimiter.
+        return true;
+    }
+
+    public String nextWord() {
+        return next() ? new String(buf, start, length) : null;
+    }
+
+    // Does the current token read exactly WORD (ignoring case)?
+    public boolean tokenIs(String word) {
+        return length == word.length() && regionMatches(start, word);
+    }
+
+    public boolean tokenEndsWith(String suffix) {
+        return length >= suffix.length() && regionMatches(start + length - suffix.length(), suffix);
+    }
+
+    private boolean regionMatches(int from, String word) {
+        for (int i = 0; i < word.length(); i++) {
+            if (Character.toUpperCase(buf[from + i]) != Character.toUpperCase(word.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String nextCharsUpTo(char ch) {
+        return nextSpanUpTo(ch) ? new String(buf, start, length) : null;
+    }
+
+    // Like nextCharsUpTo, but leaves the chars as the current span instead
+    // of making a String of them. False at the end of input.
+    boolean nextSpanUpTo(char ch) {
+        synced = false;
+        if (position >= limit) {
+            start = position;
+            if (!fill()) {
+                return false;
+            }
+        }
+        start = position;
+        int new_pos = position;
+        do {
+            if (new_pos >= limit) {
+                int offset = new_pos - start;
+                if (!fill()) {
+                    throw new RuntimeException("Unexpected end of input");
+                }
+                new_pos = start + offset;
+            }
+            if (buf[new_pos] == ch) {
+                length = new_pos - start;
+                position = new_pos + 1; // Skip the delimiter.
+                return true;
+            }
+            new_pos++;
+        } while (true);
+    }
+
+    // Like nextCharsUpTo, but without keeping what was skipped.
+    public void skipUpTo(char ch) {
+        synced = false;
+        if (position >= limit) {
+            start = position;
+            if (!fill()) {
+                return;
+            }
+        }
+        do {
+            if (position >= limit) {
+                start = position;
+                if (!fill()) {
+                    throw new RuntimeException("Unexpected end of input");
+                }
+            }
+        } while (buf[position++] != ch);
+    }
+
+    // Read more input. The chars from START on are kept and moved to the
+    // front of the window; START and POSITION are adjusted to match.
+    private boolean fill() {
+        if (eof) {
+            return false;
+        }
+        int keep = limit - start;
+        if (buf.length - keep < 16) {
+            char[] new_buf = new char[buf.length * 2];
+            System.arraycopy(buf, start, new_buf, 0, keep);
+            buf = new_buf;
+        } else if (start > 0) {
+            System.arraycopy(buf, start, buf, 0, keep);
+        }
+        position -= start;
+        start = 0;
+        limit = keep;
+        int count = read(buf, keep, buf.length - keep);
+        if (count <= 0) {
+            eof = true;
+            return false;
+        }
+        limit += count;
+        return true;
+    }
+
+    private int read(char[] dest, int offset, int count) {
+        if (text != null) {
+            int available = Math.min(count, text.length() - text_position);
+            if (available <= 0) {
+                return -1;
+            }
+            if (text instanceof String) {
+                ((String)text).getChars(text_position, text_position + available, dest, offset);
+            } else {
+                for (int i = 0; i < available; i++) {
+                    dest[offset + i] = text.charAt(text_position + i);
+                }
+            }
+            text_position += available;
+            return available;
+        }
+        try {
+            int total;
+            do {
+                total = reader.read(dest, offset, count);
+            } while (total == 0);
+            return total;
+        } catch (IOException e) {
+            throw new ReadError(e);
+        }
+    }
+
+    static class ReadError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ReadError(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException)super.getCause();
+        }
+    }
+
+    // Decodes a file through successive memory-mapped regions, so only the
+    // current region is resident, not the whole file.
+    static class MappedReader extends Reader {
+        private static final long REGION = 1 << 26;
+
+        private final FileChannel channel;
+        private final long size;
+        private final CharsetDecoder decoder;
+        private long offset;
+        private MappedByteBuffer region;
+        private boolean remap;
+        private boolean done;
+
+        MappedReader(FileChannel channel, Charset charset) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            this.decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        @Override
+        public int read(char[] dest, int off, int len) throws IOException {
+            CharBuffer out = CharBuffer.wrap(dest, off, len);
+            while (out.position() == off && !done) {
+                if (region == null || !region.hasRemaining() || remap) {
+                    // A character split across regions is decoded from the
+                    // start of the next one.
+                    if (region != null) {
+                        offset += region.position();
+                    }
+                    region = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(REGION, size - offset));
+                    remap = false;
+                }
+                boolean last = offset + region.capacity() >= size;
+                CoderResult result = decoder.decode(region, out, last);
+                if (result.isUnderflow()) {
+                    if (last) {
+                        decoder.flush(out);
+                        done = true;
+                    } else {
+                        remap = true;
+                    }
+                }
+            }
+            int count = out.position() - off;
+            return count == 0 ? -1 : count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package scratch.lang;
+
+import java.util.Arrays;
+
+// Immutable list built by [ ... ]. The same list is both data (ITEM, LENGTH)
+// and code (RUN, TIMES, WHILE, ...); it is compiled to a Block the first
+// time it is run and the Block is kept for every later run.
+//
+// A list of nothing but doubles keeps them unboxed in a double[], and one of
+// nothing but integers that fit in a long in a long[], so numeric vectors
+// cost 8 bytes an item and the bulk words (MAP, REDUCE, SUM, SLICE, APPEND)
+// run over them as plain loops; any other list, mixed numbers included,
+// holds an Object[].
+public class ScratchList {
+    private Object[] items; // Null for a numeric list.
+    private double[] numbers; // Null unless all doubles.
+    private long[] integers; // Null unless all integers.
+    private Block block;
+
+    // ITEMS is kept, not copied: the image reader fills it in later.
+    public ScratchList(Object[] items) {
+        this.items = items;
+    }
+
+    ScratchList(double[] numbers) {
+        this.numbers = numbers;
+    }
+
+    ScratchList(long[] integers) {
+        this.integers = integers;
+    }
+
+    // A list of the items of STACK from index FROM up. No items at all make
+    // an integer list, so that sums and folds over it start from integer 0.
+    static ScratchList of(DataStack stack, int from) {
+        int count = stack.size - from;
+        byte tag = count > 0 ? stack.tags[from] : DataStack.INTEGER;
+        for (int i = from; i < stack.size; i++) {
+            if (stack.tags[i] != tag || tag == DataStack.BOOLEAN || tag == DataStack.OBJECT) {
+                Object[] items = new Object[count];
+                for (int j = 0; j < count; j++) {
+                    items[j] = stack.get(from + j);
+                }
+                return new ScratchList(items);
+            }
+        }
+        if (tag == DataStack.INTEGER) {
+            return new ScratchList(Arrays.copyOfRange(stack.longs, from, stack.size));
+        }
+        return new ScratchList(Arrays.copyOfRange(stack.numbers, from, stack.size));
+    }
+
+    // Switches a list that turns out to hold only doubles, or only longs, to
+    // a double[] or long[]. For lists read from an image, once their items
+    // are filled in.
+    void compact() {
+        if (items.length == 0) {
+            return;
+        }
+        Class<?> type = items[0] instanceof Long ? Long.class : Double.class;
+        for (Object item : items) {
+            if (item == null || item.getClass() != type) {
+                return;
+            }
+        }
+        if (type == Long.class) {
+            long[] unboxed = new long[items.length];
+            for (int i = 0; i < unboxed.length; i++) {
+                unboxed[i] = (Long)items[i];
+            }
+            integers = unboxed;
+        } else {
+            double[] unboxed = new double[items.length];
+            for (int i = 0; i < unboxed.length; i++) {
+                unboxed[i] = (Double)items[i];
+            }
+            numbers = unboxed;
+        }
+        items = null;
+    }
+
+    public int size() {
+        return numbers != null ? numbers.length : integers != null ? integers.length : items.length;
+    }
+
+    public Object get(int index) {
+        return numbers != null ? numbers[index] : integers != null ? integers[index] : items[index];
+    }
+
+    boolean isNumeric() {
+        return numbers != null || integers != null;
+    }
+
+    // The items of a list of doubles, not a copy; otherwise null.
+    double[] numbers() {
+        return numbers;
+    }
+
+    // The items of a list of integers, not a copy; otherwise null.
+    long[] integers() {
+        return integers;
+    }
+
+    // Pushes item INDEX without boxing it.
+    void push(DataStack stack, int index) {
+        if (index < 0 || index >= size()) {
+            throw new RuntimeException("Index out of range");
+        }
+        if (numbers != null) {
+            stack.pushDouble(numbers[index]);
+        } else if (integers != null) {
+            stack.pushLong(integers[index]);
+        } else {
+            stack.push(items[index]);
+        }
+    }
+
+    Block block() {
+        Block compiled = block;
+        if (compiled == null) {
+            compiled = Block.compile(boxed());
+            block = compiled;
+        }
+        return compiled;
+    }
+
+    // The block to run for TERP (see Block.bind).
+    Block block(Scratch terp) {
+        return block().bind(terp);
+    }
+
+    private Object[] boxed() {
+        if (items != null) {
+            return items;
+        }
+        Object[] boxed = new Object[size()];
+        for (int i = 0; i < boxed.length; i++) {
+            boxed[i] = get(i);
+        }
+        return boxed;
+    }
+
+    // Pushes the sum of the items, in the type + would give: of no items at
+    // all, the integer 0.
+    void sum(DataStack stack) {
+        if (numbers != null) {
+            double total = 0;
+            for (double number : numbers) {
+                total += number;
+            }
+            stack.pushDouble(total);
+            return;
+        }
+        if (integers != null) {
+            Kernel.fold(Block.OP_ADD, 0, integers, stack);
+            return;
+        }
+        stack.pushLong(0);
+        for (Object item : items) {
+            if (!(item instanceof Number)) {
+                throw new RuntimeException("Number expected");
+            }
+            stack.push(item);
+            Arithmetic.add(stack);
+        }
+    }
+
+    // Pushes the smallest item. Of no items at all: positive infinity.
+    void min(DataStack stack) {
+        extreme(stack, Block.OP_LESS, Double.POSITIVE_INFINITY);
+    }
+
+    // Pushes the largest item. Of no items at all: negative infinity.
+    void max(DataStack stack) {
+        extreme(stack, Block.OP_GREATER, Double.NEGATIVE_INFINITY);
+    }
+
+    // The item that is OPCODE (< or >) every other one.
+    private void extreme(DataStack stack, int opcode, double none) {
+        int count = size();
+        if (numbers != null || count == 0) {
+            double extreme = none;
+            for (int i = 0; i < count; i++) {
+                extreme = opcode == Block.OP_LESS ? Math.min(extreme, numbers[i]) : Math.max(extreme, numbers[i]);
+            }
+            stack.pushDouble(extreme);
+            return;
+        }
+        if (integers != null) {
+            long extreme = integers[0];
+            for (long integer : integers) {
+                extreme = opcode == Block.OP_LESS ? Math.min(extreme, integer) : Math.max(extreme, integer);
+            }
+            stack.pushLong(extreme);
+            return;
+        }
+        Object extreme = items[0];
+        for (Object item : items) {
+            if (!(item instanceof Number)) {
+                throw new RuntimeException("Number expected");
+            }
+            stack.push(item);
+            stack.push(extreme);
+            Arithmetic.compare(stack, opcode);
+            if (stack.popBoolean()) {
+                extreme = item;
+            }
+        }
+        stack.push(extreme);
+    }
+
+    ScratchList slice(int from, int to) {
+        if (from < 0 || to > size() || from > to) {
+            throw new RuntimeException("Index out of range");
+        }
+        if (numbers != null) {
+            return new ScratchList(Arrays.copyOfRange(numbers, from, to));
+        }
+        if (integers != null) {
+            return new ScratchList(Arrays.copyOfRange(integers, from, to));
+        }
+        return new ScratchList(Arrays.copyOfRange(items, from, to));
+    }
+
+    // The items of PARTS, one after the other.
+    static ScratchList concat(ScratchList[] parts) {
+        int count = 0;
+        boolean numeric = true;
+        boolean integral = true;
+        for (ScratchList part : parts) {
+            count += part.size();
+            numeric &= part.numbers != null;
+            integral &= part.integers != null;
+        }
+        int at = 0;
+        if (numeric) {
+            double[] joined = new double[count];
+            for (ScratchList part : parts) {
+                System.arraycopy(part.numbers, 0, joined, at, part.numbers.length);
+                at += part.numbers.length;
+            }
+            return new ScratchList(joined);
+        }
+        if (integral) {
+            long[] joined = new long[count];
+            for (ScratchList part : parts) {
+                System.arraycopy(part.integers, 0, joined, at, part.integers.length);
+                at += part.integers.length;
+            }
+            return new ScratchList(joined);
+        }
+        Object[] joined = new Object[count];
+        for (ScratchList part : parts) {
+            System.arraycopy(part.boxed(), 0, joined, at, part.size());
+            at += part.size();
+        }
+        return new ScratchList(joined);
+    }
+
+    ScratchList append(ScratchList other) {
+        if (numbers != null && other.numbers != null) {
+            double[] joined = Arrays.copyOf(numbers, numbers.length + other.numbers.length);
+            System.arraycopy(other.numbers, 0, joined, numbers.length, other.numbers.length);
+            return new ScratchList(joined);
+        }
+        if (integers != null && other.integers != null) {
+            long[] joined = Arrays.copyOf(integers, integers.length + other.integers.length);
+            System.arraycopy(other.integers, 0, joined, integers.length, other.integers.length);
+            return new ScratchList(joined);
+        }
+        Object[] joined = Arrays.copyOf(boxed(), size() + other.size());
+        System.arraycopy(other.boxed(), 0, joined, size(), other.size());
+        return new ScratchList(joined);
+    }
+
+    // Runs CODE on each item, which must leave one item in its place.
+    ScratchList map(Scratch terp, Block code) {
+        int count = size();
+        if (numbers != null || integers != null) {
+            Kernel kernel = Kernel.of(code);
+            if (kernel != null && (numbers != null || kernel.isExact())) {
+                ScratchList result = numbers != null ? kernel.map(numbers) : kernel.map(integers);
+                if (result != null) {
+                    terp.tick((int)Math.min(Integer.MAX_VALUE, (long)count * code.code.length));
+                    return result;
+                }
+                // Else an integer overflowed: run the block instead.
+            }
+        }
+        DataStack stack = terp.stack;
+        // While the results all have the same tag, it is RESULT_TAG and they
+        // are kept unboxed.
+        byte result_tag = DataStack.NUMBER;
+        double[] unboxed = null;
+        long[] unboxed_integers = null;
+        Object[] results = null;
+        for (int i = 0; i < count; i++) {
+            int depth = stack.size();
+            push(stack, i);
+            code.execute(terp);
+            stack = terp.stack;
+            if (stack.size() != depth + 1) {
+                throw new RuntimeException("MAP block must leave one item");
+            }
+            if (results == null) {
+                byte tag = stack.peekTag();
+                if (i == 0 && (tag == DataStack.NUMBER || tag == DataStack.INTEGER)) {
+                    result_tag = tag;
+                    if (tag == DataStack.NUMBER) {
+                        unboxed = new double[count];
+                    } else {
+                        unboxed_integers = new long[count];
+                    }
+                }
+                if (tag == result_tag && unboxed != null) {
+                    unboxed[i] = stack.popDouble();
+                    continue;
+                }
+                if (tag == result_tag && unboxed_integers != null) {
+                    unboxed_integers[i] = stack.longs[--stack.size];
+                    continue;
+                }
+                results = new Object[count];
+                for (int j = 0; j < i; j++) {
+                    results[j] = unboxed != null ? (Object)unboxed[j] : (Object)unboxed_integers[j];
+                }
+            }
+            results[i] = stack.pop();
+        }
+        if (results != null) {
+            return new ScratchList(results);
+        }
+        if (unboxed_integers != null) {
+            return new ScratchList(unboxed_integers);
+        }
+        return unboxed != null ? new ScratchList(unboxed) : new ScratchList(new long[0]);
+    }
+
+    // The items for which CODE leaves true.
+    ScratchList filter(Scratch terp, Block code) {
+        int count = size();
+        int[] kept = new int[count];
+        int kept_count = 0;
+        for (int i = 0; i < count; i++) {
+            DataStack stack = terp.stack;
+            int depth = stack.size();
+            push(stack, i);
+            code.execute(terp);
+            stack = terp.stack;
+            if (stack.size() != depth + 1) {
+                throw new RuntimeException("FILTER block must leave one item");
+            }
+            if (stack.popBoolean()) {
+                kept[kept_count++] = i;
+            }
+        }
+        if (numbers != null) {
+            double[] result = new double[kept_count];
+            for (int i = 0; i < kept_count; i++) {
+                result[i] = numbers[kept[i]];
+            }
+            return new ScratchList(result);
+        }
+        if (integers != null) {
+            long[] result = new long[kept_count];
+            for (int i = 0; i < kept_count; i++) {
+                result[i] = integers[kept[i]];
+            }
+            return new ScratchList(result);
+        }
+        Object[] result = new Object[kept_count];
+        for (int i = 0; i < kept_count; i++) {
+            result[i] = items[kept[i]];
+        }
+        return new ScratchList(result);
+    }
+
+    // Pushes INITIAL, then each item followed by CODE.
+    void reduce(Scratch terp, Object initial, Block code) {
+        DataStack stack = terp.stack;
+        if (numbers != null && (initial instanceof Double || initial instanceof Long)) {
+            int op = Kernel.binary(code);
+            if (op >= 0) {
+                terp.tick(numbers.length);
+                stack.pushDouble(Kernel.fold(op, ((Number)initial).doubleValue(), numbers));
+                return;
+            }
+        }
+        if (integers != null && initial instanceof Long) {
+            int op = Kernel.binary(code);
+            if (op >= 0 && op != Block.OP_DIV) {
+                terp.tick(integers.length);
+                Kernel.fold(op, (Long)initial, integers, stack);
+                return;
+            }
+        }
+        stack.push(initial);
+        for (int i = 0; i < size(); i++) {
+            push(terp.stack, i);
+            code.execute(terp);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(boxed());
+    }
+}
@@ -0,0 +1,233 @@
+package scratch.lang;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+// A string value: a run of chars that may be shared with other strings,
+// so that SLICE makes a view rather than a copy. The hash code is that of
+// the equal String, worked out once.
+//
+// String literals are interned as they are compiled: the same text gives
+// the same object, found straight from the lexer's buffer, so a literal
+// run over and over makes no garbage, and two interned strings are equal
+// exactly when they are the same object. Interned strings are only held
+// weakly by the table, so scripts that come and go do not fill it up.
+public final class ScratchString implements CharSequence, Comparable<ScratchString> {
+    private final char[] chars;
+    private final int start;
+    private final int length;
+    private final boolean interned;
+    private int hash;
+
+    public ScratchString(String text) {
+        this(text.toCharArray(), 0, text.length(), false);
+    }
+
+    private ScratchString(char[] chars, int start, int length, boolean interned) {
+        this.chars = chars;
+        this.start = start;
+        this.length = length;
+        this.interned = interned;
+    }
+
+    // A string holding a copy of CHARS from START to END.
+    static ScratchString copyOf(char[] chars, int start, int end) {
+        return new ScratchString(Arrays.copyOfRange(chars, start, end), 0, end - start, false);
+    }
+
+    // The string VALUE stands for, or "String expected".
+    static ScratchString of(Object value) {
+        if (value instanceof ScratchString) {
+            return (ScratchString)value;
+        }
+        if (value instanceof String) {
+            return new ScratchString((String)value);
+        }
+        throw new RuntimeException("String expected");
+    }
+
+    public static ScratchString intern(String text) {
+        return intern(text.toCharArray(), 0, text.length());
+    }
+
+    // The interned string with the chars of CHARS from START, LENGTH long.
+    // Nothing is allocated when it is there already.
+    static synchronized ScratchString intern(char[] chars, int start, int length) {
+        expunge();
+        int hash = hash(chars, start, length);
+        int index = hash & (table.length - 1);
+        for (Interned entry = table[index]; entry != null; entry = entry.next) {
+            ScratchString string = entry.get();
+            if (entry.hash == hash && string != null && string.matches(chars, start, length)) {
+                return string;
+            }
+        }
+        ScratchString string = new ScratchString(Arrays.copyOfRange(chars, start, start + length), 0, length, true);
+        string.hash = hash;
+        table[index] = new Interned(string, hash, table[index]);
+        if (++count > table.length * 3 / 4) {
+            resize();
+        }
+        return string;
+    }
+
+    public boolean isInterned() {
+        return interned;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException();
+        }
+        return chars[start + index];
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        return slice(from, to);
+    }
+
+    // The chars from FROM up to TO, sharing this string's.
+    ScratchString slice(int from, int to) {
+        if (from < 0 || to > length || from > to) {
+            throw new RuntimeException("Index out of range");
+        }
+        return new ScratchString(chars, start + from, to - from, false);
+    }
+
+    ScratchString append(ScratchString tail) {
+        char[] joined = new char[length + tail.length];
+        System.arraycopy(chars, start, joined, 0, length);
+        System.arraycopy(tail.chars, tail.start, joined, length, tail.length);
+        return new ScratchString(joined, 0, joined.length, false);
+    }
+
+    // Copies the chars into TARGET at INDEX.
+    void getChars(char[] target, int index) {
+        System.arraycopy(chars, start, target, index, length);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0 && length > 0) {
+            hash = h = hash(chars, start, length);
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof ScratchString)) {
+            return false;
+        }
+        ScratchString string = (ScratchString)other;
+        if (interned && string.interned) {
+            return false;
+        }
+        return length == string.length && hashCode() == string.hashCode()
+                && string.matches(chars, start, length);
+    }
+
+    // By char values, as String.compareTo.
+    @Override
+    public int compareTo(ScratchString other) {
+        if (this == other) {
+            return 0;
+        }
+        int shorter = Math.min(length, other.length);
+        for (int i = 0; i < shorter; i++) {
+            char a = chars[start + i];
+            char b = other.chars[other.start + i];
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return length - other.length;
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, start, length);
+    }
+
+    private boolean matches(char[] other, int other_start, int other_length) {
+        if (length != other_length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (chars[start + i] != other[other_start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(char[] chars, int start, int length) {
+        int h = 0;
+        for (int i = start; i < start + length; i++) {
+            h = 31 * h + chars[i];
+        }
+        return h;
+    }
+
+    // The intern table: chained buckets of weak references, from which
+    // strings that are gone are dropped on the next intern.
+    private static final class Interned extends WeakReference<ScratchString> {
+        final int hash;
+        Interned next;
+
+        Interned(ScratchString string, int hash, Interned next) {
+            super(string, cleared);
+            this.hash = hash;
+            this.next = next;
+        }
+    }
+
+    private static final ReferenceQueue<ScratchString> cleared = new ReferenceQueue<>();
+    private static Interned[] table = new Interned[256];
+    private static int count;
+
+    private static void expunge() {
+        Interned gone;
+        while ((gone = (Interned)cleared.poll()) != null) {
+            int index = gone.hash & (table.length - 1);
+            Interned previous = null;
+            for (Interned entry = table[index]; entry != null; previous = entry, entry = entry.next) {
+                if (entry == gone) {
+                    if (previous == null) {
+                        table[index] = entry.next;
+                    } else {
+                        previous.next = entry.next;
+                    }
+                    count--;
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void resize() {
+        Interned[] new_table = new Interned[table.length * 2];
+        for (Interned entry : table) {
+            while (entry != null) {
+                Interned next = entry.next;
+                int index = entry.hash & (new_table.length - 1);
+                entry.next = new_table[index];
+                new_table[index] = entry;
+                entry = next;
+            }
+        }
+        table = new_table;
+    }
+}
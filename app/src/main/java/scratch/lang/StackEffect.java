@@ -0,0 +1,250 @@
+package scratch.lang;
+
+// Static stack effect of a block, found by running its opcodes over the
+// types of the stack slots instead of their values. A block is verified
+// when it only uses built-ins that are compiled to opcodes, other than
+// ?CONTINUE (which restarts the block at a different depth). This runs on
+// the optimized code, and errors name the word a superinstruction came
+// from. A verified
+// block needs NEEDS items on entry and never goes more than GROWS items
+// above that; given NEEDS items, none of its instructions can run out of
+// stack.
+//
+// On the way, a type conflict that is certain to happen (TRUE 1 +) is
+// kept as ERROR, to be reported when the block is compiled. Conflicts
+// after a ?BREAK are not, since that code may never run.
+final class StackEffect {
+    // Slot types. An entry slot, or a value fetched from a variable, can
+    // be anything. NUMBER is any number, integer or double.
+    private static final byte ANY = 0;
+    private static final byte NUMBER = 1;
+    private static final byte BOOLEAN = 2;
+    private static final byte VAR = 3;
+    private static final byte OBJECT = 4;
+
+    boolean verified;
+    int needs;
+    int grows;
+    String error;
+
+    // Types of the slots pushed since entry, bottom first; slots below the
+    // entry depth (which go negative) are ANY.
+    private byte[] types = new byte[16];
+    private int depth;
+    private boolean may_exit; // A ?BREAK has been seen.
+
+    static StackEffect of(Block block) {
+        StackEffect effect = new StackEffect();
+        effect.verified = effect.run(block);
+        return effect;
+    }
+
+    private boolean run(Block block) {
+        int[] code = block.code;
+        int pc = 0;
+        while (pc < code.length) {
+            int opcode = code[pc++];
+            switch (opcode) {
+                case Block.OP_NUMBER:
+                case Block.OP_INTEGER:
+                    pc++;
+                    push(NUMBER);
+                    break;
+                case Block.OP_OBJECT:
+                    push(block.constants[code[pc++]] instanceof CodeVarRef ? VAR : OBJECT);
+                    break;
+                case Block.OP_CALL:
+                case Block.OP_RUN:
+                case Block.OP_IFTRUE:
+                case Block.OP_IFFALSE:
+                case Block.OP_TIMES:
+                case Block.OP_WHILE:
+                case Block.OP_LOOP:
+                    // The effect of other words is not known. (Even when it
+                    // could be, blocks with calls are better off in the
+                    // checked loop, which has less to reload after a call.)
+                    return false;
+                case Block.OP_TRUE:
+                case Block.OP_FALSE:
+                    push(BOOLEAN);
+                    break;
+                case Block.OP_ADD:
+                case Block.OP_SUB:
+                case Block.OP_MUL:
+                case Block.OP_DIV:
+                case Block.OP_MOD:
+                    pop(NUMBER, opcode);
+                    pop(NUMBER, opcode);
+                    push(NUMBER);
+                    break;
+                case Block.OP_SQRT:
+                    pop(NUMBER, opcode);
+                    push(NUMBER);
+                    break;
+                case Block.OP_DUP: {
+                    byte type = pop(ANY, opcode);
+                    push(type);
+                    push(type);
+                    break;
+                }
+                case Block.OP_DROP:
+                    pop(ANY, opcode);
+                    break;
+                case Block.OP_SWAP: {
+                    byte tos = pop(ANY, opcode);
+                    byte _2os = pop(ANY, opcode);
+                    push(tos);
+                    push(_2os);
+                    break;
+                }
+                case Block.OP_OVER: {
+                    byte tos = pop(ANY, opcode);
+                    byte _2os = pop(ANY, opcode);
+                    push(_2os);
+                    push(tos);
+                    push(_2os);
+                    break;
+                }
+                case Block.OP_ROT: {
+                    byte tos = pop(ANY, opcode);
+                    byte _2os = pop(ANY, opcode);
+                    byte _3os = pop(ANY, opcode);
+                    push(_2os);
+                    push(tos);
+                    push(_3os);
+                    break;
+                }
+                case Block.OP_STORE:
+                    pop(VAR, opcode);
+                    pop(ANY, opcode);
+                    break;
+                case Block.OP_FETCH:
+                    pop(VAR, opcode);
+                    push(ANY);
+                    break;
+                case Block.OP_AND:
+                case Block.OP_OR:
+                    pop(BOOLEAN, opcode);
+                    pop(BOOLEAN, opcode);
+                    push(BOOLEAN);
+                    break;
+                case Block.OP_NOT:
+                    pop(BOOLEAN, opcode);
+                    push(BOOLEAN);
+                    break;
+                case Block.OP_LESS:
+                case Block.OP_LE:
+                case Block.OP_EQUAL:
+                case Block.OP_GE:
+                case Block.OP_GREATER:
+                    pop(NUMBER, opcode);
+                    pop(NUMBER, opcode);
+                    push(BOOLEAN);
+                    break;
+                case Block.OP_BREAK:
+                    pop(BOOLEAN, opcode);
+                    may_exit = true;
+                    break;
+                case Block.OP_CONTINUE:
+                    pop(BOOLEAN, opcode);
+                    return false;
+                case Block.OP_FETCH_VAR:
+                    pc++;
+                    push(ANY);
+                    break;
+                case Block.OP_STORE_VAR:
+                    pc++;
+                    pop(ANY, Block.OP_STORE);
+                    break;
+                case Block.OP_ADD_VAR:
+                case Block.OP_ADD_VAR_INT:
+                    pc += 2;
+                    break;
+                case Block.OP_ADD_NUM:
+                    pc++;
+                    pop(NUMBER, Block.OP_ADD);
+                    push(NUMBER);
+                    break;
+                case Block.OP_LESS_NUM:
+                case Block.OP_LE_NUM:
+                case Block.OP_EQUAL_NUM:
+                case Block.OP_GE_NUM:
+                case Block.OP_GREATER_NUM:
+                    pc++;
+                    pop(NUMBER, Block.OP_LESS + (opcode - Block.OP_LESS_NUM));
+                    push(BOOLEAN);
+                    break;
+                case Block.OP_ADD_INT:
+                    // The slow path pushes the literal and runs +, so it
+                    // takes a slot above the operand.
+                    pc++;
+                    push(NUMBER);
+                    pop(NUMBER, Block.OP_ADD);
+                    pop(NUMBER, Block.OP_ADD);
+                    push(NUMBER);
+                    break;
+                case Block.OP_LESS_INT:
+                case Block.OP_LE_INT:
+                case Block.OP_EQUAL_INT:
+                case Block.OP_GE_INT:
+                case Block.OP_GREATER_INT:
+                    pc++;
+                    push(NUMBER);
+                    pop(NUMBER, Block.OP_LESS + (opcode - Block.OP_LESS_INT));
+                    pop(NUMBER, Block.OP_LESS + (opcode - Block.OP_LESS_INT));
+                    push(BOOLEAN);
+                    break;
+                case Block.OP_SQUARE:
+                    pop(NUMBER, Block.OP_MUL);
+                    push(NUMBER);
+                    break;
+                case Block.OP_NIP: {
+                    byte tos = pop(ANY, Block.OP_DROP);
+                    pop(ANY, Block.OP_DROP);
+                    push(tos);
+                    break;
+                }
+                case Block.OP_EXIT:
+                    may_exit = true;
+                    break;
+                default:
+                    return false; // RESTART: like ?CONTINUE.
+            }
+        }
+        return true;
+    }
+
+    private void push(byte type) {
+        if (depth >= 0) {
+            if (depth == types.length) {
+                byte[] new_types = new byte[depth * 2];
+                System.arraycopy(types, 0, new_types, 0, depth);
+                types = new_types;
+            }
+            types[depth] = type;
+        }
+        depth++;
+        grows = Math.max(grows, depth);
+    }
+
+    private byte pop(byte expected, int opcode) {
+        depth--;
+        needs = Math.max(needs, -depth);
+        byte type = depth >= 0 ? types[depth] : ANY;
+        if (expected != ANY && type != ANY && type != expected && error == null && !may_exit) {
+            String word = Block.name(opcode);
+            switch (expected) {
+                case NUMBER:
+                    error = "Number expected by " + word;
+                    break;
+                case BOOLEAN:
+                    error = "Boolean expected by " + word;
+                    break;
+                default:
+                    error = "Variable expected by " + word;
+                    break;
+            }
+        }
+        return type;
+    }
+}
@@ -0,0 +1,217 @@
+package scratch.lang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Open-addressing dictionary keyed on case-folded char spans. Tokens are
+// looked up straight from the lexer's window with a single probe sequence,
+// and an entry, once created, stays the same object for the life of the
+// table. A table that has been published (see Dictionary) is read-only;
+// only the lazy decoding of image entries still writes to it, and that is
+// safe to race.
+final class SymbolTable {
+    static final class Entry {
+        final char[] name; // Folded to upper case.
+        final int hash;
+        private Code code;
+        // Set while the definition is still sitting in a loaded image.
+        // Cleared only after CODE is set, so a thread that sees it null
+        // also sees the decoded definition.
+        private volatile ScratchImage.Reader image;
+        private int image_id;
+
+        Entry(char[] name, int hash) {
+            this.name = name;
+            this.hash = hash;
+        }
+
+        Code code() {
+            ScratchImage.Reader reader = image;
+            if (reader != null) {
+                code = reader.code(image_id);
+                image = null;
+            }
+            return code;
+        }
+
+        @Override
+        public String toString() {
+            return new String(name);
+        }
+    }
+
+    private Entry[] entries = new Entry[128];
+    private int count;
+
+    // Bumped whenever a name gets its first definition. Anything that
+    // decided a token was not a word must check again after a change.
+    int generation;
+    // Bumped by every definition, new or not (see Scratch.bindings).
+    int version;
+    // Bindings for an interpreter with no words of its own over this
+    // table, shared by all of them; made on first use.
+    Scratch.Bindings unshadowed;
+
+    static char fold(char ch) {
+        if (ch < 128) {
+            return ch >= 'a' && ch <= 'z' ? (char)(ch - ('a' - 'A')) : ch;
+        }
+        return Character.toUpperCase(ch);
+    }
+
+    static int hash(char[] chars, int start, int length) {
+        int h = 0;
+        for (int i = start; i < start + length; i++) {
+            h = 31 * h + fold(chars[i]);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public Entry lookup(char[] chars, int start, int length) {
+        int hash = hash(chars, start, length);
+        int mask = entries.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            Entry entry = entries[i];
+            if (entry == null) {
+                return null;
+            }
+            if (entry.hash == hash && matches(entry.name, chars, start, length)) {
+                return entry;
+            }
+        }
+    }
+
+    public Entry lookup(String word) {
+        return lookup(word.toCharArray(), 0, word.length());
+    }
+
+    // A name as it is kept in an entry.
+    static char[] fold(char[] chars, int start, int length) {
+        char[] name = new char[length];
+        for (int i = 0; i < length; i++) {
+            name[i] = fold(chars[start + i]);
+        }
+        return name;
+    }
+
+    // Find the entry for WORD, creating an empty one if needed.
+    public Entry intern(String word) {
+        char[] chars = word.toCharArray();
+        Entry entry = lookup(chars, 0, chars.length);
+        if (entry != null) {
+            return entry;
+        }
+        chars = fold(chars, 0, chars.length);
+        entry = new Entry(chars, hash(chars, 0, chars.length));
+        if (2 * (count + 1) > entries.length) {
+            resize();
+        }
+        insert(entries, entry);
+        count++;
+        return entry;
+    }
+
+    public void define(String word, Code code) {
+        Entry entry = intern(word);
+        if (entry.code == null && entry.image == null) {
+            generation++;
+        }
+        version++;
+        entry.code = code;
+        entry.image = null;
+    }
+
+    // Define WORD as object ID of IMAGE, to be decoded on first use.
+    void defineLazily(String word, ScratchImage.Reader image, int id) {
+        Entry entry = intern(word);
+        if (entry.code == null && entry.image == null) {
+            generation++;
+        }
+        version++;
+        entry.code = null;
+        entry.image = image;
+        entry.image_id = id;
+    }
+
+    // A table with the same entries, to be changed with replace only.
+    SymbolTable copy() {
+        SymbolTable table = new SymbolTable();
+        table.entries = entries.clone();
+        table.count = count;
+        table.generation = generation;
+        return table;
+    }
+
+    // Put a new entry with the definition of FROM in place of any entry of
+    // the same name. The old entry may still be in use by another table.
+    void replace(Entry from) {
+        version++;
+        Entry entry = new Entry(from.name, from.hash);
+        entry.code = from.code;
+        entry.image = from.image;
+        entry.image_id = from.image_id;
+        int mask = entries.length - 1;
+        for (int i = entry.hash & mask; ; i = (i + 1) & mask) {
+            Entry old = entries[i];
+            if (old == null) {
+                break;
+            }
+            if (old.hash == entry.hash && Arrays.equals(old.name, entry.name)) {
+                entries[i] = entry;
+                return;
+            }
+        }
+        if (2 * (count + 1) > entries.length) {
+            resize();
+        }
+        insert(entries, entry);
+        count++;
+        generation++;
+    }
+
+    List<Entry> entries() {
+        List<Entry> list = new ArrayList<>(count);
+        for (Entry entry : entries) {
+            if (entry != null) {
+                list.add(entry);
+            }
+        }
+        return list;
+    }
+
+    private static boolean matches(char[] name, char[] chars, int start, int length) {
+        if (name.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name[i] != fold(chars[start + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void insert(Entry[] table, Entry entry) {
+        int mask = table.length - 1;
+        int i = entry.hash & mask;
+        while (table[i] != null) {
+            i = (i + 1) & mask;
+        }
+        table[i] = entry;
+    }
+
+    private void resize() {
+        Entry[] new_entries = new Entry[entries.length * 2];
+        for (Entry entry : entries) {
+            if (entry != null) {
+                insert(new_entries, entry);
+            }
+        }
+        entries = new_entries;
+    }
+}
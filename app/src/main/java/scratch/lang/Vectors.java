@@ -0,0 +1,449 @@
+package scratch.lang;
+
+// The V words: V+ V* VSQRT VDOT VSUM and the comparisons V< V<= V= V>=
+// V>, over whole lists and arrays at once. Item by item they give what +,
+// *, SQRT and < and the rest give (see Arithmetic), without a dispatch per
+// item. Either side of V+, V* or a comparison may be a single number, which
+// is used with every item; two lists must be the same length. Comparisons
+// give a list of booleans, a mask.
+//
+// Lists of doubles or of integers, and arrays, are worked on in plain
+// loops over double[] and long[]. The loops are kept simple (counted, no
+// calls and no branches in the body) so that the JIT compiles them to SIMD
+// instructions, and VSUM and VDOT keep four partial sums so the adds do not
+// wait on each other; as with PREDUCE, that is the same as SUM up to
+// rounding. Integers and doubles together are done in double. Anything else
+// -- a list of mixed or boxed numbers, BigIntegers, integers that overflow
+// a long -- goes the scalar way, through the number tower one item at a
+// time.
+final class Vectors {
+    // Arrays are read into the heap this many doubles at a time for VSUM.
+    private static final int CHUNK = 4096;
+
+    private Vectors() {
+    }
+
+    // ( x y -- list ) for OPCODE Block.OP_ADD or OP_MUL.
+    static void arith(DataStack stack, int opcode) {
+        if (stack.size < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        DataStack out = new DataStack();
+        arith(out, opcode, stack.get(stack.size - 2), stack.get(stack.size - 1));
+        replace(stack, 2, out);
+    }
+
+    // ( x y -- mask ) for OPCODE one of Block.OP_LESS to OP_GREATER.
+    static void compare(DataStack stack, int opcode) {
+        if (stack.size < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        DataStack out = new DataStack();
+        compare(out, opcode, stack.get(stack.size - 2), stack.get(stack.size - 1));
+        replace(stack, 2, out);
+    }
+
+    // ( x -- list ) The square root of each item, a double as for SQRT.
+    static void sqrt(DataStack stack) {
+        if (stack.size < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        DataStack out = new DataStack();
+        sqrt(out, stack.get(stack.size - 1));
+        replace(stack, 1, out);
+    }
+
+    // ( x -- sum ) As SUM.
+    static void sum(DataStack stack) {
+        if (stack.size < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        DataStack out = new DataStack();
+        sum(out, stack.get(stack.size - 1));
+        replace(stack, 1, out);
+    }
+
+    // ( x y -- dot ) The sum of the products of the items of X and Y.
+    static void dot(DataStack stack) {
+        if (stack.size < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        DataStack out = new DataStack();
+        dot(out, stack.get(stack.size - 2), stack.get(stack.size - 1));
+        replace(stack, 2, out);
+    }
+
+    // The words leave their operands on STACK until the result is ready,
+    // and work item by item on a stack of their own, OUT, so that one that
+    // fails leaves STACK as it was. This replaces COUNT operands with the
+    // result, the one item on OUT.
+    private static void replace(DataStack stack, int count, DataStack out) {
+        for (int i = 0; i < count; i++) {
+            stack.drop();
+        }
+        stack.push(out.pop());
+    }
+
+    private static void arith(DataStack out, int opcode, Object x, Object y) {
+        int size = size(x, y);
+        // + and * give the same either way round, so a number goes right.
+        if (!isVector(x)) {
+            Object swap = x;
+            x = y;
+            y = swap;
+        }
+        long[] xi = integers(x);
+        if (xi != null && (isVector(y) ? integers(y) != null : y instanceof Long)) {
+            long[] result = isVector(y) ? arith(opcode, xi, integers(y)) : arith(opcode, xi, (Long)y);
+            if (result != null) {
+                out.pushObject(new ScratchList(result));
+                return;
+            }
+        } else if (isFast(x) && isFast(y)) {
+            double[] xd = doubles(x);
+            double[] result = new double[size];
+            if (isVector(y)) {
+                arith(opcode, xd, doubles(y), result);
+            } else {
+                arith(opcode, xd, ((Number)y).doubleValue(), result);
+            }
+            out.pushObject(new ScratchList(result));
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            out.push(item(x, i));
+            out.push(item(y, i));
+            if (opcode == Block.OP_ADD) {
+                Arithmetic.add(out);
+            } else {
+                Arithmetic.mul(out);
+            }
+        }
+        ScratchList list = ScratchList.of(out, 0);
+        out.clear();
+        out.pushObject(list);
+    }
+
+    private static void compare(DataStack out, int opcode, Object x, Object y) {
+        int size = size(x, y);
+        Object[] mask = new Object[size];
+        long[] xi = integers(x);
+        long[] yi = integers(y);
+        if ((xi != null || x instanceof Long) && (yi != null || y instanceof Long)) {
+            for (int i = 0; i < size; i++) {
+                long a = xi != null ? xi[i] : (Long)x;
+                long b = yi != null ? yi[i] : (Long)y;
+                mask[i] = Arithmetic.compare(opcode, Long.compare(a, b));
+            }
+        } else if (isFast(x) && isFast(y)) {
+            if (!isVector(x)) {
+                compare(flip(opcode), doubles(y), ((Number)x).doubleValue(), mask);
+            } else if (!isVector(y)) {
+                compare(opcode, doubles(x), ((Number)y).doubleValue(), mask);
+            } else {
+                compare(opcode, doubles(x), doubles(y), mask);
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                out.push(item(x, i));
+                out.push(item(y, i));
+                Arithmetic.compare(out, opcode);
+                mask[i] = out.popBoolean();
+            }
+        }
+        out.pushObject(new ScratchList(mask));
+    }
+
+    private static void sqrt(DataStack out, Object x) {
+        int size = size(x, null);
+        double[] numbers;
+        if (isFast(x)) {
+            numbers = doubles(x);
+        } else {
+            numbers = new double[size];
+            for (int i = 0; i < size; i++) {
+                out.push(item(x, i));
+                numbers[i] = out.popDouble();
+            }
+        }
+        double[] result = new double[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = Math.sqrt(numbers[i]);
+        }
+        out.pushObject(new ScratchList(result));
+    }
+
+    private static void sum(DataStack out, Object x) {
+        size(x, null);
+        if (x instanceof ScratchArray) {
+            ScratchArray array = (ScratchArray)x;
+            double[] chunk = new double[Math.min(CHUNK, array.size())];
+            double total = 0;
+            for (int from = 0; from < array.size(); from += chunk.length) {
+                int count = Math.min(chunk.length, array.size() - from);
+                array.get(from, chunk, count);
+                total += sum(chunk, count);
+            }
+            out.pushDouble(total);
+        } else if (((ScratchList)x).numbers() != null) {
+            double[] numbers = ((ScratchList)x).numbers();
+            out.pushDouble(sum(numbers, numbers.length));
+        } else {
+            ((ScratchList)x).sum(out);
+        }
+    }
+
+    private static void dot(DataStack out, Object x, Object y) {
+        if (!isVector(x) || !isVector(y)) {
+            throw new RuntimeException("List expected");
+        }
+        int size = size(x, y);
+        long[] xi = integers(x);
+        long[] yi = integers(y);
+        if (xi != null && yi != null) {
+            long total = 0;
+            int i = 0;
+            for (; i < size; i++) {
+                long product = xi[i] * yi[i];
+                long sum = total + product;
+                if (Arithmetic.mulOverflows(xi[i], yi[i], product) || Arithmetic.addOverflows(total, product, sum)) {
+                    break;
+                }
+                total = sum;
+            }
+            // From the item that overflowed on, if one did, the tower
+            // carries on.
+            out.pushLong(total);
+            dot(out, x, y, i, size);
+        } else if (isFast(x) && isFast(y)) {
+            out.pushDouble(dot(doubles(x), doubles(y)));
+        } else {
+            out.pushLong(0);
+            dot(out, x, y, 0, size);
+        }
+    }
+
+    // Adds the products of items FROM up to TO to the number on OUT.
+    private static void dot(DataStack out, Object x, Object y, int from, int to) {
+        for (int i = from; i < to; i++) {
+            out.push(item(x, i));
+            out.push(item(y, i));
+            Arithmetic.mul(out);
+            Arithmetic.add(out);
+        }
+    }
+
+    // The loops.
+
+    private static void arith(int opcode, double[] x, double[] y, double[] result) {
+        if (opcode == Block.OP_ADD) {
+            for (int i = 0; i < result.length; i++) {
+                result[i] = x[i] + y[i];
+            }
+        } else {
+            for (int i = 0; i < result.length; i++) {
+                result[i] = x[i] * y[i];
+            }
+        }
+    }
+
+    private static void arith(int opcode, double[] x, double y, double[] result) {
+        if (opcode == Block.OP_ADD) {
+            for (int i = 0; i < result.length; i++) {
+                result[i] = x[i] + y;
+            }
+        } else {
+            for (int i = 0; i < result.length; i++) {
+                result[i] = x[i] * y;
+            }
+        }
+    }
+
+    // Null if an item overflowed. The checks are a second pass over the
+    // results, so that the loop that works them out stays simple.
+    private static long[] arith(int opcode, long[] x, long[] y) {
+        long[] result = new long[x.length];
+        if (opcode == Block.OP_ADD) {
+            long overflow = 0;
+            for (int i = 0; i < result.length; i++) {
+                result[i] = x[i] + y[i];
+            }
+            for (int i = 0; i < result.length; i++) {
+                overflow |= (x[i] ^ result[i]) & (y[i] ^ result[i]);
+            }
+            return overflow < 0 ? null : result;
+        }
+        for (int i = 0; i < result.length; i++) {
+            result[i] = x[i] * y[i];
+        }
+        for (int i = 0; i < result.length; i++) {
+            if (Arithmetic.mulOverflows(x[i], y[i], result[i])) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    private static long[] arith(int opcode, long[] x, long y) {
+        long[] result = new long[x.length];
+        if (opcode == Block.OP_ADD) {
+            long overflow = 0;
+            for (int i = 0; i < result.length; i++) {
+                result[i] = x[i] + y;
+            }
+            for (int i = 0; i < result.length; i++) {
+                overflow |= (x[i] ^ result[i]) & (y ^ result[i]);
+            }
+            return overflow < 0 ? null : result;
+        }
+        for (int i = 0; i < result.length; i++) {
+            result[i] = x[i] * y;
+        }
+        for (int i = 0; i < result.length; i++) {
+            if (Arithmetic.mulOverflows(x[i], y, result[i])) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    private static void compare(int opcode, double[] x, double[] y, Object[] mask) {
+        for (int i = 0; i < mask.length; i++) {
+            mask[i] = Arithmetic.compare(opcode, x[i], y[i]);
+        }
+    }
+
+    private static void compare(int opcode, double[] x, double y, Object[] mask) {
+        for (int i = 0; i < mask.length; i++) {
+            mask[i] = Arithmetic.compare(opcode, x[i], y);
+        }
+    }
+
+    // The comparison that gives the same answer with its sides swapped.
+    private static int flip(int opcode) {
+        switch (opcode) {
+            case Block.OP_LESS:
+                return Block.OP_GREATER;
+            case Block.OP_LE:
+                return Block.OP_GE;
+            case Block.OP_GE:
+                return Block.OP_LE;
+            case Block.OP_GREATER:
+                return Block.OP_LESS;
+            default:
+                return opcode;
+        }
+    }
+
+    private static double sum(double[] numbers, int count) {
+        double s0 = 0;
+        double s1 = 0;
+        double s2 = 0;
+        double s3 = 0;
+        int i = 0;
+        for (; i + 3 < count; i += 4) {
+            s0 += numbers[i];
+            s1 += numbers[i + 1];
+            s2 += numbers[i + 2];
+            s3 += numbers[i + 3];
+        }
+        for (; i < count; i++) {
+            s0 += numbers[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    private static double dot(double[] x, double[] y) {
+        double s0 = 0;
+        double s1 = 0;
+        double s2 = 0;
+        double s3 = 0;
+        int i = 0;
+        int count = x.length;
+        for (; i + 3 < count; i += 4) {
+            s0 += x[i] * y[i];
+            s1 += x[i + 1] * y[i + 1];
+            s2 += x[i + 2] * y[i + 2];
+            s3 += x[i + 3] * y[i + 3];
+        }
+        for (; i < count; i++) {
+            s0 += x[i] * y[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    // Operands.
+
+    private static boolean isVector(Object value) {
+        return value instanceof ScratchList || value instanceof ScratchArray;
+    }
+
+    // Whether VALUE can go through the double[] loops: an array, a list of
+    // doubles or integers, or a double or integer.
+    private static boolean isFast(Object value) {
+        return value instanceof ScratchArray || value instanceof Double || value instanceof Long
+                || (value instanceof ScratchList && ((ScratchList)value).isNumeric());
+    }
+
+    // The number of items, checking that X and Y (either may be a number,
+    // and Y null) have the same number.
+    private static int size(Object x, Object y) {
+        int size = -1;
+        for (Object value : new Object[] {x, y}) {
+            int count;
+            if (value instanceof ScratchList) {
+                count = ((ScratchList)value).size();
+            } else if (value instanceof ScratchArray) {
+                count = ((ScratchArray)value).size();
+            } else if (value == null || value instanceof Number) {
+                continue;
+            } else {
+                throw new RuntimeException("List expected");
+            }
+            if (size >= 0 && count != size) {
+                throw new RuntimeException("Lengths differ");
+            }
+            size = count;
+        }
+        if (size < 0) {
+            throw new RuntimeException("List expected");
+        }
+        return size;
+    }
+
+    private static long[] integers(Object value) {
+        return value instanceof ScratchList ? ((ScratchList)value).integers() : null;
+    }
+
+    // The items of a fast vector as doubles: a list of doubles as it is,
+    // anything else copied.
+    private static double[] doubles(Object value) {
+        if (value instanceof ScratchArray) {
+            ScratchArray array = (ScratchArray)value;
+            double[] numbers = new double[array.size()];
+            array.get(0, numbers, numbers.length);
+            return numbers;
+        }
+        ScratchList list = (ScratchList)value;
+        if (list.numbers() != null) {
+            return list.numbers();
+        }
+        long[] integers = list.integers();
+        double[] numbers = new double[integers.length];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = integers[i];
+        }
+        return numbers;
+    }
+
+    // Item I of VALUE, or VALUE itself if it is a number.
+    private static Object item(Object value, int i) {
+        if (value instanceof ScratchList) {
+            return ((ScratchList)value).get(i);
+        }
+        if (value instanceof ScratchArray) {
+            return ((ScratchArray)value).get(i);
+        }
+        return value;
+    }
+}
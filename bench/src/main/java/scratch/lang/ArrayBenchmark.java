@@ -0,0 +1,88 @@
+package scratch.lang;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// SUM and MAX over a mapped file of 1M doubles, SUM over a slice of it, and
+// reading items one at a time with ITEM in a TIMES loop.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArrayBenchmark {
+    private static final int SIZE = 1 << 20;
+
+    private File file;
+    private Scratch terp;
+    private CompiledScript sum;
+    private CompiledScript max;
+    private CompiledScript slice_sum;
+    private CompiledScript items;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = File.createTempFile("array", ".bin");
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            DoubleBuffer data = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8L * SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            for (int i = 0; i < SIZE; i++) {
+                data.put(i, i % 1000);
+            }
+        }
+        terp = new Scratch();
+        terp.run("var a var i var total \" " + file.getPath() + "\" mapfile a !");
+        sum = terp.prepare("a @ sum");
+        max = terp.prepare("a @ max");
+        slice_sum = terp.prepare("a @ 1000 " + (SIZE - 1000) + " slice sum");
+        items = terp.prepare("0 i ! 0 total ! [ a @ i @ item total @ + total ! i @ 1 + i ! ] 10000 times total @");
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    private double execute(CompiledScript script) {
+        script.execute(terp);
+        return terp.stack.popDouble();
+    }
+
+    @Benchmark
+    public double sum() {
+        return execute(sum);
+    }
+
+    @Benchmark
+    public double max() {
+        return execute(max);
+    }
+
+    @Benchmark
+    public double sliceSum() {
+        return execute(slice_sum);
+    }
+
+    @Benchmark
+    public double items() {
+        return execute(items);
+    }
+}
@@ -0,0 +1,60 @@
+package scratch.lang;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Scratch.compile on a single token: a dictionary hit, a word shadowing a
+// shared one, and misses that fall through to the literal parser.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompileBenchmark {
+    private Scratch terp;
+    private char[] builtin;
+    private char[] local;
+    private char[] integer;
+    private char[] decimal;
+
+    @Setup
+    public void setUp() {
+        terp = new Scratch();
+        terp.run(": square dup * ;");
+        builtin = "dup".toCharArray();
+        local = "SQUARE".toCharArray();
+        integer = "12345".toCharArray();
+        decimal = "-3.25e-4".toCharArray();
+    }
+
+    @Benchmark
+    public Object hitBuiltin() {
+        return terp.compile(builtin, 0, builtin.length);
+    }
+
+    @Benchmark
+    public Object hitLocal() {
+        return terp.compile(local, 0, local.length);
+    }
+
+    @Benchmark
+    public Object missInteger() {
+        return terp.compile(integer, 0, integer.length);
+    }
+
+    @Benchmark
+    public Object missDecimal() {
+        return terp.compile(decimal, 0, decimal.length);
+    }
+}
@@ -0,0 +1,102 @@
+package scratch.lang;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Arithmetic in TIMES, WHILE and LOOP/?BREAK, calls through a chain of
+// nested words, and recursion in and out of tail position, each 10000
+// iterations (or levels) deep. The nested calls are also run straight
+// after a definition, which has every word that names others bound again
+// (see Block.bind). Run with and without the second tier.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ControlBenchmark {
+    @Param({"true", "false"})
+    public boolean jit;
+
+    private Scratch terp;
+    private CompiledScript times;
+    private CompiledScript loop_while;
+    private CompiledScript loop_break;
+    private CompiledScript nested;
+    private CompiledScript redefined;
+    private CompiledScript recursion;
+    private CompiledScript tail_recursion;
+
+    @Setup
+    public void setUp() {
+        terp = new Scratch();
+        terp.jit = jit;
+        terp.run("var i var sum");
+        StringBuilder words = new StringBuilder(": w0 1 + ; ");
+        for (int n = 1; n <= 100; n++) {
+            words.append(": w").append(n).append(" w").append(n - 1).append(" w").append(n - 1).append(" ; ");
+        }
+        terp.run(words);
+        terp.run(": total dup 0 > [ dup 1 - recurse + ] iftrue ;");
+        terp.run(": countdown dup 0 > [ 1 - recurse ] iftrue ;");
+        times = terp.prepare("0 sum ! [ sum @ 3 * 1 + 7 % sum ! ] 10000 times sum @");
+        loop_while = terp.prepare("0 i ! 0 sum ! [ i @ 10000 >= ] [ sum @ i @ + sum ! i @ 1 + i ! ] while sum @");
+        loop_break = terp.prepare("0 i ! 0 sum ! [ i @ 10000 >= ?break sum @ i @ + sum ! i @ 1 + i ! ] loop sum @");
+        // w13 calls w0 2^13 (8192) times through 13 levels of words.
+        nested = terp.prepare("0 w13");
+        redefined = terp.prepare(": spare ; 0 w13");
+        recursion = terp.prepare("10000 total");
+        tail_recursion = terp.prepare("10000 countdown");
+    }
+
+    private double execute(CompiledScript script) {
+        script.execute(terp);
+        return terp.stack.popDouble();
+    }
+
+    @Benchmark
+    public double times() {
+        return execute(times);
+    }
+
+    @Benchmark
+    public double whileLoop() {
+        return execute(loop_while);
+    }
+
+    @Benchmark
+    public double loopBreak() {
+        return execute(loop_break);
+    }
+
+    @Benchmark
+    public double nestedCalls() {
+        return execute(nested);
+    }
+
+    @Benchmark
+    public double nestedCallsRedefined() {
+        return execute(redefined);
+    }
+
+    @Benchmark
+    public double recursion() {
+        return execute(recursion);
+    }
+
+    @Benchmark
+    public double tailRecursion() {
+        return execute(tail_recursion);
+    }
+}
@@ -0,0 +1,56 @@
+package scratch.lang;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Lexing a ~1MB script: once as Strings (nextWord), once as spans (next).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerBenchmark {
+    private String text;
+
+    @Setup
+    public void setUp() {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 1 << 20) {
+            builder.append(": square dup * ;\n");
+            builder.append("var total 0 total ! [ total @ 1.5 + total ! ] 10 times\n");
+            builder.append("3 square 2 sqrt + . // trailing comment\n");
+        }
+        text = builder.toString();
+    }
+
+    @Benchmark
+    public int nextWord() {
+        ScratchLexer lexer = new ScratchLexer(text);
+        int count = 0;
+        while (lexer.nextWord() != null) {
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int nextSpan() {
+        ScratchLexer lexer = new ScratchLexer(text);
+        int length = 0;
+        while (lexer.next()) {
+            length += lexer.length;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,99 @@
+package scratch.lang;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Building lists with [ and reading them back with ITEM and LENGTH, and the
+// bulk words over a 65536-number vector: MAP and REDUCE with blocks they
+// run natively and with blocks they must interpret, PMAP with the latter,
+// and SUM. Run with -prof gc to see what each list costs in allocation.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListBenchmark {
+    private Scratch terp;
+    private CompiledScript build;
+    private CompiledScript index;
+    private CompiledScript map;
+    private CompiledScript map_interpreted;
+    private CompiledScript map_parallel;
+    private CompiledScript reduce;
+    private CompiledScript reduce_interpreted;
+    private CompiledScript sum;
+
+    @Setup
+    public void setUp() {
+        terp = new Scratch();
+        terp.run("var l var total var v");
+        build = terp.prepare("[ 1 2 3 4 5 6 7 8 [ 9 10 ] \" eleven\" true ] length");
+        index = terp.prepare("[ 1 2 3 4 5 6 7 8 9 10 ] l ! 0 total !"
+                + " [ l @ dup length 1 - item total @ + total ! ] 1000 times total @");
+        terp.run("[ 1 ] [ v ! v @ v @ append ] 16 times v !");
+        map = terp.prepare("v @ [ 2 * 1 + ] map length");
+        map_interpreted = terp.prepare("v @ [ dup 2 * swap drop ] map length");
+        map_parallel = terp.prepare("v @ [ dup 2 * swap drop ] pmap length");
+        reduce = terp.prepare("v @ 0 [ + ] reduce");
+        reduce_interpreted = terp.prepare("v @ 0 [ swap + ] reduce");
+        sum = terp.prepare("v @ sum");
+    }
+
+    @Benchmark
+    public double buildList() {
+        build.execute(terp);
+        return terp.stack.popDouble();
+    }
+
+    @Benchmark
+    public double itemAndLength() {
+        index.execute(terp);
+        return terp.stack.popDouble();
+    }
+
+    private double execute(CompiledScript script) {
+        script.execute(terp);
+        return terp.stack.popDouble();
+    }
+
+    @Benchmark
+    public double map() {
+        return execute(map);
+    }
+
+    @Benchmark
+    public double mapInterpreted() {
+        return execute(map_interpreted);
+    }
+
+    @Benchmark
+    public double mapParallel() {
+        return execute(map_parallel);
+    }
+
+    @Benchmark
+    public double reduce() {
+        return execute(reduce);
+    }
+
+    @Benchmark
+    public double reduceInterpreted() {
+        return execute(reduce_interpreted);
+    }
+
+    @Benchmark
+    public double sum() {
+        return execute(sum);
+    }
+}
@@ -0,0 +1,82 @@
+package scratch.lang;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The same 10000-iteration loops over integers and over doubles (the
+// literals are written with a fraction), a counter kept in a variable,
+// integer arithmetic that overflows into BigIntegers, and SUM over a list
+// of 8192 integers.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NumberBenchmark {
+    @Param({"true", "false"})
+    public boolean jit;
+
+    private Scratch terp;
+    private CompiledScript integers;
+    private CompiledScript doubles;
+    private CompiledScript counter;
+    private CompiledScript overflow;
+    private CompiledScript sum;
+
+    @Setup
+    public void setUp() {
+        terp = new Scratch();
+        terp.jit = jit;
+        terp.run("var i var acc var v");
+        terp.run(": step acc @ 31 * 7 + 1000003 % acc ! ;");
+        terp.run(": step.0 acc @ 31.0 * 7.0 + 1000003.0 % acc ! ;");
+        integers = terp.prepare("1 acc ! [ step ] 10000 times acc @");
+        doubles = terp.prepare("1.0 acc ! [ step.0 ] 10000 times acc @");
+        counter = terp.prepare("0 i ! [ i @ 10000 >= ] [ i @ 1 + i ! ] while i @");
+        overflow = terp.prepare("1 [ 3 * ] 200 times");
+        terp.run("[ 1 ] [ v ! v @ v @ append ] 13 times v !");
+        sum = terp.prepare("v @ sum");
+    }
+
+    private Object execute(CompiledScript script) {
+        script.execute(terp);
+        return terp.stack.pop();
+    }
+
+    @Benchmark
+    public Object integerLoop() {
+        return execute(integers);
+    }
+
+    @Benchmark
+    public Object doubleLoop() {
+        return execute(doubles);
+    }
+
+    @Benchmark
+    public Object counter() {
+        return execute(counter);
+    }
+
+    @Benchmark
+    public Object overflow() {
+        return execute(overflow);
+    }
+
+    @Benchmark
+    public Object sum() {
+        return execute(sum);
+    }
+}
@@ -0,0 +1,67 @@
+package scratch.lang;
+
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// PRINT of whole numbers and of decimals, and PSTACK, 1000 at a time into a
+// buffered sink whose writer throws the text away.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputBenchmark {
+    private Scratch terp;
+    private CompiledScript print_whole;
+    private CompiledScript print_decimal;
+    private CompiledScript pstack;
+
+    @Setup
+    public void setUp() {
+        terp = new Scratch();
+        terp.setOutput(new OutputSink.Buffered(new Writer() {
+            @Override
+            public void write(char[] chars, int start, int length) {
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        }, OutputSink.FLUSH_RUN, 8192));
+        terp.run("var k");
+        print_whole = terp.prepare("0 k ! [ k @ . k @ 1 + k ! ] 1000 times");
+        print_decimal = terp.prepare("0 k ! [ k @ . k @ 0.25 + k ! ] 1000 times");
+        pstack = terp.prepare("1 2.5 3 [ pstack ] 1000 times drop drop drop");
+    }
+
+    @Benchmark
+    public void printWhole() {
+        print_whole.execute(terp);
+    }
+
+    @Benchmark
+    public void printDecimal() {
+        print_decimal.execute(terp);
+    }
+
+    @Benchmark
+    public void pstack() {
+        pstack.execute(terp);
+    }
+}
@@ -0,0 +1,59 @@
+package scratch.lang;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A string literal run at the top level, STR= on literals and on slices,
+// and COMPARE, each 1000 times.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringBenchmark {
+    private Scratch terp;
+    private CompiledScript literal;
+    private CompiledScript equal_literals;
+    private CompiledScript equal_slices;
+    private CompiledScript compare;
+
+    @Setup
+    public void setUp() {
+        terp = new Scratch();
+        literal = terp.prepare("\" a string literal\" drop");
+        equal_literals = terp.prepare("[ \" apple\" \" apple\" str= drop ] 1000 times");
+        equal_slices = terp.prepare("[ \" an apple\" 3 8 slice \" apple\" str= drop ] 1000 times");
+        compare = terp.prepare("[ \" apple\" \" apricot\" compare drop ] 1000 times");
+    }
+
+    @Benchmark
+    public void literal() {
+        literal.execute(terp);
+    }
+
+    @Benchmark
+    public void equalLiterals() {
+        equal_literals.execute(terp);
+    }
+
+    @Benchmark
+    public void equalSlices() {
+        equal_slices.execute(terp);
+    }
+
+    @Benchmark
+    public void compare() {
+        compare.execute(terp);
+    }
+}
@@ -0,0 +1,124 @@
+package scratch.lang;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The V words against the same work done item by item, over lists of 1K to
+// 10M doubles: V+ and V< against MAP with a block the MAP kernel cannot
+// run, VSQRT against MAP with [ sqrt ] (which it can), VSUM against SUM,
+// and VDOT against V* then SUM. Run with -Pjmh='-jvmArgs -Xmx2g
+// VectorBenchmark' for the larger sizes.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VectorBenchmark {
+    @Param({"1000", "100000", "10000000"})
+    public int size;
+
+    private Scratch terp;
+    private CompiledScript add;
+    private CompiledScript add_scalar;
+    private CompiledScript less;
+    private CompiledScript less_scalar;
+    private CompiledScript sqrt;
+    private CompiledScript sqrt_scalar;
+    private CompiledScript sum;
+    private CompiledScript sum_scalar;
+    private CompiledScript dot;
+    private CompiledScript dot_scalar;
+
+    @Setup
+    public void setUp() {
+        terp = new Scratch();
+        double[] x = new double[size];
+        double[] y = new double[size];
+        for (int i = 0; i < size; i++) {
+            x[i] = i % 1000;
+            y[i] = (i * 7) % 1000;
+        }
+        terp.run("var x var y");
+        terp.stack.pushObject(new ScratchList(x));
+        terp.run("x !");
+        terp.stack.pushObject(new ScratchList(y));
+        terp.run("y !");
+        add = terp.prepare("x @ 1.5 v+ length");
+        add_scalar = terp.prepare("x @ [ 1.5 swap + ] map length");
+        less = terp.prepare("x @ 500.0 v< length");
+        less_scalar = terp.prepare("x @ [ 500.0 swap > ] map length");
+        sqrt = terp.prepare("x @ vsqrt length");
+        sqrt_scalar = terp.prepare("x @ [ sqrt ] map length");
+        sum = terp.prepare("x @ vsum");
+        sum_scalar = terp.prepare("x @ sum");
+        dot = terp.prepare("x @ y @ vdot");
+        dot_scalar = terp.prepare("x @ y @ v* sum");
+    }
+
+    private double execute(CompiledScript script) {
+        script.execute(terp);
+        return terp.stack.popDouble();
+    }
+
+    @Benchmark
+    public double add() {
+        return execute(add);
+    }
+
+    @Benchmark
+    public double addScalar() {
+        return execute(add_scalar);
+    }
+
+    @Benchmark
+    public double less() {
+        return execute(less);
+    }
+
+    @Benchmark
+    public double lessScalar() {
+        return execute(less_scalar);
+    }
+
+    @Benchmark
+    public double sqrt() {
+        return execute(sqrt);
+    }
+
+    @Benchmark
+    public double sqrtScalar() {
+        return execute(sqrt_scalar);
+    }
+
+    @Benchmark
+    public double sum() {
+        return execute(sum);
+    }
+
+    @Benchmark
+    public double sumScalar() {
+        return execute(sum_scalar);
+    }
+
+    @Benchmark
+    public double dot() {
+        return execute(dot);
+    }
+
+    @Benchmark
+    public double dotScalar() {
+        return execute(dot_scalar);
+    }
+}